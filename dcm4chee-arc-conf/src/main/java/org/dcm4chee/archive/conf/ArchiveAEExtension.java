@@ -66,12 +66,15 @@ public class ArchiveAEExtension extends AEExtension {
     private static final long serialVersionUID = -2390448404282661045L;
 
     public static final int DEF_RETRY_INTERVAL = 60;
+    public static final int DEF_STORE_BATCH_TIMEOUT = 100;
+    public static final int DEF_MAX_PARALLEL_QUERIES = 4;
 
     private String modifyingSystem;
     private String[] retrieveAETs;
     private String externalRetrieveAET;
     private String fileSystemGroupID;
     private String initFileSystemURI;
+    private FileSystemSelection fileSystemSelection;
     private String digestAlgorithm;
     private String spoolDirectoryPath;
     private AttributesFormat storageFilePathFormat;
@@ -99,6 +102,17 @@ public class ArchiveAEExtension extends AEExtension {
     private String pixManagerApplication;
     private String pixConsumerApplication;
     private int qidoMaxNumberOfResults;
+    private int storeBatchSize;
+    private int storeBatchTimeout = DEF_STORE_BATCH_TIMEOUT;
+    private boolean directWrite;
+    private int minFreeSpace;
+    private boolean memoizeAttributeCoercion;
+    private int parallelQueryThreshold;
+    private int maxParallelQueries = DEF_MAX_PARALLEL_QUERIES;
+    private int queryResultCacheTTL;
+    private int moveStoreAssociations = 1;
+    private int retrievePrefetchDepth;
+    private boolean qidoKeysetPagination;
 
     public AttributeCoercion getAttributeCoercion(String sopClass,
             Dimse dimse, Role role, String aeTitle) {
@@ -202,6 +216,14 @@ public class ArchiveAEExtension extends AEExtension {
         this.initFileSystemURI = initFileSystemURI;
     }
 
+    public FileSystemSelection getFileSystemSelection() {
+        return fileSystemSelection;
+    }
+
+    public void setFileSystemSelection(FileSystemSelection fileSystemSelection) {
+        this.fileSystemSelection = fileSystemSelection;
+    }
+
     public String getDigestAlgorithm() {
         return digestAlgorithm;
     }
@@ -409,6 +431,94 @@ public class ArchiveAEExtension extends AEExtension {
         this.qidoMaxNumberOfResults = qidoMaxNumberOfResults;
     }
 
+    public int getStoreBatchSize() {
+        return storeBatchSize;
+    }
+
+    public void setStoreBatchSize(int storeBatchSize) {
+        this.storeBatchSize = storeBatchSize;
+    }
+
+    public int getStoreBatchTimeout() {
+        return storeBatchTimeout;
+    }
+
+    public void setStoreBatchTimeout(int storeBatchTimeout) {
+        this.storeBatchTimeout = storeBatchTimeout;
+    }
+
+    public boolean isDirectWrite() {
+        return directWrite;
+    }
+
+    public void setDirectWrite(boolean directWrite) {
+        this.directWrite = directWrite;
+    }
+
+    public int getMinFreeSpace() {
+        return minFreeSpace;
+    }
+
+    public void setMinFreeSpace(int minFreeSpace) {
+        this.minFreeSpace = minFreeSpace;
+    }
+
+    public boolean isMemoizeAttributeCoercion() {
+        return memoizeAttributeCoercion;
+    }
+
+    public void setMemoizeAttributeCoercion(boolean memoizeAttributeCoercion) {
+        this.memoizeAttributeCoercion = memoizeAttributeCoercion;
+    }
+
+    public int getParallelQueryThreshold() {
+        return parallelQueryThreshold;
+    }
+
+    public void setParallelQueryThreshold(int parallelQueryThreshold) {
+        this.parallelQueryThreshold = parallelQueryThreshold;
+    }
+
+    public int getMaxParallelQueries() {
+        return maxParallelQueries;
+    }
+
+    public void setMaxParallelQueries(int maxParallelQueries) {
+        this.maxParallelQueries = maxParallelQueries;
+    }
+
+    public int getQueryResultCacheTTL() {
+        return queryResultCacheTTL;
+    }
+
+    public void setQueryResultCacheTTL(int queryResultCacheTTL) {
+        this.queryResultCacheTTL = queryResultCacheTTL;
+    }
+
+    public int getMoveStoreAssociations() {
+        return moveStoreAssociations;
+    }
+
+    public void setMoveStoreAssociations(int moveStoreAssociations) {
+        this.moveStoreAssociations = moveStoreAssociations;
+    }
+
+    public int getRetrievePrefetchDepth() {
+        return retrievePrefetchDepth;
+    }
+
+    public void setRetrievePrefetchDepth(int retrievePrefetchDepth) {
+        this.retrievePrefetchDepth = retrievePrefetchDepth;
+    }
+
+    public boolean isQIDOKeysetPagination() {
+        return qidoKeysetPagination;
+    }
+
+    public void setQIDOKeysetPagination(boolean qidoKeysetPagination) {
+        this.qidoKeysetPagination = qidoKeysetPagination;
+    }
+
     @Override
     public void reconfigure(AEExtension from) {
         ArchiveAEExtension arcae = (ArchiveAEExtension) from;
@@ -417,6 +527,7 @@ public class ArchiveAEExtension extends AEExtension {
         setExternalRetrieveAET(arcae.externalRetrieveAET);
         setFileSystemGroupID(arcae.fileSystemGroupID);
         setInitFileSystemURI(arcae.initFileSystemURI);
+        setFileSystemSelection(arcae.fileSystemSelection);
         setDigestAlgorithm(arcae.digestAlgorithm);
         setSpoolDirectoryPath(arcae.spoolDirectoryPath);
         setStorageFilePathFormat(arcae.storageFilePathFormat);
@@ -441,6 +552,17 @@ public class ArchiveAEExtension extends AEExtension {
         setRemotePIXManagerApplication(arcae.pixManagerApplication);
         setLocalPIXConsumerApplication(arcae.pixConsumerApplication);
         setQIDOMaxNumberOfResults(arcae.qidoMaxNumberOfResults);
+        setStoreBatchSize(arcae.storeBatchSize);
+        setStoreBatchTimeout(arcae.storeBatchTimeout);
+        setDirectWrite(arcae.directWrite);
+        setMinFreeSpace(arcae.minFreeSpace);
+        setMemoizeAttributeCoercion(arcae.memoizeAttributeCoercion);
+        setParallelQueryThreshold(arcae.parallelQueryThreshold);
+        setMaxParallelQueries(arcae.maxParallelQueries);
+        setQueryResultCacheTTL(arcae.queryResultCacheTTL);
+        setMoveStoreAssociations(arcae.moveStoreAssociations);
+        setRetrievePrefetchDepth(arcae.retrievePrefetchDepth);
+        setQIDOKeysetPagination(arcae.qidoKeysetPagination);
         setStoreDuplicates(arcae.getStoreDuplicates());
         setAttributeCoercions(arcae.getAttributeCoercions());
         setCompressionRules(arcae.getCompressionRules());
@@ -55,6 +55,12 @@ public class ArchiveDeviceExtension extends DeviceExtension {
 
     private static final long serialVersionUID = -3611223780276386740L;
 
+    public static final int DEF_UPDATE_NUMBER_OF_INSTANCES_INTERVAL = 1000;
+    public static final int DEF_COMPRESSION_QUEUE_SIZE = 100;
+    public static final int DEF_SERIES_ATTRIBUTES_CACHE_SIZE = 1000;
+    public static final int DEF_QUERY_RESULT_CACHE_SIZE = 100;
+    public static final int DEF_WADO_ATTRIBUTES_CACHE_SIZE = 1000;
+
     private Code incorrectWorklistEntrySelectedCode;
     private Code rejectedForQualityReasonsCode;
     private Code rejectedForPatientSafetyReasonsCode;
@@ -65,6 +71,15 @@ public class ArchiveDeviceExtension extends DeviceExtension {
             new AttributeFilter[Entity.values().length];
     private int configurationStaleTimeout;
     private int wadoAttributesStaleTimeout;
+    private int updateNumberOfInstancesInterval = DEF_UPDATE_NUMBER_OF_INSTANCES_INTERVAL;
+    private int compressionThreads;
+    private int compressionQueueSize = DEF_COMPRESSION_QUEUE_SIZE;
+    private int frameCompressionThreads;
+    private int seriesAttributesCacheSize = DEF_SERIES_ATTRIBUTES_CACHE_SIZE;
+    private boolean studyQueryView;
+    private int queryResultCacheSize = DEF_QUERY_RESULT_CACHE_SIZE;
+    private boolean patientNameIndex;
+    private int wadoAttributesCacheSize = DEF_WADO_ATTRIBUTES_CACHE_SIZE;
 
     private transient FuzzyStr fuzzyStr;
     private transient TemplatesCache templatesCache;
@@ -152,6 +167,78 @@ public class ArchiveDeviceExtension extends DeviceExtension {
         this.wadoAttributesStaleTimeout = wadoAttributesStaleTimeout;
     }
 
+    public int getUpdateNumberOfInstancesInterval() {
+        return updateNumberOfInstancesInterval;
+    }
+
+    public void setUpdateNumberOfInstancesInterval(int updateNumberOfInstancesInterval) {
+        this.updateNumberOfInstancesInterval = updateNumberOfInstancesInterval;
+    }
+
+    public int getCompressionThreads() {
+        return compressionThreads;
+    }
+
+    public void setCompressionThreads(int compressionThreads) {
+        this.compressionThreads = compressionThreads;
+    }
+
+    public int getCompressionQueueSize() {
+        return compressionQueueSize;
+    }
+
+    public void setCompressionQueueSize(int compressionQueueSize) {
+        this.compressionQueueSize = compressionQueueSize;
+    }
+
+    public int getFrameCompressionThreads() {
+        return frameCompressionThreads;
+    }
+
+    public void setFrameCompressionThreads(int frameCompressionThreads) {
+        this.frameCompressionThreads = frameCompressionThreads;
+    }
+
+    public int getSeriesAttributesCacheSize() {
+        return seriesAttributesCacheSize;
+    }
+
+    public void setSeriesAttributesCacheSize(int seriesAttributesCacheSize) {
+        this.seriesAttributesCacheSize = seriesAttributesCacheSize;
+    }
+
+    public boolean isStudyQueryView() {
+        return studyQueryView;
+    }
+
+    public void setStudyQueryView(boolean studyQueryView) {
+        this.studyQueryView = studyQueryView;
+    }
+
+    public int getQueryResultCacheSize() {
+        return queryResultCacheSize;
+    }
+
+    public void setQueryResultCacheSize(int queryResultCacheSize) {
+        this.queryResultCacheSize = queryResultCacheSize;
+    }
+
+    public boolean isPatientNameIndex() {
+        return patientNameIndex;
+    }
+
+    public void setPatientNameIndex(boolean patientNameIndex) {
+        this.patientNameIndex = patientNameIndex;
+    }
+
+    public int getWadoAttributesCacheSize() {
+        return wadoAttributesCacheSize;
+    }
+
+    public void setWadoAttributesCacheSize(int wadoAttributesCacheSize) {
+        this.wadoAttributesCacheSize = wadoAttributesCacheSize;
+    }
+
     public void clearTemplatesCache() {
         TemplatesCache cache = templatesCache;
         if (cache != null)
@@ -187,6 +274,15 @@ public class ArchiveDeviceExtension extends DeviceExtension {
         setDataRetentionPeriodExpiredCode(arcdev.getDataRetentionPeriodExpiredCode());
         setFuzzyAlgorithmClass(arcdev.fuzzyAlgorithmClass);
         setConfigurationStaleTimeout(arcdev.configurationStaleTimeout);
+        setUpdateNumberOfInstancesInterval(arcdev.updateNumberOfInstancesInterval);
+        setCompressionThreads(arcdev.compressionThreads);
+        setCompressionQueueSize(arcdev.compressionQueueSize);
+        setFrameCompressionThreads(arcdev.frameCompressionThreads);
+        setSeriesAttributesCacheSize(arcdev.seriesAttributesCacheSize);
+        setStudyQueryView(arcdev.studyQueryView);
+        setQueryResultCacheSize(arcdev.queryResultCacheSize);
+        setPatientNameIndex(arcdev.patientNameIndex);
+        setWadoAttributesCacheSize(arcdev.wadoAttributesCacheSize);
         System.arraycopy(arcdev.attributeFilters, 0,
                 attributeFilters, 0, attributeFilters.length);
     }
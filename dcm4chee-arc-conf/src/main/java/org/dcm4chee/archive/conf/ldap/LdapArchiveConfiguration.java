@@ -70,6 +70,7 @@ import org.dcm4chee.archive.conf.ArchiveDeviceExtension;
 import org.dcm4chee.archive.conf.ArchiveHL7ApplicationExtension;
 import org.dcm4chee.archive.conf.AttributeFilter;
 import org.dcm4chee.archive.conf.Entity;
+import org.dcm4chee.archive.conf.FileSystemSelection;
 import org.dcm4chee.archive.conf.StoreDuplicate;
 import org.dcm4chee.archive.conf.StoreDuplicate.Condition;
 
@@ -103,6 +104,29 @@ public class LdapArchiveConfiguration extends LdapDicomConfigurationExtension
                 arcDev.getConfigurationStaleTimeout(), 0);
         LdapUtils.storeNotDef(attrs, "dcmWadoAttributesStaleTimeout",
                 arcDev.getWadoAttributesStaleTimeout(), 0);
+        LdapUtils.storeNotDef(attrs, "dcmUpdateNumberOfInstancesInterval",
+                arcDev.getUpdateNumberOfInstancesInterval(),
+                ArchiveDeviceExtension.DEF_UPDATE_NUMBER_OF_INSTANCES_INTERVAL);
+        LdapUtils.storeNotDef(attrs, "dcmCompressionThreads",
+                arcDev.getCompressionThreads(), 0);
+        LdapUtils.storeNotDef(attrs, "dcmCompressionQueueSize",
+                arcDev.getCompressionQueueSize(),
+                ArchiveDeviceExtension.DEF_COMPRESSION_QUEUE_SIZE);
+        LdapUtils.storeNotDef(attrs, "dcmFrameCompressionThreads",
+                arcDev.getFrameCompressionThreads(), 0);
+        LdapUtils.storeNotDef(attrs, "dcmSeriesAttributesCacheSize",
+                arcDev.getSeriesAttributesCacheSize(),
+                ArchiveDeviceExtension.DEF_SERIES_ATTRIBUTES_CACHE_SIZE);
+        LdapUtils.storeNotDef(attrs, "dcmStudyQueryView",
+                arcDev.isStudyQueryView(), false);
+        LdapUtils.storeNotDef(attrs, "dcmQueryResultCacheSize",
+                arcDev.getQueryResultCacheSize(),
+                ArchiveDeviceExtension.DEF_QUERY_RESULT_CACHE_SIZE);
+        LdapUtils.storeNotDef(attrs, "dcmPatientNameIndex",
+                arcDev.isPatientNameIndex(), false);
+        LdapUtils.storeNotDef(attrs, "dcmWadoAttributesCacheSize",
+                arcDev.getWadoAttributesCacheSize(),
+                ArchiveDeviceExtension.DEF_WADO_ATTRIBUTES_CACHE_SIZE);
     }
 
     @Override
@@ -171,6 +195,7 @@ public class LdapArchiveConfiguration extends LdapDicomConfigurationExtension
         attrs.get("objectclass").add("dcmArchiveNetworkAE");
         LdapUtils.storeNotNull(attrs, "dcmFileSystemGroupID", arcAE.getFileSystemGroupID());
         LdapUtils.storeNotNull(attrs, "dcmInitFileSystemURI", arcAE.getInitFileSystemURI());
+        LdapUtils.storeNotNull(attrs, "dcmFileSystemSelection", arcAE.getFileSystemSelection());
         LdapUtils.storeNotNull(attrs, "dcmSpoolDirectoryPath", arcAE.getSpoolDirectoryPath());
         LdapUtils.storeNotNull(attrs, "dcmStorageFilePathFormat", arcAE.getStorageFilePathFormat());
         LdapUtils.storeNotNull(attrs, "dcmDigestAlgorithm", arcAE.getDigestAlgorithm());
@@ -204,6 +229,29 @@ public class LdapArchiveConfiguration extends LdapDicomConfigurationExtension
         LdapUtils.storeNotNull(attrs, "hl7PIXConsumerApplication", arcAE.getLocalPIXConsumerApplication());
         LdapUtils.storeNotNull(attrs, "hl7PIXManagerApplication", arcAE.getRemotePIXManagerApplication());
         LdapUtils.storeNotDef(attrs, "dcmQidoMaxNumberOfResults", arcAE.getQIDOMaxNumberOfResults(), 0);
+        LdapUtils.storeNotDef(attrs, "dcmStoreBatchSize",
+                arcAE.getStoreBatchSize(), 0);
+        LdapUtils.storeNotDef(attrs, "dcmStoreBatchTimeout",
+                arcAE.getStoreBatchTimeout(), ArchiveAEExtension.DEF_STORE_BATCH_TIMEOUT);
+        LdapUtils.storeNotDef(attrs, "dcmDirectWrite",
+                arcAE.isDirectWrite(), false);
+        LdapUtils.storeNotDef(attrs, "dcmMinFreeSpace",
+                arcAE.getMinFreeSpace(), 0);
+        LdapUtils.storeNotDef(attrs, "dcmMemoizeAttributeCoercion",
+                arcAE.isMemoizeAttributeCoercion(), false);
+        LdapUtils.storeNotDef(attrs, "dcmParallelQueryThreshold",
+                arcAE.getParallelQueryThreshold(), 0);
+        LdapUtils.storeNotDef(attrs, "dcmMaxParallelQueries",
+                arcAE.getMaxParallelQueries(),
+                ArchiveAEExtension.DEF_MAX_PARALLEL_QUERIES);
+        LdapUtils.storeNotDef(attrs, "dcmQueryResultCacheTTL",
+                arcAE.getQueryResultCacheTTL(), 0);
+        LdapUtils.storeNotDef(attrs, "dcmMoveStoreAssociations",
+                arcAE.getMoveStoreAssociations(), 1);
+        LdapUtils.storeNotDef(attrs, "dcmRetrievePrefetchDepth",
+                arcAE.getRetrievePrefetchDepth(), 0);
+        LdapUtils.storeNotDef(attrs, "dcmQidoKeysetPagination",
+                arcAE.isQIDOKeysetPagination(), false);
     }
 
     @Override
@@ -240,6 +288,29 @@ public class LdapArchiveConfiguration extends LdapDicomConfigurationExtension
                 LdapUtils.intValue(attrs.get("dcmConfigurationStaleTimeout"), 0));
         arcdev.setWadoAttributesStaleTimeout(
                 LdapUtils.intValue(attrs.get("dcmWadoAttributesStaleTimeout"), 0));
+        arcdev.setUpdateNumberOfInstancesInterval(
+                LdapUtils.intValue(attrs.get("dcmUpdateNumberOfInstancesInterval"),
+                        ArchiveDeviceExtension.DEF_UPDATE_NUMBER_OF_INSTANCES_INTERVAL));
+        arcdev.setCompressionThreads(
+                LdapUtils.intValue(attrs.get("dcmCompressionThreads"), 0));
+        arcdev.setCompressionQueueSize(
+                LdapUtils.intValue(attrs.get("dcmCompressionQueueSize"),
+                        ArchiveDeviceExtension.DEF_COMPRESSION_QUEUE_SIZE));
+        arcdev.setFrameCompressionThreads(
+                LdapUtils.intValue(attrs.get("dcmFrameCompressionThreads"), 0));
+        arcdev.setSeriesAttributesCacheSize(
+                LdapUtils.intValue(attrs.get("dcmSeriesAttributesCacheSize"),
+                        ArchiveDeviceExtension.DEF_SERIES_ATTRIBUTES_CACHE_SIZE));
+        arcdev.setStudyQueryView(
+                LdapUtils.booleanValue(attrs.get("dcmStudyQueryView"), false));
+        arcdev.setQueryResultCacheSize(
+                LdapUtils.intValue(attrs.get("dcmQueryResultCacheSize"),
+                        ArchiveDeviceExtension.DEF_QUERY_RESULT_CACHE_SIZE));
+        arcdev.setPatientNameIndex(
+                LdapUtils.booleanValue(attrs.get("dcmPatientNameIndex"), false));
+        arcdev.setWadoAttributesCacheSize(
+                LdapUtils.intValue(attrs.get("dcmWadoAttributesCacheSize"),
+                        ArchiveDeviceExtension.DEF_WADO_ATTRIBUTES_CACHE_SIZE));
     }
 
     @Override
@@ -281,6 +352,11 @@ public class LdapArchiveConfiguration extends LdapDicomConfigurationExtension
         return attr != null ? new AttributesFormat((String) attr.get()) : null;
     }
 
+    private static FileSystemSelection fileSystemSelection(Attribute attr)
+            throws NamingException {
+        return attr != null ? FileSystemSelection.valueOf((String) attr.get()) : null;
+    }
+
     protected static int[] tags(Attribute attr) throws NamingException {
         int[] is = new int[attr.size()];
         for (int i = 0; i < is.length; i++)
@@ -298,6 +374,7 @@ public class LdapArchiveConfiguration extends LdapDicomConfigurationExtension
        ae.addAEExtension(arcae);
        arcae.setFileSystemGroupID(LdapUtils.stringValue(attrs.get("dcmFileSystemGroupID"), null));
        arcae.setInitFileSystemURI(LdapUtils.stringValue(attrs.get("dcmInitFileSystemURI"), null));
+       arcae.setFileSystemSelection(fileSystemSelection(attrs.get("dcmFileSystemSelection")));
        arcae.setSpoolDirectoryPath(LdapUtils.stringValue(attrs.get("dcmSpoolDirectoryPath"), null));
        arcae.setStorageFilePathFormat(attributesFormat(attrs.get("dcmStorageFilePathFormat")));
        arcae.setDigestAlgorithm(LdapUtils.stringValue(attrs.get("dcmDigestAlgorithm"), null));
@@ -334,6 +411,29 @@ public class LdapArchiveConfiguration extends LdapDicomConfigurationExtension
        arcae.setLocalPIXConsumerApplication(LdapUtils.stringValue(attrs.get("hl7PIXConsumerApplication"), null));
        arcae.setRemotePIXManagerApplication(LdapUtils.stringValue(attrs.get("hl7PIXManagerApplication"), null));
        arcae.setQIDOMaxNumberOfResults(LdapUtils.intValue(attrs.get("dcmQidoMaxNumberOfResults"), 0));
+       arcae.setStoreBatchSize(
+               LdapUtils.intValue(attrs.get("dcmStoreBatchSize"), 0));
+       arcae.setStoreBatchTimeout(
+               LdapUtils.intValue(attrs.get("dcmStoreBatchTimeout"), ArchiveAEExtension.DEF_STORE_BATCH_TIMEOUT));
+       arcae.setDirectWrite(
+               LdapUtils.booleanValue(attrs.get("dcmDirectWrite"), false));
+       arcae.setMinFreeSpace(
+               LdapUtils.intValue(attrs.get("dcmMinFreeSpace"), 0));
+       arcae.setMemoizeAttributeCoercion(
+               LdapUtils.booleanValue(attrs.get("dcmMemoizeAttributeCoercion"), false));
+       arcae.setParallelQueryThreshold(
+               LdapUtils.intValue(attrs.get("dcmParallelQueryThreshold"), 0));
+       arcae.setMaxParallelQueries(
+               LdapUtils.intValue(attrs.get("dcmMaxParallelQueries"),
+                        ArchiveAEExtension.DEF_MAX_PARALLEL_QUERIES));
+       arcae.setQueryResultCacheTTL(
+               LdapUtils.intValue(attrs.get("dcmQueryResultCacheTTL"), 0));
+       arcae.setMoveStoreAssociations(
+               LdapUtils.intValue(attrs.get("dcmMoveStoreAssociations"), 1));
+       arcae.setRetrievePrefetchDepth(
+               LdapUtils.intValue(attrs.get("dcmRetrievePrefetchDepth"), 0));
+       arcae.setQIDOKeysetPagination(
+               LdapUtils.booleanValue(attrs.get("dcmQidoKeysetPagination"), false));
     }
 
     @Override
@@ -412,6 +512,42 @@ public class LdapArchiveConfiguration extends LdapDicomConfigurationExtension
                 aa.getWadoAttributesStaleTimeout(),
                 bb.getWadoAttributesStaleTimeout(),
                 0);
+        LdapUtils.storeDiff(mods, "dcmUpdateNumberOfInstancesInterval",
+                aa.getUpdateNumberOfInstancesInterval(),
+                bb.getUpdateNumberOfInstancesInterval(),
+                ArchiveDeviceExtension.DEF_UPDATE_NUMBER_OF_INSTANCES_INTERVAL);
+        LdapUtils.storeDiff(mods, "dcmCompressionThreads",
+                aa.getCompressionThreads(),
+                bb.getCompressionThreads(),
+                0);
+        LdapUtils.storeDiff(mods, "dcmCompressionQueueSize",
+                aa.getCompressionQueueSize(),
+                bb.getCompressionQueueSize(),
+                ArchiveDeviceExtension.DEF_COMPRESSION_QUEUE_SIZE);
+        LdapUtils.storeDiff(mods, "dcmFrameCompressionThreads",
+                aa.getFrameCompressionThreads(),
+                bb.getFrameCompressionThreads(),
+                0);
+        LdapUtils.storeDiff(mods, "dcmSeriesAttributesCacheSize",
+                aa.getSeriesAttributesCacheSize(),
+                bb.getSeriesAttributesCacheSize(),
+                ArchiveDeviceExtension.DEF_SERIES_ATTRIBUTES_CACHE_SIZE);
+        LdapUtils.storeDiff(mods, "dcmStudyQueryView",
+                aa.isStudyQueryView(),
+                bb.isStudyQueryView(),
+                false);
+        LdapUtils.storeDiff(mods, "dcmQueryResultCacheSize",
+                aa.getQueryResultCacheSize(),
+                bb.getQueryResultCacheSize(),
+                ArchiveDeviceExtension.DEF_QUERY_RESULT_CACHE_SIZE);
+        LdapUtils.storeDiff(mods, "dcmPatientNameIndex",
+                aa.isPatientNameIndex(),
+                bb.isPatientNameIndex(),
+                false);
+        LdapUtils.storeDiff(mods, "dcmWadoAttributesCacheSize",
+                aa.getWadoAttributesCacheSize(),
+                bb.getWadoAttributesCacheSize(),
+                ArchiveDeviceExtension.DEF_WADO_ATTRIBUTES_CACHE_SIZE);
     }
 
     @Override
@@ -428,6 +564,9 @@ public class LdapArchiveConfiguration extends LdapDicomConfigurationExtension
         LdapUtils.storeDiff(mods, "dcmInitFileSystemURI",
                 aa.getInitFileSystemURI(),
                 bb.getInitFileSystemURI());
+        LdapUtils.storeDiff(mods, "dcmFileSystemSelection",
+                aa.getFileSystemSelection(),
+                bb.getFileSystemSelection());
         LdapUtils.storeDiff(mods, "dcmSpoolDirectoryPath",
                 aa.getSpoolDirectoryPath(),
                 bb.getSpoolDirectoryPath());
@@ -526,6 +665,50 @@ public class LdapArchiveConfiguration extends LdapDicomConfigurationExtension
                 aa.getQIDOMaxNumberOfResults(),
                 bb.getQIDOMaxNumberOfResults(),
                 0);
+        LdapUtils.storeDiff(mods, "dcmStoreBatchSize",
+                aa.getStoreBatchSize(),
+                bb.getStoreBatchSize(),
+                0);
+        LdapUtils.storeDiff(mods, "dcmStoreBatchTimeout",
+                aa.getStoreBatchTimeout(),
+                bb.getStoreBatchTimeout(),
+                ArchiveAEExtension.DEF_STORE_BATCH_TIMEOUT);
+        LdapUtils.storeDiff(mods, "dcmDirectWrite",
+                aa.isDirectWrite(),
+                bb.isDirectWrite(),
+                false);
+        LdapUtils.storeDiff(mods, "dcmMinFreeSpace",
+                aa.getMinFreeSpace(),
+                bb.getMinFreeSpace(),
+                0);
+        LdapUtils.storeDiff(mods, "dcmMemoizeAttributeCoercion",
+                aa.isMemoizeAttributeCoercion(),
+                bb.isMemoizeAttributeCoercion(),
+                false);
+        LdapUtils.storeDiff(mods, "dcmParallelQueryThreshold",
+                aa.getParallelQueryThreshold(),
+                bb.getParallelQueryThreshold(),
+                0);
+        LdapUtils.storeDiff(mods, "dcmMaxParallelQueries",
+                aa.getMaxParallelQueries(),
+                bb.getMaxParallelQueries(),
+                ArchiveAEExtension.DEF_MAX_PARALLEL_QUERIES);
+        LdapUtils.storeDiff(mods, "dcmQueryResultCacheTTL",
+                aa.getQueryResultCacheTTL(),
+                bb.getQueryResultCacheTTL(),
+                0);
+        LdapUtils.storeDiff(mods, "dcmMoveStoreAssociations",
+                aa.getMoveStoreAssociations(),
+                bb.getMoveStoreAssociations(),
+                1);
+        LdapUtils.storeDiff(mods, "dcmRetrievePrefetchDepth",
+                aa.getRetrievePrefetchDepth(),
+                bb.getRetrievePrefetchDepth(),
+                0);
+        LdapUtils.storeDiff(mods, "dcmQidoKeysetPagination",
+                aa.isQIDOKeysetPagination(),
+                bb.isQIDOKeysetPagination(),
+                false);
     }
 
     @Override
@@ -63,6 +63,7 @@ import org.dcm4chee.archive.conf.ArchiveDeviceExtension;
 import org.dcm4chee.archive.conf.ArchiveHL7ApplicationExtension;
 import org.dcm4chee.archive.conf.AttributeFilter;
 import org.dcm4chee.archive.conf.Entity;
+import org.dcm4chee.archive.conf.FileSystemSelection;
 import org.dcm4chee.archive.conf.StoreDuplicate;
 
 /**
@@ -97,6 +98,29 @@ public class PreferencesArchiveConfiguration
                 arcDev.getConfigurationStaleTimeout(), 0);
         PreferencesUtils.storeNotDef(prefs, "dcmWadoAttributesStaleTimeout",
                 arcDev.getWadoAttributesStaleTimeout(), 0);
+        PreferencesUtils.storeNotDef(prefs, "dcmUpdateNumberOfInstancesInterval",
+                arcDev.getUpdateNumberOfInstancesInterval(),
+                ArchiveDeviceExtension.DEF_UPDATE_NUMBER_OF_INSTANCES_INTERVAL);
+        PreferencesUtils.storeNotDef(prefs, "dcmCompressionThreads",
+                arcDev.getCompressionThreads(), 0);
+        PreferencesUtils.storeNotDef(prefs, "dcmCompressionQueueSize",
+                arcDev.getCompressionQueueSize(),
+                ArchiveDeviceExtension.DEF_COMPRESSION_QUEUE_SIZE);
+        PreferencesUtils.storeNotDef(prefs, "dcmFrameCompressionThreads",
+                arcDev.getFrameCompressionThreads(), 0);
+        PreferencesUtils.storeNotDef(prefs, "dcmSeriesAttributesCacheSize",
+                arcDev.getSeriesAttributesCacheSize(),
+                ArchiveDeviceExtension.DEF_SERIES_ATTRIBUTES_CACHE_SIZE);
+        PreferencesUtils.storeNotDef(prefs, "dcmStudyQueryView",
+                arcDev.isStudyQueryView(), false);
+        PreferencesUtils.storeNotDef(prefs, "dcmQueryResultCacheSize",
+                arcDev.getQueryResultCacheSize(),
+                ArchiveDeviceExtension.DEF_QUERY_RESULT_CACHE_SIZE);
+        PreferencesUtils.storeNotDef(prefs, "dcmPatientNameIndex",
+                arcDev.isPatientNameIndex(), false);
+        PreferencesUtils.storeNotDef(prefs, "dcmWadoAttributesCacheSize",
+                arcDev.getWadoAttributesCacheSize(),
+                ArchiveDeviceExtension.DEF_WADO_ATTRIBUTES_CACHE_SIZE);
     }
 
     @Override
@@ -160,6 +184,7 @@ public class PreferencesArchiveConfiguration
         prefs.putBoolean("dcmArchiveNetworkAE", true);
         PreferencesUtils.storeNotNull(prefs, "dcmFileSystemGroupID", arcAE.getFileSystemGroupID());
         PreferencesUtils.storeNotNull(prefs, "dcmInitFileSystemURI", arcAE.getInitFileSystemURI());
+        PreferencesUtils.storeNotNull(prefs, "dcmFileSystemSelection", arcAE.getFileSystemSelection());
         PreferencesUtils.storeNotNull(prefs, "dcmSpoolDirectoryPath", arcAE.getSpoolDirectoryPath());
         PreferencesUtils.storeNotNull(prefs, "dcmStorageFilePathFormat", arcAE.getStorageFilePathFormat());
         PreferencesUtils.storeNotNull(prefs, "dcmDigestAlgorithm", arcAE.getDigestAlgorithm());
@@ -193,6 +218,29 @@ public class PreferencesArchiveConfiguration
         PreferencesUtils.storeNotNull(prefs, "hl7PIXConsumerApplication", arcAE.getLocalPIXConsumerApplication());
         PreferencesUtils.storeNotNull(prefs, "hl7PIXManagerApplication", arcAE.getRemotePIXManagerApplication());
         PreferencesUtils.storeNotDef(prefs, "dcmQidoMaxNumberOfResults", arcAE.getQIDOMaxNumberOfResults(), 0);
+        PreferencesUtils.storeNotDef(prefs, "dcmStoreBatchSize",
+                arcAE.getStoreBatchSize(), 0);
+        PreferencesUtils.storeNotDef(prefs, "dcmStoreBatchTimeout",
+                arcAE.getStoreBatchTimeout(), ArchiveAEExtension.DEF_STORE_BATCH_TIMEOUT);
+        PreferencesUtils.storeNotDef(prefs, "dcmDirectWrite",
+                arcAE.isDirectWrite(), false);
+        PreferencesUtils.storeNotDef(prefs, "dcmMinFreeSpace",
+                arcAE.getMinFreeSpace(), 0);
+        PreferencesUtils.storeNotDef(prefs, "dcmMemoizeAttributeCoercion",
+                arcAE.isMemoizeAttributeCoercion(), false);
+        PreferencesUtils.storeNotDef(prefs, "dcmParallelQueryThreshold",
+                arcAE.getParallelQueryThreshold(), 0);
+        PreferencesUtils.storeNotDef(prefs, "dcmMaxParallelQueries",
+                arcAE.getMaxParallelQueries(),
+                ArchiveAEExtension.DEF_MAX_PARALLEL_QUERIES);
+        PreferencesUtils.storeNotDef(prefs, "dcmQueryResultCacheTTL",
+                arcAE.getQueryResultCacheTTL(), 0);
+        PreferencesUtils.storeNotDef(prefs, "dcmMoveStoreAssociations",
+                arcAE.getMoveStoreAssociations(), 1);
+        PreferencesUtils.storeNotDef(prefs, "dcmRetrievePrefetchDepth",
+                arcAE.getRetrievePrefetchDepth(), 0);
+        PreferencesUtils.storeNotDef(prefs, "dcmQidoKeysetPagination",
+                arcAE.isQIDOKeysetPagination(), false);
     }
 
     @Override
@@ -230,6 +278,29 @@ public class PreferencesArchiveConfiguration
                 prefs.getInt("dcmConfigurationStaleTimeout", 0));
         arcdev.setWadoAttributesStaleTimeout(
                 prefs.getInt("dcmWadoAttributesStaleTimeout", 0));
+        arcdev.setUpdateNumberOfInstancesInterval(
+                prefs.getInt("dcmUpdateNumberOfInstancesInterval",
+                        ArchiveDeviceExtension.DEF_UPDATE_NUMBER_OF_INSTANCES_INTERVAL));
+        arcdev.setCompressionThreads(
+                prefs.getInt("dcmCompressionThreads", 0));
+        arcdev.setCompressionQueueSize(
+                prefs.getInt("dcmCompressionQueueSize",
+                        ArchiveDeviceExtension.DEF_COMPRESSION_QUEUE_SIZE));
+        arcdev.setFrameCompressionThreads(
+                prefs.getInt("dcmFrameCompressionThreads", 0));
+        arcdev.setSeriesAttributesCacheSize(
+                prefs.getInt("dcmSeriesAttributesCacheSize",
+                        ArchiveDeviceExtension.DEF_SERIES_ATTRIBUTES_CACHE_SIZE));
+        arcdev.setStudyQueryView(
+                prefs.getBoolean("dcmStudyQueryView", false));
+        arcdev.setQueryResultCacheSize(
+                prefs.getInt("dcmQueryResultCacheSize",
+                        ArchiveDeviceExtension.DEF_QUERY_RESULT_CACHE_SIZE));
+        arcdev.setPatientNameIndex(
+                prefs.getBoolean("dcmPatientNameIndex", false));
+        arcdev.setWadoAttributesCacheSize(
+                prefs.getInt("dcmWadoAttributesCacheSize",
+                        ArchiveDeviceExtension.DEF_WADO_ATTRIBUTES_CACHE_SIZE));
     }
 
     @Override
@@ -252,6 +323,9 @@ public class PreferencesArchiveConfiguration
         ae.addAEExtension(arcae);
         arcae.setFileSystemGroupID(prefs.get("dcmFileSystemGroupID", null));
         arcae.setInitFileSystemURI(prefs.get("dcmInitFileSystemURI", null));
+        String fsSelection = prefs.get("dcmFileSystemSelection", null);
+        if (fsSelection != null)
+            arcae.setFileSystemSelection(FileSystemSelection.valueOf(fsSelection));
         arcae.setSpoolDirectoryPath(prefs.get("dcmSpoolDirectoryPath", null));
         arcae.setStorageFilePathFormat(
                 AttributesFormat.valueOf(
@@ -290,6 +364,29 @@ public class PreferencesArchiveConfiguration
         arcae.setLocalPIXConsumerApplication(prefs.get("hl7PIXConsumerApplication", null));
         arcae.setRemotePIXManagerApplication(prefs.get("hl7PIXManagerApplication", null));
         arcae.setQIDOMaxNumberOfResults(prefs.getInt("dcmQidoMaxNumberOfResults", 0));
+        arcae.setStoreBatchSize(
+                prefs.getInt("dcmStoreBatchSize", 0));
+        arcae.setStoreBatchTimeout(
+                prefs.getInt("dcmStoreBatchTimeout", ArchiveAEExtension.DEF_STORE_BATCH_TIMEOUT));
+        arcae.setDirectWrite(
+                prefs.getBoolean("dcmDirectWrite", false));
+        arcae.setMinFreeSpace(
+                prefs.getInt("dcmMinFreeSpace", 0));
+        arcae.setMemoizeAttributeCoercion(
+                prefs.getBoolean("dcmMemoizeAttributeCoercion", false));
+        arcae.setParallelQueryThreshold(
+                prefs.getInt("dcmParallelQueryThreshold", 0));
+        arcae.setMaxParallelQueries(
+                prefs.getInt("dcmMaxParallelQueries",
+                        ArchiveAEExtension.DEF_MAX_PARALLEL_QUERIES));
+        arcae.setQueryResultCacheTTL(
+                prefs.getInt("dcmQueryResultCacheTTL", 0));
+        arcae.setMoveStoreAssociations(
+                prefs.getInt("dcmMoveStoreAssociations", 1));
+        arcae.setRetrievePrefetchDepth(
+                prefs.getInt("dcmRetrievePrefetchDepth", 0));
+        arcae.setQIDOKeysetPagination(
+                prefs.getBoolean("dcmQidoKeysetPagination", false));
     }
 
     @Override
@@ -387,6 +484,42 @@ public class PreferencesArchiveConfiguration
                 aa.getWadoAttributesStaleTimeout(),
                 bb.getWadoAttributesStaleTimeout(),
                 0);
+        PreferencesUtils.storeDiff(prefs, "dcmUpdateNumberOfInstancesInterval",
+                aa.getUpdateNumberOfInstancesInterval(),
+                bb.getUpdateNumberOfInstancesInterval(),
+                ArchiveDeviceExtension.DEF_UPDATE_NUMBER_OF_INSTANCES_INTERVAL);
+        PreferencesUtils.storeDiff(prefs, "dcmCompressionThreads",
+                aa.getCompressionThreads(),
+                bb.getCompressionThreads(),
+                0);
+        PreferencesUtils.storeDiff(prefs, "dcmCompressionQueueSize",
+                aa.getCompressionQueueSize(),
+                bb.getCompressionQueueSize(),
+                ArchiveDeviceExtension.DEF_COMPRESSION_QUEUE_SIZE);
+        PreferencesUtils.storeDiff(prefs, "dcmFrameCompressionThreads",
+                aa.getFrameCompressionThreads(),
+                bb.getFrameCompressionThreads(),
+                0);
+        PreferencesUtils.storeDiff(prefs, "dcmSeriesAttributesCacheSize",
+                aa.getSeriesAttributesCacheSize(),
+                bb.getSeriesAttributesCacheSize(),
+                ArchiveDeviceExtension.DEF_SERIES_ATTRIBUTES_CACHE_SIZE);
+        PreferencesUtils.storeDiff(prefs, "dcmStudyQueryView",
+                aa.isStudyQueryView(),
+                bb.isStudyQueryView(),
+                false);
+        PreferencesUtils.storeDiff(prefs, "dcmQueryResultCacheSize",
+                aa.getQueryResultCacheSize(),
+                bb.getQueryResultCacheSize(),
+                ArchiveDeviceExtension.DEF_QUERY_RESULT_CACHE_SIZE);
+        PreferencesUtils.storeDiff(prefs, "dcmPatientNameIndex",
+                aa.isPatientNameIndex(),
+                bb.isPatientNameIndex(),
+                false);
+        PreferencesUtils.storeDiff(prefs, "dcmWadoAttributesCacheSize",
+                aa.getWadoAttributesCacheSize(),
+                bb.getWadoAttributesCacheSize(),
+                ArchiveDeviceExtension.DEF_WADO_ATTRIBUTES_CACHE_SIZE);
     }
 
     @Override
@@ -403,6 +536,9 @@ public class PreferencesArchiveConfiguration
          PreferencesUtils.storeDiff(prefs, "dcmInitFileSystemURI",
                  aa.getInitFileSystemURI(),
                  bb.getInitFileSystemURI());
+         PreferencesUtils.storeDiff(prefs, "dcmFileSystemSelection",
+                 aa.getFileSystemSelection(),
+                 bb.getFileSystemSelection());
          PreferencesUtils.storeDiff(prefs, "dcmSpoolDirectoryPath",
                  aa.getSpoolDirectoryPath(),
                  bb.getSpoolDirectoryPath());
@@ -501,6 +637,50 @@ public class PreferencesArchiveConfiguration
                  aa.getQIDOMaxNumberOfResults(),
                  bb.getQIDOMaxNumberOfResults(),
                  0);
+        PreferencesUtils.storeDiff(prefs, "dcmStoreBatchSize",
+                aa.getStoreBatchSize(),
+                bb.getStoreBatchSize(),
+                0);
+        PreferencesUtils.storeDiff(prefs, "dcmStoreBatchTimeout",
+                aa.getStoreBatchTimeout(),
+                bb.getStoreBatchTimeout(),
+                ArchiveAEExtension.DEF_STORE_BATCH_TIMEOUT);
+        PreferencesUtils.storeDiff(prefs, "dcmDirectWrite",
+                aa.isDirectWrite(),
+                bb.isDirectWrite(),
+                false);
+        PreferencesUtils.storeDiff(prefs, "dcmMinFreeSpace",
+                aa.getMinFreeSpace(),
+                bb.getMinFreeSpace(),
+                0);
+        PreferencesUtils.storeDiff(prefs, "dcmMemoizeAttributeCoercion",
+                aa.isMemoizeAttributeCoercion(),
+                bb.isMemoizeAttributeCoercion(),
+                false);
+        PreferencesUtils.storeDiff(prefs, "dcmParallelQueryThreshold",
+                aa.getParallelQueryThreshold(),
+                bb.getParallelQueryThreshold(),
+                0);
+        PreferencesUtils.storeDiff(prefs, "dcmMaxParallelQueries",
+                aa.getMaxParallelQueries(),
+                bb.getMaxParallelQueries(),
+                ArchiveAEExtension.DEF_MAX_PARALLEL_QUERIES);
+        PreferencesUtils.storeDiff(prefs, "dcmQueryResultCacheTTL",
+                aa.getQueryResultCacheTTL(),
+                bb.getQueryResultCacheTTL(),
+                0);
+        PreferencesUtils.storeDiff(prefs, "dcmMoveStoreAssociations",
+                aa.getMoveStoreAssociations(),
+                bb.getMoveStoreAssociations(),
+                1);
+        PreferencesUtils.storeDiff(prefs, "dcmRetrievePrefetchDepth",
+                aa.getRetrievePrefetchDepth(),
+                bb.getRetrievePrefetchDepth(),
+                0);
+        PreferencesUtils.storeDiff(prefs, "dcmQidoKeysetPagination",
+                aa.isQIDOKeysetPagination(),
+                bb.isQIDOKeysetPagination(),
+                false);
     }
 
     @Override
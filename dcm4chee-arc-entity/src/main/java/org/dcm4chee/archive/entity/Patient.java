@@ -75,7 +75,15 @@ import org.dcm4chee.archive.conf.AttributeFilter;
 @NamedQuery(
     name="Patient.findByPatientID",
     query="SELECT p FROM Patient p LEFT JOIN FETCH p.issuerOfPatientID " +
-          "WHERE p.patientID = ?1" )
+          "WHERE p.patientID = ?1" ),
+@NamedQuery(
+    name="Patient.findNameSoundexAfterPk",
+    query="SELECT p.pk, p.patientFamilyNameSoundex, p.patientGivenNameSoundex " +
+          "FROM Patient p WHERE p.pk > ?1 ORDER BY p.pk" ),
+@NamedQuery(
+    name="Patient.findNameSoundexUpdatedSince",
+    query="SELECT p.pk, p.patientFamilyNameSoundex, p.patientGivenNameSoundex " +
+          "FROM Patient p WHERE p.updatedTime >= ?1" )
 })
 @Entity
 @Table(name = "patient")
@@ -86,6 +94,11 @@ public class Patient implements Serializable {
     public static final String FIND_BY_PATIENT_ID =
             "Patient.findByPatientID";
 
+    public static final String FIND_NAME_SOUNDEX_AFTER_PK =
+            "Patient.findNameSoundexAfterPk";
+    public static final String FIND_NAME_SOUNDEX_UPDATED_SINCE =
+            "Patient.findNameSoundexUpdatedSince";
+
     @Id
     @GeneratedValue(strategy=GenerationType.IDENTITY)
     @Column(name = "pk")
@@ -87,6 +87,13 @@ import org.dcm4chee.archive.conf.AttributeFilter;
             + "s.study.encodedAttributes, "
             + "s.study.patient.encodedAttributes) "
             + "FROM Series s WHERE s.pk = ?1"),
+@NamedQuery(
+    name="Series.patientStudySeriesAttributesOfSeries",
+    query="SELECT s.pk, s.study.pk, "
+            + "s.encodedAttributes, "
+            + "s.study.encodedAttributes, "
+            + "s.study.patient.encodedAttributes "
+            + "FROM Series s WHERE s.pk IN (?1)"),
 @NamedQuery(
     name="Series.queryPatientStudySeriesAttributes",
     query="SELECT NEW org.dcm4chee.archive.entity.QueryPatientStudySeriesAttributes("
@@ -123,6 +130,7 @@ public class Series implements Serializable {
 
     public static final String FIND_BY_SERIES_INSTANCE_UID = "Series.findBySeriesInstanceUID";
     public static final String PATIENT_STUDY_SERIES_ATTRIBUTES = "Series.patientStudySeriesAttributes";
+    public static final String PATIENT_STUDY_SERIES_ATTRIBUTES_OF_SERIES = "Series.patientStudySeriesAttributesOfSeries";
     public static final String QUERY_PATIENT_STUDY_SERIES_ATTRIBUTES = "Series.queryPatientStudySeriesAttributes";
     public static final String NUMBER_OF_SERIES = "Series.numberOfSeries";
     public static final String UPDATE_NUMBER_OF_INSTANCES = "Series.updateNumberOfInstances";
@@ -44,6 +44,7 @@ import java.util.Collection;
 import java.util.Date;
 
 import javax.persistence.Basic;
+import javax.persistence.CascadeType;
 import javax.persistence.Column;
 import javax.persistence.Entity;
 import javax.persistence.FetchType;
@@ -57,6 +58,7 @@ import javax.persistence.ManyToOne;
 import javax.persistence.NamedQueries;
 import javax.persistence.NamedQuery;
 import javax.persistence.OneToMany;
+import javax.persistence.OneToOne;
 import javax.persistence.PrePersist;
 import javax.persistence.PreUpdate;
 import javax.persistence.Table;
@@ -227,6 +229,10 @@ public class Study implements Serializable {
     @OneToMany(mappedBy = "study", orphanRemoval = true)
     private Collection<Series> series;
 
+    @OneToOne(fetch = FetchType.LAZY, cascade = CascadeType.REMOVE)
+    @JoinColumn(name = "query_view_fk")
+    private StudyQueryView queryView;
+
     @Override
     public String toString() {
         return "Study[pk=" + pk
@@ -472,6 +478,14 @@ public class Study implements Serializable {
         return series;
     }
 
+    public StudyQueryView getQueryView() {
+        return queryView;
+    }
+
+    public void setQueryView(StudyQueryView queryView) {
+        this.queryView = queryView;
+    }
+
     public void setAttributes(Attributes attrs, AttributeFilter filter, FuzzyStr fuzzyStr) {
         studyInstanceUID = attrs.getString(Tag.StudyInstanceUID);
         studyID = attrs.getString(Tag.StudyID, "*");
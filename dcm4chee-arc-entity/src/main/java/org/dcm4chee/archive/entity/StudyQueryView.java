@@ -0,0 +1,199 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+package org.dcm4chee.archive.entity;
+
+import java.io.Serializable;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Table;
+
+import org.dcm4che.data.Attributes;
+import org.dcm4che.data.ElementDictionary;
+import org.dcm4che.data.Tag;
+import org.dcm4che.util.StringUtils;
+
+/**
+ * Flattened copy of the Patient and Study attributes most commonly returned
+ * by Study level queries, so such queries can be answered without decoding
+ * the attribute blobs of {@link Patient} and {@link Study}. Shares its
+ * primary key with the referencing {@link Study}.
+ * 
+ * @author agent <agent@local>
+ */
+@Entity
+@Table(name = "study_query_view")
+public class StudyQueryView implements Serializable {
+
+    private static final long serialVersionUID = 3475816478862411463L;
+
+    /**
+     * Attributes provided by {@link #getValues()}, in ascending order.
+     */
+    public static final int[] TAGS = {
+        Tag.SpecificCharacterSet,
+        Tag.StudyDate,
+        Tag.StudyTime,
+        Tag.AccessionNumber,
+        Tag.ReferringPhysicianName,
+        Tag.StudyDescription,
+        Tag.PatientName,
+        Tag.PatientID,
+        Tag.IssuerOfPatientID,
+        Tag.PatientBirthDate,
+        Tag.PatientSex,
+        Tag.StudyInstanceUID,
+        Tag.StudyID
+    };
+
+    @Id
+    @Column(name = "pk")
+    private long pk;
+
+    @Column(name = "charset")
+    private String specificCharacterSet;
+
+    @Column(name = "study_date")
+    private String studyDate;
+
+    @Column(name = "study_time")
+    private String studyTime;
+
+    @Column(name = "accession_no")
+    private String accessionNumber;
+
+    @Column(name = "ref_physician")
+    private String referringPhysicianName;
+
+    @Column(name = "study_desc")
+    private String studyDescription;
+
+    @Column(name = "pat_name")
+    private String patientName;
+
+    @Column(name = "pat_id")
+    private String patientID;
+
+    @Column(name = "pat_id_issuer")
+    private String issuerOfPatientID;
+
+    @Column(name = "pat_birthdate")
+    private String patientBirthDate;
+
+    @Column(name = "pat_sex")
+    private String patientSex;
+
+    @Column(name = "study_iuid")
+    private String studyInstanceUID;
+
+    @Column(name = "study_id")
+    private String studyID;
+
+    public StudyQueryView() {}
+
+    public StudyQueryView(Study study) {
+        pk = study.getPk();
+        update(study);
+    }
+
+    @Override
+    public String toString() {
+        return "StudyQueryView[pk=" + pk
+                + ", uid=" + studyInstanceUID
+                + "]";
+    }
+
+    public long getPk() {
+        return pk;
+    }
+
+    public String[] getValues() {
+        return new String[] {
+            specificCharacterSet,
+            studyDate,
+            studyTime,
+            accessionNumber,
+            referringPhysicianName,
+            studyDescription,
+            patientName,
+            patientID,
+            issuerOfPatientID,
+            patientBirthDate,
+            patientSex,
+            studyInstanceUID,
+            studyID
+        };
+    }
+
+    public void update(Study study) throws BlobCorruptedException {
+        Attributes studyAttrs = study.getAttributes();
+        Attributes patAttrs = study.getPatient().getAttributes();
+        specificCharacterSet = valueOf(
+                studyAttrs.containsValue(Tag.SpecificCharacterSet)
+                        ? studyAttrs : patAttrs,
+                Tag.SpecificCharacterSet);
+        studyDate = valueOf(studyAttrs, Tag.StudyDate);
+        studyTime = valueOf(studyAttrs, Tag.StudyTime);
+        accessionNumber = valueOf(studyAttrs, Tag.AccessionNumber);
+        referringPhysicianName = valueOf(studyAttrs, Tag.ReferringPhysicianName);
+        studyDescription = valueOf(studyAttrs, Tag.StudyDescription);
+        patientName = valueOf(patAttrs, Tag.PatientName);
+        patientID = valueOf(patAttrs, Tag.PatientID);
+        issuerOfPatientID = valueOf(patAttrs, Tag.IssuerOfPatientID);
+        patientBirthDate = valueOf(patAttrs, Tag.PatientBirthDate);
+        patientSex = valueOf(patAttrs, Tag.PatientSex);
+        studyInstanceUID = valueOf(studyAttrs, Tag.StudyInstanceUID);
+        studyID = valueOf(studyAttrs, Tag.StudyID);
+    }
+
+    private static String valueOf(Attributes attrs, int tag) {
+        String[] ss = attrs.getStrings(tag);
+        return ss != null ? StringUtils.concat(ss, '\\') : null;
+    }
+
+    /**
+     * Sets the attribute specified by {@code tag} to the value stored in the
+     * corresponding column, if not {@code null}.
+     */
+    public static void setValue(Attributes attrs, int tag, String value) {
+        if (value != null)
+            attrs.setString(tag, ElementDictionary.vrOf(tag, null),
+                    StringUtils.split(value, '\\'));
+    }
+}
@@ -75,6 +75,11 @@ import org.dcm4che.net.service.BasicCEchoSCP;
 import org.dcm4che.net.service.DicomServiceRegistry;
 import org.dcm4chee.archive.common.IDWithIssuer;
 import org.dcm4chee.archive.conf.ArchiveDeviceExtension;
+import org.dcm4chee.archive.dao.NumberOfInstancesQueue;
+import org.dcm4chee.archive.dao.NumberOfInstancesUpdater;
+import org.dcm4chee.archive.dao.PatientNameIndex;
+import org.dcm4chee.archive.dao.PatientNameIndexLoader;
+import org.dcm4chee.archive.dao.SeriesAttributesCache;
 import org.dcm4chee.archive.hl7.PatientUpdateService;
 import org.dcm4chee.archive.jms.JMSService;
 import org.dcm4chee.archive.jms.JMSService.MessageCreator;
@@ -84,10 +89,15 @@ import org.dcm4chee.archive.mpps.MPPSSCU;
 import org.dcm4chee.archive.mwl.MWLCFindSCP;
 import org.dcm4chee.archive.pix.PIXConsumer;
 import org.dcm4chee.archive.query.CFindSCP;
+import org.dcm4chee.archive.query.dao.QueryResultCache;
 import org.dcm4chee.archive.retrieve.CGetSCP;
 import org.dcm4chee.archive.retrieve.CMoveSCP;
+import org.dcm4chee.archive.retrieve.PassThroughDataWriter;
 import org.dcm4chee.archive.stgcmt.StgCmtSCP;
 import org.dcm4chee.archive.store.CStoreSCP;
+import org.dcm4chee.archive.store.CoercionPlan;
+import org.dcm4chee.archive.store.dao.FileSystemSelector;
+import org.dcm4chee.archive.store.dao.SeriesCache;
 import org.dcm4chee.archive.wado.WadoAttributesCache;
 
 /**
@@ -125,6 +135,12 @@ public class Archive extends DeviceService implements ArchiveMBean {
     @Inject
     private IANSCU ianSCU;
 
+    @Inject
+    private NumberOfInstancesUpdater numberOfInstancesUpdater;
+
+    @Inject
+    private PatientNameIndexLoader patientNameIndexLoader;
+
     @Inject
     private CFindSCP.PatientRoot patientRootFindSCP;
 
@@ -205,6 +221,13 @@ public class Archive extends DeviceService implements ArchiveMBean {
         initImageReaderFactory();
         initImageWriterFactory();
         initAuditLogger();
+        if (isRunning()) {
+            numberOfInstancesUpdater.stop();
+            numberOfInstancesUpdater.start(device);
+            patientNameIndexLoader.start(device);
+            storeSCP.stop();
+            storeSCP.start(device);
+        }
         device.rebindConnections();
     }
 
@@ -234,6 +257,9 @@ public class Archive extends DeviceService implements ArchiveMBean {
         aeCache.setStaleTimeout(staleTimeout);
         hl7AppCache.setStaleTimeout(staleTimeout);
         WadoAttributesCache.INSTANCE.setStaleTimeout(ext.getWadoAttributesStaleTimeout());
+        WadoAttributesCache.INSTANCE.setMaxSize(ext.getWadoAttributesCacheSize());
+        SeriesAttributesCache.INSTANCE.setMaxSize(ext.getSeriesAttributesCacheSize());
+        QueryResultCache.INSTANCE.setMaxSize(ext.getQueryResultCacheSize());
     }
 
     private DicomServiceRegistry serviceRegistry() {
@@ -262,6 +288,9 @@ public class Archive extends DeviceService implements ArchiveMBean {
         mppsSCU.start(device);
         ianSCU.start(device);
         stgCmtSCP.start(device);
+        storeSCP.start(device);
+        numberOfInstancesUpdater.start(device);
+        patientNameIndexLoader.start(device);
         jmsService.start();
         log(AuditMessages.EventTypeCode.ApplicationStart);
     }
@@ -273,6 +302,9 @@ public class Archive extends DeviceService implements ArchiveMBean {
         mppsSCU.stop();
         ianSCU.stop();
         stgCmtSCP.stop();
+        storeSCP.stop();
+        numberOfInstancesUpdater.stop();
+        patientNameIndexLoader.stop();
         log(EventTypeCode.ApplicationStop);
     }
 
@@ -356,6 +388,51 @@ public class Archive extends DeviceService implements ArchiveMBean {
                 false, 0, 0);
     }
 
+    @Override
+    public String getStoreSeriesCacheStatistics() {
+        return SeriesCache.statistics();
+    }
+
+    @Override
+    public String getNumberOfInstancesUpdaterStatistics() {
+        return NumberOfInstancesQueue.INSTANCE.statistics();
+    }
+
+    @Override
+    public String getCompressionStatistics() {
+        return storeSCP.getCompressionStatistics();
+    }
+
+    @Override
+    public String getFileSystemStatistics() {
+        return FileSystemSelector.INSTANCE.statistics();
+    }
+
+    @Override
+    public String getCoercionStatistics() {
+        return CoercionPlan.statistics();
+    }
+
+    @Override
+    public String getSeriesAttributesCacheStatistics() {
+        return SeriesAttributesCache.INSTANCE.statistics();
+    }
+
+    @Override
+    public String getQueryResultCacheStatistics() {
+        return QueryResultCache.INSTANCE.statistics();
+    }
+
+    @Override
+    public String getPatientNameIndexStatistics() {
+        return PatientNameIndex.INSTANCE.statistics();
+    }
+
+    @Override
+    public String getRetrievePassThroughStatistics() {
+        return PassThroughDataWriter.statistics();
+    }
+
     public IDWithIssuer[] pixQuery(ApplicationEntity ae, IDWithIssuer pid) {
         return pixConsumer.pixQuery(ae, pid);
     }
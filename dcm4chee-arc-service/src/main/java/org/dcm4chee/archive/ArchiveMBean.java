@@ -64,4 +64,40 @@ public interface ArchiveMBean {
     @Path("reload")
     void reload() throws Exception;
 
+    @GET
+    @Path("statistics/store-series-cache")
+    String getStoreSeriesCacheStatistics();
+
+    @GET
+    @Path("statistics/number-of-instances-updater")
+    String getNumberOfInstancesUpdaterStatistics();
+
+    @GET
+    @Path("statistics/compression")
+    String getCompressionStatistics();
+
+    @GET
+    @Path("statistics/file-systems")
+    String getFileSystemStatistics();
+
+    @GET
+    @Path("statistics/coercion")
+    String getCoercionStatistics();
+
+    @GET
+    @Path("statistics/series-attributes-cache")
+    String getSeriesAttributesCacheStatistics();
+
+    @GET
+    @Path("statistics/query-result-cache")
+    String getQueryResultCacheStatistics();
+
+    @GET
+    @Path("statistics/patient-name-index")
+    String getPatientNameIndexStatistics();
+
+    @GET
+    @Path("statistics/retrieve-pass-through")
+    String getRetrievePassThroughStatistics();
+
 }
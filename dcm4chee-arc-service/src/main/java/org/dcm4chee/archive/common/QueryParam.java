@@ -66,6 +66,11 @@ public class QueryParam {
     private boolean returnOtherPatientNames;
     private Issuer defaultIssuerOfPatientID;
     private Issuer defaultIssuerOfAccessionNumber;
+    private boolean studyQueryView;
+    private boolean returnAllAttributes;
+    private int parallelQueryThreshold;
+    private int maxParallelQueries;
+    private int queryResultCacheTTL;
 
     public final boolean isCombinedDatetimeMatching() {
         return combinedDatetimeMatching;
@@ -139,6 +144,46 @@ public class QueryParam {
         this.showRejectedInstances = showRejectedInstances;
     }
 
+    public final boolean isStudyQueryView() {
+        return studyQueryView;
+    }
+
+    public final void setStudyQueryView(boolean studyQueryView) {
+        this.studyQueryView = studyQueryView;
+    }
+
+    public final boolean isReturnAllAttributes() {
+        return returnAllAttributes;
+    }
+
+    public final void setReturnAllAttributes(boolean returnAllAttributes) {
+        this.returnAllAttributes = returnAllAttributes;
+    }
+
+    public final int getParallelQueryThreshold() {
+        return parallelQueryThreshold;
+    }
+
+    public final void setParallelQueryThreshold(int parallelQueryThreshold) {
+        this.parallelQueryThreshold = parallelQueryThreshold;
+    }
+
+    public final int getMaxParallelQueries() {
+        return maxParallelQueries;
+    }
+
+    public final void setMaxParallelQueries(int maxParallelQueries) {
+        this.maxParallelQueries = maxParallelQueries;
+    }
+
+    public final int getQueryResultCacheTTL() {
+        return queryResultCacheTTL;
+    }
+
+    public final void setQueryResultCacheTTL(int queryResultCacheTTL) {
+        this.queryResultCacheTTL = queryResultCacheTTL;
+    }
+
     public Issuer getDefaultIssuerOfPatientID() {
         return defaultIssuerOfPatientID;
     }
@@ -172,6 +217,10 @@ public class QueryParam {
         queryParam.setShowRejectedInstances(aeExt.isShowRejectedInstances());
         queryParam.setReturnOtherPatientIDs(aeExt.isReturnOtherPatientIDs());
         queryParam.setReturnOtherPatientNames(aeExt.isReturnOtherPatientNames());
+        queryParam.setStudyQueryView(devExt.isStudyQueryView());
+        queryParam.setParallelQueryThreshold(aeExt.getParallelQueryThreshold());
+        queryParam.setMaxParallelQueries(aeExt.getMaxParallelQueries());
+        queryParam.setQueryResultCacheTTL(aeExt.getQueryResultCacheTTL());
 
         return queryParam;
     }
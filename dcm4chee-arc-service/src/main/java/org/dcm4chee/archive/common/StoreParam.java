@@ -71,6 +71,7 @@ public class StoreParam {
     private String[] retrieveAETs;
     private String externalRetrieveAET;
     private List<StoreDuplicate> storeDuplicates;
+    private boolean studyQueryView;
 
     public final boolean isStoreOriginalAttributes() {
         return storeOriginalAttributes;
@@ -80,6 +81,14 @@ public class StoreParam {
         this.storeOriginalAttributes = storeOriginalAttributes;
     }
 
+    public final boolean isStudyQueryView() {
+        return studyQueryView;
+    }
+
+    public final void setStudyQueryView(boolean studyQueryView) {
+        this.studyQueryView = studyQueryView;
+    }
+
     public final String getModifyingSystem() {
         return modifyingSystem;
     }
@@ -227,6 +236,7 @@ public class StoreParam {
                 (Code) devExt.getDataRetentionPeriodExpiredCode());
         storeParam.setFuzzyStr(devExt.getFuzzyStr());
         storeParam.setAttributeFilters(devExt.getAttributeFilters());
+        storeParam.setStudyQueryView(devExt.isStudyQueryView());
         return storeParam;
     }
 
@@ -0,0 +1,173 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+package org.dcm4chee.archive.dao;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.TransactionSynchronizationRegistry;
+
+import org.dcm4chee.archive.entity.Series;
+
+/**
+ * Collects primary keys of Series and Studies, whose number of related
+ * instances was modified by committed transactions, for deferred update by
+ * {@link NumberOfInstancesUpdater}.
+ * 
+ * @author agent <agent@local>
+ *
+ */
+public enum NumberOfInstancesQueue {
+
+    INSTANCE;
+
+    private static final Object TX_KEY = NumberOfInstancesQueue.class;
+
+    private final Set<Long> seriesPks =
+            Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+    private final Set<Long> studyPks =
+            Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+    private final AtomicLong updatedSeries = new AtomicLong();
+    private final AtomicLong updatedStudies = new AtomicLong();
+
+    private volatile boolean enabled;
+
+    private static final class Dirty implements Synchronization {
+        final Set<Long> seriesPks = new LinkedHashSet<Long>();
+        final Set<Long> studyPks = new LinkedHashSet<Long>();
+
+        @Override
+        public void beforeCompletion() {
+        }
+
+        @Override
+        public void afterCompletion(int status) {
+            if (status == Status.STATUS_COMMITTED)
+                INSTANCE.offer(seriesPks, studyPks);
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+        if (!enabled) {
+            seriesPks.clear();
+            studyPks.clear();
+        }
+    }
+
+    /**
+     * Marks the number of related instances of the specified Series and of
+     * its Study as modified by the current transaction. The primary keys are
+     * queued after the transaction was committed, so the update cannot read
+     * uncommitted counts and overwrite a subsequent reset.
+     */
+    public void markDirty(TransactionSynchronizationRegistry tsr,
+            Series series) {
+        markDirty(tsr, series.getPk(), series.getStudy().getPk());
+    }
+
+    /**
+     * Marks the number of related instances of the specified Series and
+     * Study as modified by the current transaction. The primary keys are
+     * queued after the transaction was committed, so the update cannot read
+     * uncommitted counts and overwrite a subsequent reset.
+     */
+    public void markDirty(TransactionSynchronizationRegistry tsr,
+            long seriesPk, long studyPk) {
+        if (!enabled)
+            return;
+
+        Dirty dirty = (Dirty) tsr.getResource(TX_KEY);
+        if (dirty == null) {
+            dirty = new Dirty();
+            tsr.putResource(TX_KEY, dirty);
+            tsr.registerInterposedSynchronization(dirty);
+        }
+        dirty.seriesPks.add(seriesPk);
+        dirty.studyPks.add(studyPk);
+    }
+
+    private void offer(Set<Long> seriesPks, Set<Long> studyPks) {
+        if (enabled) {
+            this.seriesPks.addAll(seriesPks);
+            this.studyPks.addAll(studyPks);
+        }
+    }
+
+    List<Long> pollSeriesPks(int maxSize) {
+        return poll(seriesPks, maxSize);
+    }
+
+    List<Long> pollStudyPks(int maxSize) {
+        return poll(studyPks, maxSize);
+    }
+
+    private static List<Long> poll(Set<Long> pks, int maxSize) {
+        List<Long> list = new ArrayList<Long>(Math.min(pks.size(), maxSize));
+        for (Iterator<Long> it = pks.iterator();
+                it.hasNext() && list.size() < maxSize;) {
+            list.add(it.next());
+            it.remove();
+        }
+        return list;
+    }
+
+    void updated(int numSeries, int numStudies) {
+        updatedSeries.addAndGet(numSeries);
+        updatedStudies.addAndGet(numStudies);
+    }
+
+    public String statistics() {
+        return String.format(
+                "enabled=%b, pendingSeries=%d, pendingStudies=%d, updatedSeries=%d, updatedStudies=%d",
+                enabled, seriesPks.size(), studyPks.size(),
+                updatedSeries.get(), updatedStudies.get());
+    }
+}
@@ -0,0 +1,111 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+package org.dcm4chee.archive.dao;
+
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import javax.ejb.EJB;
+
+import org.dcm4che.net.Device;
+import org.dcm4chee.archive.conf.ArchiveDeviceExtension;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Updates the number of Series/Study related instances of Series and
+ * Studies queued in {@link NumberOfInstancesQueue} in the background, so
+ * queries find them precalculated instead of counting them on demand.
+ * 
+ * @author agent <agent@local>
+ *
+ */
+public class NumberOfInstancesUpdater implements Runnable {
+
+    private static final Logger LOG =
+            LoggerFactory.getLogger(NumberOfInstancesUpdater.class);
+
+    private static final int BATCH_SIZE = 100;
+
+    @EJB
+    private SeriesService seriesService;
+
+    private ScheduledFuture<?> running;
+
+    public synchronized void start(Device device) {
+        ArchiveDeviceExtension arcDev =
+                device.getDeviceExtension(ArchiveDeviceExtension.class);
+        int interval = arcDev.getUpdateNumberOfInstancesInterval();
+        if (interval <= 0)
+            return;
+
+        NumberOfInstancesQueue.INSTANCE.setEnabled(true);
+        running = device.scheduleWithFixedDelay(this, interval, interval,
+                TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stop() {
+        if (running != null) {
+            running.cancel(false);
+            running = null;
+        }
+        NumberOfInstancesQueue.INSTANCE.setEnabled(false);
+    }
+
+    @Override
+    public void run() {
+        NumberOfInstancesQueue queue = NumberOfInstancesQueue.INSTANCE;
+        try {
+            List<Long> seriesPks;
+            while (!(seriesPks = queue.pollSeriesPks(BATCH_SIZE)).isEmpty()) {
+                seriesService.updateNumberOfSeriesRelatedInstances(seriesPks);
+                queue.updated(seriesPks.size(), 0);
+            }
+            List<Long> studyPks;
+            while (!(studyPks = queue.pollStudyPks(BATCH_SIZE)).isEmpty()) {
+                seriesService.updateNumberOfStudyRelatedInstances(studyPks);
+                queue.updated(0, studyPks.size());
+            }
+        } catch (Exception e) {
+            // counts of not updated Series/Studies remain reset and will be
+            // calculated on demand by the next query
+            LOG.warn("Failed to update number of related instances", e);
+        }
+    }
+}
@@ -0,0 +1,372 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+package org.dcm4chee.archive.dao;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.TransactionSynchronizationRegistry;
+
+/**
+ * In-memory index of the primary keys of Patients by the fuzzy codes of
+ * their family and given names, so fuzzy semantic matching of Patient Names
+ * resolves candidate Patients without scanning the soundex columns of the
+ * patient table. The index is loaded by {@link PatientNameIndexLoader} and
+ * updated after commit of transactions which create, update or delete
+ * Patients.
+ * 
+ * <p>The index may contain outdated codes of Patients, so candidates have
+ * still to be matched by the database. Changes of Patients are only visible
+ * in the index after completion of the committed transaction, so a query
+ * running between commit and {@code afterCompletion} may miss them. Changes
+ * of transactions already in flight when the index is enabled are not
+ * tracked by {@link #update}; {@link PatientNameIndexLoader} therefore
+ * re-loads Patients updated since shortly before the index was enabled,
+ * before it marks the index as ready.
+ * 
+ * @author agent <agent@local>
+ */
+public enum PatientNameIndex {
+
+    INSTANCE;
+
+    /**
+     * Maximal number of candidates, which are returned by
+     * {@link #candidates}.
+     */
+    public static final int MAX_CANDIDATES = 1000;
+
+    private static final long[] EMPTY = {};
+
+    private static final Object TX_KEY = PatientNameIndex.class;
+
+    private static final class Pks {
+        long[] pks = new long[1];
+        int size;
+
+        boolean add(long pk) {
+            int i = Arrays.binarySearch(pks, 0, size, pk);
+            if (i >= 0)
+                return false;
+
+            i = -(i + 1);
+            if (size == pks.length)
+                pks = Arrays.copyOf(pks, size << 1);
+            System.arraycopy(pks, i, pks, i + 1, size - i);
+            pks[i] = pk;
+            size++;
+            return true;
+        }
+
+        boolean remove(long pk) {
+            int i = Arrays.binarySearch(pks, 0, size, pk);
+            if (i >= 0) {
+                System.arraycopy(pks, i + 1, pks, i, --size - i);
+            }
+            return size == 0;
+        }
+    }
+
+    private static final class Update {
+        final long pk;
+        final String prevFamilyName;
+        final String prevGivenName;
+        final String familyName;
+        final String givenName;
+
+        Update(long pk, String prevFamilyName, String prevGivenName,
+                String familyName, String givenName) {
+            this.pk = pk;
+            this.prevFamilyName = prevFamilyName;
+            this.prevGivenName = prevGivenName;
+            this.familyName = familyName;
+            this.givenName = givenName;
+        }
+    }
+
+    private static final class Updates implements Synchronization {
+        final List<Update> list = new ArrayList<Update>();
+
+        @Override
+        public void beforeCompletion() {
+        }
+
+        @Override
+        public void afterCompletion(int status) {
+            if (status == Status.STATUS_COMMITTED)
+                INSTANCE.apply(list);
+        }
+    }
+
+    private final TreeMap<String, Pks> familyNames = new TreeMap<String, Pks>();
+    private final TreeMap<String, Pks> givenNames = new TreeMap<String, Pks>();
+
+    private volatile boolean enabled;
+    private volatile boolean ready;
+    private int epoch;
+    private int size;
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Returns {@code true}, if the index is enabled and completely loaded.
+     */
+    public boolean isReady() {
+        return ready;
+    }
+
+    /**
+     * Enables or disables the index. Disabling clears the index.
+     */
+    public synchronized void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+        this.ready = false;
+        epoch++;
+        familyNames.clear();
+        givenNames.clear();
+        size = 0;
+    }
+
+    /**
+     * Returns the epoch, which has to be passed to subsequent {@code load}
+     * invocations, so a load of a previously enabled index is ignored.
+     */
+    public synchronized int epoch() {
+        return epoch;
+    }
+
+    /**
+     * Marks the index as ready, if it was not re-enabled or disabled since
+     * {@link #epoch} returned the specified epoch.
+     */
+    public synchronized void loaded(int epoch) {
+        if (this.epoch == epoch)
+            ready = enabled;
+    }
+
+    /**
+     * Adds Patients given by primary key, fuzzy family and given name.
+     * Returns {@code false}, if the index was re-enabled or disabled since
+     * {@link #epoch} returned the specified epoch.
+     */
+    public synchronized boolean load(int epoch, List<Object[]> patients) {
+        if (!enabled || this.epoch != epoch)
+            return false;
+
+        for (Object[] patient : patients) {
+            long pk = (Long) patient[0];
+            // re-loaded Patients are already counted
+            if (add(familyNames, (String) patient[1], pk))
+                size++;
+            add(givenNames, (String) patient[2], pk);
+        }
+        return true;
+    }
+
+    /**
+     * Updates the fuzzy names of the Patient with the specified primary key
+     * after commit of the current transaction. Previous names are
+     * {@code null} for new Patients, new names are {@code null} for deleted
+     * Patients.
+     */
+    public void update(TransactionSynchronizationRegistry tsr, long pk,
+            String prevFamilyName, String prevGivenName,
+            String familyName, String givenName) {
+        if (!enabled)
+            return;
+
+        Updates updates = (Updates) tsr.getResource(TX_KEY);
+        if (updates == null) {
+            updates = new Updates();
+            tsr.putResource(TX_KEY, updates);
+            tsr.registerInterposedSynchronization(updates);
+        }
+        updates.list.add(new Update(pk, prevFamilyName, prevGivenName,
+                familyName, givenName));
+    }
+
+    private synchronized void apply(List<Update> updates) {
+        if (!enabled)
+            return;
+
+        for (Update update : updates) {
+            if (update.prevFamilyName != null) {
+                remove(familyNames, update.prevFamilyName, update.pk);
+                remove(givenNames, update.prevGivenName, update.pk);
+                size--;
+            }
+            if (update.familyName != null) {
+                add(familyNames, update.familyName, update.pk);
+                add(givenNames, update.givenName, update.pk);
+                size++;
+            }
+        }
+    }
+
+    private static boolean add(Map<String, Pks> map, String name, long pk) {
+        Pks pks = map.get(name);
+        if (pks == null)
+            map.put(name, pks = new Pks());
+        return pks.add(pk);
+    }
+
+    private static void remove(Map<String, Pks> map, String name, long pk) {
+        Pks pks = map.get(name);
+        if (pks != null && pks.remove(pk))
+            map.remove(name);
+    }
+
+    /**
+     * Returns the sorted primary keys of Patients, which may match the
+     * specified names by fuzzy semantic matching, or {@code null}, if the
+     * index is not ready or the number of candidates exceeds
+     * {@link #MAX_CANDIDATES}. Names of zero length are not matched.
+     */
+    public synchronized long[] candidates(String familyName,
+            String fuzzyFamilyName, String givenName, String fuzzyGivenName,
+            boolean matchUnknown) {
+        if (!ready)
+            return null;
+
+        long[] result;
+        if (fuzzyFamilyName.length() == 0 || fuzzyGivenName.length() == 0) {
+            String name = fuzzyFamilyName.length() > 0 ? familyName : givenName;
+            String fuzzyName = fuzzyFamilyName.length() > 0
+                    ? fuzzyFamilyName : fuzzyGivenName;
+            result = union(
+                    lookup(familyNames, name, fuzzyName),
+                    lookup(givenNames, name, fuzzyName));
+            if (matchUnknown)
+                result = union(result, intersect(
+                        pksOf(familyNames, "*"),
+                        pksOf(givenNames, "*")));
+        } else {
+            long[] family = lookup(familyNames, familyName, fuzzyFamilyName);
+            long[] given = lookup(givenNames, givenName, fuzzyGivenName);
+            long[] familyAsGiven =
+                    lookup(givenNames, familyName, fuzzyFamilyName);
+            long[] givenAsFamily =
+                    lookup(familyNames, givenName, fuzzyGivenName);
+            result = union(intersect(given, family),
+                    intersect(familyAsGiven, givenAsFamily));
+            if (matchUnknown) {
+                long[] noFamily = pksOf(familyNames, "*");
+                long[] noGiven = pksOf(givenNames, "*");
+                result = union(result, union(
+                        intersect(union(given, familyAsGiven), noFamily),
+                        intersect(union(family, givenAsFamily), noGiven)));
+                result = union(result, intersect(noFamily, noGiven));
+            }
+        }
+        return result.length > MAX_CANDIDATES ? null : result;
+    }
+
+    private static long[] lookup(TreeMap<String, Pks> map, String name,
+            String fuzzyName) {
+        if (!name.endsWith("*"))
+            return pksOf(map, fuzzyName);
+
+        long[] result = EMPTY;
+        for (Pks pks : map.subMap(fuzzyName, fuzzyName + '\uffff').values())
+            result = union(result, Arrays.copyOf(pks.pks, pks.size));
+        return result;
+    }
+
+    private static long[] pksOf(Map<String, Pks> map, String fuzzyName) {
+        Pks pks = map.get(fuzzyName);
+        return pks != null ? Arrays.copyOf(pks.pks, pks.size) : EMPTY;
+    }
+
+    private static long[] union(long[] a, long[] b) {
+        if (a.length == 0)
+            return b;
+        if (b.length == 0)
+            return a;
+
+        long[] c = new long[a.length + b.length];
+        int i = 0, j = 0, k = 0;
+        while (i < a.length && j < b.length) {
+            long pk = a[i] <= b[j] ? a[i] : b[j];
+            if (a[i] == pk)
+                i++;
+            if (b[j] == pk)
+                j++;
+            c[k++] = pk;
+        }
+        while (i < a.length)
+            c[k++] = a[i++];
+        while (j < b.length)
+            c[k++] = b[j++];
+        return k == c.length ? c : Arrays.copyOf(c, k);
+    }
+
+    private static long[] intersect(long[] a, long[] b) {
+        long[] c = new long[Math.min(a.length, b.length)];
+        int i = 0, j = 0, k = 0;
+        while (i < a.length && j < b.length) {
+            if (a[i] < b[j])
+                i++;
+            else if (a[i] > b[j])
+                j++;
+            else {
+                c[k++] = a[i++];
+                j++;
+            }
+        }
+        return k == c.length ? c : Arrays.copyOf(c, k);
+    }
+
+    public String statistics() {
+        int size, familyNames, givenNames;
+        synchronized (this) {
+            size = this.size;
+            familyNames = this.familyNames.size();
+            givenNames = this.givenNames.size();
+        }
+        return String.format(
+                "enabled=%b, ready=%b, patients=%d, familyNames=%d, givenNames=%d",
+                enabled, ready, size, familyNames, givenNames);
+    }
+}
@@ -0,0 +1,126 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+package org.dcm4chee.archive.dao;
+
+import java.util.Date;
+import java.util.List;
+
+import javax.ejb.EJB;
+
+import org.dcm4che.net.Device;
+import org.dcm4chee.archive.conf.ArchiveDeviceExtension;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Loads the {@link PatientNameIndex} from the patient table in the
+ * background, in batches ordered by primary key.
+ * 
+ * @author agent <agent@local>
+ *
+ */
+public class PatientNameIndexLoader {
+
+    private static final Logger LOG =
+            LoggerFactory.getLogger(PatientNameIndexLoader.class);
+
+    private static final int BATCH_SIZE = 10000;
+
+    /**
+     * Patients updated within this time before the index was enabled are
+     * re-loaded, to catch changes of transactions which were already in
+     * flight and therefore not tracked by the index. Corresponds to the
+     * default transaction timeout.
+     */
+    private static final long RELOAD_MARGIN = 5 * 60 * 1000L;
+
+    @EJB
+    private PatientService patientService;
+
+    public synchronized void start(Device device) {
+        ArchiveDeviceExtension arcDev =
+                device.getDeviceExtension(ArchiveDeviceExtension.class);
+        PatientNameIndex index = PatientNameIndex.INSTANCE;
+        if (arcDev.isPatientNameIndex() == index.isEnabled())
+            return;
+
+        final Date updatedSince =
+                new Date(System.currentTimeMillis() - RELOAD_MARGIN);
+        index.setEnabled(arcDev.isPatientNameIndex());
+        if (index.isEnabled()) {
+            final int epoch = index.epoch();
+            device.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    load(epoch, updatedSince);
+                }
+            });
+        }
+    }
+
+    public synchronized void stop() {
+        PatientNameIndex.INSTANCE.setEnabled(false);
+    }
+
+    private void load(int epoch, Date updatedSince) {
+        PatientNameIndex index = PatientNameIndex.INSTANCE;
+        long start = System.currentTimeMillis();
+        long pk = 0;
+        int count = 0;
+        try {
+            List<Object[]> patients;
+            while (!(patients = patientService.findNameSoundexAfter(pk,
+                    BATCH_SIZE)).isEmpty()) {
+                if (!index.load(epoch, patients))
+                    return;
+                pk = (Long) patients.get(patients.size() - 1)[0];
+                count += patients.size();
+            }
+            if (!index.load(epoch,
+                    patientService.findNameSoundexUpdatedSince(updatedSince)))
+                return;
+            index.loaded(epoch);
+            LOG.info("Loaded {} Patient Names into index in {} ms",
+                    count, System.currentTimeMillis() - start);
+        } catch (Exception e) {
+            // fuzzy matching of Patient Names falls back to the database
+            LOG.warn("Failed to load Patient Name index", e);
+        }
+    }
+}
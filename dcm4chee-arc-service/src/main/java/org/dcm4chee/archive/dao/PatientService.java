@@ -41,16 +41,20 @@ package org.dcm4chee.archive.dao;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Date;
 import java.util.Iterator;
 import java.util.List;
 
+import javax.annotation.Resource;
 import javax.ejb.EJB;
 import javax.ejb.Stateless;
 import javax.persistence.EntityManager;
 import javax.persistence.NoResultException;
 import javax.persistence.NonUniqueResultException;
 import javax.persistence.PersistenceContext;
+import javax.persistence.TemporalType;
 import javax.persistence.TypedQuery;
+import javax.transaction.TransactionSynchronizationRegistry;
 
 import org.dcm4che.data.Attributes;
 import org.dcm4chee.archive.common.IDWithIssuer;
@@ -61,10 +65,13 @@ import org.dcm4chee.archive.entity.Issuer;
 import org.dcm4chee.archive.entity.Patient;
 import org.dcm4chee.archive.entity.PerformedProcedureStep;
 import org.dcm4chee.archive.entity.Study;
+import org.dcm4chee.archive.entity.StudyQueryView;
 import org.dcm4chee.archive.entity.Visit;
 import org.dcm4chee.archive.exception.NonUniquePatientException;
 import org.dcm4chee.archive.exception.PatientCircularMergedException;
 import org.dcm4chee.archive.exception.PatientMergedException;
+import org.dcm4chee.archive.query.dao.QueryResultCache;
+import org.dcm4chee.archive.store.dao.SeriesCache;
 
 /**
  * @author Gunter Zeilinger <gunterze@gmail.com>
@@ -75,6 +82,9 @@ public class PatientService {
     @PersistenceContext
     private EntityManager em;
 
+    @Resource
+    private TransactionSynchronizationRegistry tsr;
+
     @EJB
     private IssuerService issuerService;
 
@@ -136,7 +146,11 @@ public class PatientService {
                 IDWithIssuer pid = IDWithIssuer.pidWithIssuer(data, null);
                 patient.setIssuerOfPatientID(findOrCreateIssuer(pid));
             }
-            patient.setAttributes(patientAttrs, filter, storeParam.getFuzzyStr());
+            setAttributes(patient, patientAttrs, filter, storeParam);
+            updateQueryViews(patient.getStudies());
+            SeriesAttributesCache.INSTANCE.invalidateAll(tsr);
+            SeriesCache.invalidateAll(tsr);
+            QueryResultCache.INSTANCE.invalidateAll(tsr);
         }
     }
 
@@ -148,7 +162,11 @@ public class PatientService {
             if (patient.getIssuerOfPatientID() == null) {
                 patient.setIssuerOfPatientID(findOrCreateIssuer(pid));
             }
-            patient.setAttributes(patientAttrs, filter, storeParam.getFuzzyStr());
+            setAttributes(patient, patientAttrs, filter, storeParam);
+            updateQueryViews(patient.getStudies());
+            SeriesAttributesCache.INSTANCE.invalidateAll(tsr);
+            SeriesCache.invalidateAll(tsr);
+            QueryResultCache.INSTANCE.invalidateAll(tsr);
         }
     }
 
@@ -167,9 +185,24 @@ public class PatientService {
                 storeParam.getAttributeFilter(Entity.Patient),
                 storeParam.getFuzzyStr());
         em.persist(patient);
+        PatientNameIndex.INSTANCE.update(tsr, patient.getPk(), null, null,
+                patient.getPatientFamilyNameSoundex(),
+                patient.getPatientGivenNameSoundex());
+        QueryResultCache.INSTANCE.invalidate(tsr, pid != null ? pid.id : null);
         return patient;
     }
 
+    private void setAttributes(Patient patient, Attributes attrs,
+            AttributeFilter filter, StoreParam storeParam) {
+        String prevFamilyName = patient.getPatientFamilyNameSoundex();
+        String prevGivenName = patient.getPatientGivenNameSoundex();
+        patient.setAttributes(attrs, filter, storeParam.getFuzzyStr());
+        PatientNameIndex.INSTANCE.update(tsr, patient.getPk(),
+                prevFamilyName, prevGivenName,
+                patient.getPatientFamilyNameSoundex(),
+                patient.getPatientGivenNameSoundex());
+    }
+
     public Patient updateOrCreatePatient(Attributes data,
             StoreParam storeParam) {
         AttributeFilter filter = storeParam.getAttributeFilter(Entity.Patient);
@@ -186,7 +219,11 @@ public class PatientService {
                 if (pid != null && pid.issuer != null)
                     patient.setIssuerOfPatientID(
                             findOrCreateIssuer(pid));
-                patient.setAttributes(patientAttrs, filter, storeParam.getFuzzyStr());
+                setAttributes(patient, patientAttrs, filter, storeParam);
+                updateQueryViews(patient.getStudies());
+                SeriesAttributesCache.INSTANCE.invalidateAll(tsr);
+                SeriesCache.invalidateAll(tsr);
+                QueryResultCache.INSTANCE.invalidateAll(tsr);
             }
         } catch (NonUniqueResultException e) {
             throw new NonUniquePatientException(pid);
@@ -217,6 +254,7 @@ public class PatientService {
         if (studies != null)
             for (Study study : studies)
                 study.setPatient(pat);
+        updateQueryViews(studies);
         Collection<Visit> visits = prior.getVisits();
         if (visits != null)
             for (Visit visit : visits)
@@ -227,6 +265,18 @@ public class PatientService {
             for (PerformedProcedureStep pps : ppss)
                 pps.setPatient(pat);
         prior.setMergedWith(pat);
+        SeriesAttributesCache.INSTANCE.invalidateAll(tsr);
+        SeriesCache.invalidateAll(tsr);
+        QueryResultCache.INSTANCE.invalidateAll(tsr);
+    }
+
+    private static void updateQueryViews(Collection<Study> studies) {
+        if (studies != null)
+            for (Study study : studies) {
+                StudyQueryView queryView = study.getQueryView();
+                if (queryView != null)
+                    queryView.update(study);
+            }
     }
 
     public List<Patient> findPatients(IDWithIssuer pid) {
@@ -252,6 +302,21 @@ public class PatientService {
         return list;
     }
 
+    public List<Object[]> findNameSoundexAfter(long pk, int maxResults) {
+        return em.createNamedQuery(
+                    Patient.FIND_NAME_SOUNDEX_AFTER_PK, Object[].class)
+                .setParameter(1, pk)
+                .setMaxResults(maxResults)
+                .getResultList();
+    }
+
+    public List<Object[]> findNameSoundexUpdatedSince(Date updatedSince) {
+        return em.createNamedQuery(
+                    Patient.FIND_NAME_SOUNDEX_UPDATED_SINCE, Object[].class)
+                .setParameter(1, updatedSince, TemporalType.TIMESTAMP)
+                .getResultList();
+    }
+
     private Patient findPatient(IDWithIssuer pid) {
         List<Patient> list = findPatients(pid);
         if (list.isEmpty())
@@ -269,6 +334,12 @@ public class PatientService {
             throw new NonUniqueResultException();
         Patient patient = list.get(0);
         em.remove(patient);
+        PatientNameIndex.INSTANCE.update(tsr, patient.getPk(),
+                patient.getPatientFamilyNameSoundex(),
+                patient.getPatientGivenNameSoundex(), null, null);
+        SeriesAttributesCache.INSTANCE.invalidateAll(tsr);
+        SeriesCache.invalidateAll(tsr);
+        QueryResultCache.INSTANCE.invalidateAll(tsr);
         return patient;
     }
 
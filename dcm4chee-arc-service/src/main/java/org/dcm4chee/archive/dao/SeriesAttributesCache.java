@@ -0,0 +1,318 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+package org.dcm4chee.archive.dao;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.TransactionSynchronizationRegistry;
+
+import org.dcm4che.data.Attributes;
+
+/**
+ * Caches decoded Patient, Study and Series attributes by the primary key of
+ * the Series, shared by Query, Retrieve and WADO services. Entries are
+ * invalidated after commit of transactions which modify the Series, its
+ * Study or the Patient. Values are loaded without holding the lock and only
+ * put into the cache if no invalidation of the same Series or Study was
+ * committed meanwhile, so a concurrent load cannot resurrect outdated
+ * attributes. Therefore the stamps of the last
+ * {@value #MAX_INVALIDATION_STAMPS} invalidations of Series and Studies are
+ * kept; loads started before older invalidations are not cached.
+ * 
+ * <p>Cached attributes are shared and must not be modified by callers.
+ * 
+ * @author agent <agent@local>
+ *
+ */
+public enum SeriesAttributesCache {
+
+    INSTANCE;
+
+    private static final Object TX_KEY = SeriesAttributesCache.class;
+
+    private static final int MAX_INVALIDATION_STAMPS = 10000;
+
+    private static final class Entry {
+        final Long studyPk;
+        final Attributes attrs;
+        Attributes queryAttrs;
+        Attributes queryAttrsWithRejected;
+
+        Entry(Long studyPk, Attributes attrs) {
+            this.studyPk = studyPk;
+            this.attrs = attrs;
+        }
+    }
+
+    private static final class Invalidation implements Synchronization {
+        final Set<Long> seriesPks = new LinkedHashSet<Long>();
+        final Set<Long> studyPks = new LinkedHashSet<Long>();
+        boolean all;
+
+        @Override
+        public void beforeCompletion() {
+        }
+
+        @Override
+        public void afterCompletion(int status) {
+            if (status == Status.STATUS_COMMITTED)
+                INSTANCE.invalidate(this);
+        }
+    }
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+
+    @SuppressWarnings("serial")
+    private final Map<Long, Entry> cache =
+            new LinkedHashMap<Long, Entry>(16, 0.75f, true) {
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Long, Entry> eldest) {
+                    if (size() <= maxSize)
+                        return false;
+
+                    unindex(eldest.getKey(), eldest.getValue().studyPk);
+                    return true;
+                }
+            };
+
+    private final Map<Long, Set<Long>> seriesPksOfStudy =
+            new HashMap<Long, Set<Long>>();
+    private final Map<Long, Long> seriesStamps = new InvalidationStamps();
+    private final Map<Long, Long> studyStamps = new InvalidationStamps();
+
+    @SuppressWarnings("serial")
+    private final class InvalidationStamps extends LinkedHashMap<Long, Long> {
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Long> eldest) {
+            if (size() <= MAX_INVALIDATION_STAMPS)
+                return false;
+
+            minStamp = Math.max(minStamp, eldest.getValue());
+            return true;
+        }
+    }
+
+    private volatile int maxSize;
+    private long clock;
+    private long minStamp;
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public synchronized void setMaxSize(int maxSize) {
+        this.maxSize = maxSize;
+        if (maxSize <= 0) {
+            cache.clear();
+            seriesPksOfStudy.clear();
+        } else
+            for (Iterator<Map.Entry<Long, Entry>> it =
+                    cache.entrySet().iterator(); cache.size() > maxSize;) {
+                Map.Entry<Long, Entry> e = it.next();
+                it.remove();
+                unindex(e.getKey(), e.getValue().studyPk);
+            }
+    }
+
+    /**
+     * Returns the stamp, which has to be passed to subsequent {@code put}
+     * invocations after loading attributes from the database.
+     */
+    synchronized long stamp() {
+        return clock;
+    }
+
+    synchronized Attributes get(Long seriesPk) {
+        if (maxSize <= 0)
+            return null;
+
+        Entry entry = cache.get(seriesPk);
+        if (entry == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return entry.attrs;
+    }
+
+    synchronized Attributes getQueryAttributes(Long seriesPk,
+            boolean showRejectedInstances) {
+        if (maxSize <= 0)
+            return null;
+
+        Entry entry = cache.get(seriesPk);
+        Attributes attrs = entry == null ? null
+                : showRejectedInstances ? entry.queryAttrsWithRejected
+                                        : entry.queryAttrs;
+        if (attrs == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return attrs;
+    }
+
+    synchronized void put(long stamp, Long seriesPk, Long studyPk,
+            Attributes attrs, Attributes queryAttrs,
+            Attributes queryAttrsWithRejected) {
+        if (maxSize <= 0 || invalidatedSince(stamp, seriesPk, studyPk))
+            return;
+
+        Entry entry = new Entry(studyPk, attrs);
+        entry.queryAttrs = queryAttrs;
+        entry.queryAttrsWithRejected = queryAttrsWithRejected;
+        Entry prev = cache.put(seriesPk, entry);
+        if (prev != null)
+            unindex(seriesPk, prev.studyPk);
+        Set<Long> seriesPks = seriesPksOfStudy.get(studyPk);
+        if (seriesPks == null)
+            seriesPksOfStudy.put(studyPk, seriesPks = new LinkedHashSet<Long>());
+        seriesPks.add(seriesPk);
+    }
+
+    private boolean invalidatedSince(long stamp, Long seriesPk, Long studyPk) {
+        return stamp < minStamp
+                || invalidatedSince(stamp, seriesStamps.get(seriesPk))
+                || invalidatedSince(stamp, studyStamps.get(studyPk));
+    }
+
+    private static boolean invalidatedSince(long stamp, Long invalidated) {
+        return invalidated != null && invalidated > stamp;
+    }
+
+    private void unindex(Long seriesPk, Long studyPk) {
+        Set<Long> seriesPks = seriesPksOfStudy.get(studyPk);
+        if (seriesPks != null && seriesPks.remove(seriesPk)
+                && seriesPks.isEmpty())
+            seriesPksOfStudy.remove(studyPk);
+    }
+
+    /**
+     * Invalidates cached attributes of the specified Series and of all
+     * Series of the specified Study after commit of the current transaction.
+     */
+    public void invalidate(TransactionSynchronizationRegistry tsr,
+            Long seriesPk, Long studyPk) {
+        if (maxSize <= 0)
+            return;
+
+        Invalidation inv = invalidation(tsr);
+        inv.seriesPks.add(seriesPk);
+        inv.studyPks.add(studyPk);
+    }
+
+    /**
+     * Invalidates all cached attributes after commit of the current
+     * transaction, e.g. on update of Patient attributes.
+     */
+    public void invalidateAll(TransactionSynchronizationRegistry tsr) {
+        if (maxSize > 0)
+            invalidation(tsr).all = true;
+    }
+
+    private Invalidation invalidation(TransactionSynchronizationRegistry tsr) {
+        Invalidation inv = (Invalidation) tsr.getResource(TX_KEY);
+        if (inv == null) {
+            inv = new Invalidation();
+            tsr.putResource(TX_KEY, inv);
+            tsr.registerInterposedSynchronization(inv);
+        }
+        return inv;
+    }
+
+    private synchronized void invalidate(Invalidation inv) {
+        invalidations.incrementAndGet();
+        if (inv.all) {
+            clear();
+            return;
+        }
+        long stamp = ++clock;
+        for (Long seriesPk : inv.seriesPks) {
+            Entry entry = cache.remove(seriesPk);
+            if (entry != null)
+                unindex(seriesPk, entry.studyPk);
+            stamp(seriesStamps, seriesPk, stamp);
+        }
+        for (Long studyPk : inv.studyPks) {
+            Set<Long> seriesPks = seriesPksOfStudy.remove(studyPk);
+            if (seriesPks != null)
+                cache.keySet().removeAll(seriesPks);
+            stamp(studyStamps, studyPk, stamp);
+        }
+    }
+
+    private static void stamp(Map<Long, Long> stamps, Long pk, long stamp) {
+        // re-insert to keep the stamps in invalidation order
+        stamps.remove(pk);
+        stamps.put(pk, stamp);
+    }
+
+    public synchronized void clear() {
+        minStamp = ++clock;
+        cache.clear();
+        seriesPksOfStudy.clear();
+        seriesStamps.clear();
+        studyStamps.clear();
+    }
+
+    public String statistics() {
+        long hits = this.hits.get();
+        long lookups = hits + misses.get();
+        int size;
+        synchronized (this) {
+            size = cache.size();
+        }
+        return String.format(
+                "size=%d, lookups=%d, hits=%d, hitRatio=%.3f, invalidations=%d",
+                size, lookups, hits,
+                lookups == 0 ? 0.0 : (double) hits / lookups,
+                invalidations.get());
+    }
+}
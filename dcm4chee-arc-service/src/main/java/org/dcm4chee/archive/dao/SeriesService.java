@@ -37,6 +37,12 @@
  * ***** END LICENSE BLOCK ***** */
 package org.dcm4chee.archive.dao;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
 import javax.ejb.Stateless;
 import javax.persistence.EntityManager;
 import javax.persistence.PersistenceContext;
@@ -49,6 +55,7 @@ import org.dcm4chee.archive.entity.PatientStudySeriesAttributes;
 import org.dcm4chee.archive.entity.QueryPatientStudySeriesAttributes;
 import org.dcm4chee.archive.entity.Series;
 import org.dcm4chee.archive.entity.Study;
+import org.dcm4chee.archive.store.dao.SeriesCache;
 
 /**
  * @author Gunter Zeilinger <gunterze@gmail.com>
@@ -57,31 +64,94 @@ import org.dcm4chee.archive.entity.Study;
 @Stateless
 public class SeriesService {
 
+    private static final int MAX_SERIES_PER_QUERY = 500;
+
     @PersistenceContext
     private EntityManager em;
 
     public Attributes getAttributes(Long seriesPk) {
-        PatientStudySeriesAttributes result = (PatientStudySeriesAttributes)
-                em.createNamedQuery(Series.PATIENT_STUDY_SERIES_ATTRIBUTES)
-                  .setParameter(1, seriesPk)
-                  .getSingleResult();
-        return result.getAttributes();
+        SeriesAttributesCache cache = SeriesAttributesCache.INSTANCE;
+        Attributes attrs = cache.get(seriesPk);
+        if (attrs != null)
+            return attrs;
+
+        long stamp = cache.stamp();
+        QueryPatientStudySeriesAttributes result = querySeriesAttributes(seriesPk);
+        attrs = result.getAttributes();
+        cache.put(stamp, seriesPk, result.getStudyPk(), attrs, null, null);
+        return attrs;
+    }
+
+    /**
+     * Returns the Patient, Study and Series attributes of the specified
+     * Series, fetching attributes not already cached by one query for up to
+     * {@value #MAX_SERIES_PER_QUERY} Series.
+     */
+    public Map<Long, Attributes> getAttributes(Collection<Long> seriesPks) {
+        SeriesAttributesCache cache = SeriesAttributesCache.INSTANCE;
+        Map<Long, Attributes> result =
+                new HashMap<Long, Attributes>(seriesPks.size() * 4 / 3 + 1);
+        List<Long> notCached = new ArrayList<Long>();
+        for (Long seriesPk : seriesPks) {
+            Attributes attrs = cache.get(seriesPk);
+            if (attrs != null)
+                result.put(seriesPk, attrs);
+            else
+                notCached.add(seriesPk);
+        }
+        for (int i = 0, n = notCached.size(); i < n;
+                i += MAX_SERIES_PER_QUERY) {
+            long stamp = cache.stamp();
+            List<Object[]> tuples = em.createNamedQuery(
+                        Series.PATIENT_STUDY_SERIES_ATTRIBUTES_OF_SERIES,
+                        Object[].class)
+                    .setParameter(1, notCached.subList(i,
+                            Math.min(n, i + MAX_SERIES_PER_QUERY)))
+                    .getResultList();
+            for (Object[] tuple : tuples) {
+                Long seriesPk = (Long) tuple[0];
+                Attributes attrs = new PatientStudySeriesAttributes(
+                        (byte[]) tuple[2], (byte[]) tuple[3], (byte[]) tuple[4])
+                    .getAttributes();
+                cache.put(stamp, seriesPk, (Long) tuple[1], attrs,
+                        null, null);
+                result.put(seriesPk, attrs);
+            }
+        }
+        return result;
     }
 
     public Attributes getAttributes(Long seriesPk, QueryParam queryParam) {
-        QueryPatientStudySeriesAttributes result = (QueryPatientStudySeriesAttributes)
-                em.createNamedQuery(Series.QUERY_PATIENT_STUDY_SERIES_ATTRIBUTES)
-                  .setParameter(1, seriesPk)
-                  .getSingleResult();
-        Attributes attrs = result.getAttributes();
+        SeriesAttributesCache cache = SeriesAttributesCache.INSTANCE;
+        boolean showRejectedInstances = queryParam.isShowRejectedInstances();
+        Attributes attrs = cache.getQueryAttributes(seriesPk, showRejectedInstances);
+        if (attrs != null)
+            return attrs;
+
+        long stamp = cache.stamp();
+        QueryPatientStudySeriesAttributes result = querySeriesAttributes(seriesPk);
+        attrs = result.getAttributes();
         if (result.isNumberOfSeriesRelatedInstancesInitialized())
             result.initNumberOfSeriesRelatedInstances(
                     calculateNumberOfSeriesRelatedInstances(seriesPk));
         if (result.isNumberOfStudyRelatedInstancesInitialized())
             result.initNumberOfStudyRelatedInstances(
                     calculateNumberOfStudyRelatedInstances(result.getStudyPk()));
-        result.setQueryAttributes(attrs, queryParam.isShowRejectedInstances());
-        return attrs;
+        Attributes queryAttrs = new Attributes(attrs);
+        result.setQueryAttributes(queryAttrs, false);
+        Attributes queryAttrsWithRejected = new Attributes(attrs);
+        result.setQueryAttributes(queryAttrsWithRejected, true);
+        cache.put(stamp, seriesPk, result.getStudyPk(), attrs,
+                queryAttrs, queryAttrsWithRejected);
+        return showRejectedInstances ? queryAttrsWithRejected : queryAttrs;
+    }
+
+    private QueryPatientStudySeriesAttributes querySeriesAttributes(
+            Long seriesPk) {
+        return (QueryPatientStudySeriesAttributes)
+                em.createNamedQuery(Series.QUERY_PATIENT_STUDY_SERIES_ATTRIBUTES)
+                  .setParameter(1, seriesPk)
+                  .getSingleResult();
     }
 
     public int[] calculateNumberOfSeriesRelatedInstances(Long seriesPk) {
@@ -98,6 +168,7 @@ public class SeriesService {
             .setParameter(2, numA)
             .setParameter(3, seriesPk)
             .executeUpdate();
+        SeriesCache.seriesNumberOfInstancesCalculated(seriesPk);
         return new int[] { num, numA };
     }
 
@@ -127,7 +198,20 @@ public class SeriesService {
             .setParameter(4, numInstancesA)
             .setParameter(5, studyPk)
             .executeUpdate();
+        SeriesCache.studyNumberOfInstancesCalculated(studyPk);
         return new int[] { numSeries, numSeriesA, numInstances, numInstancesA };
     }
 
+    public void updateNumberOfSeriesRelatedInstances(
+            Collection<Long> seriesPks) {
+        for (Long seriesPk : seriesPks)
+            calculateNumberOfSeriesRelatedInstances(seriesPk);
+    }
+
+    public void updateNumberOfStudyRelatedInstances(
+            Collection<Long> studyPks) {
+        for (Long studyPk : studyPks)
+            calculateNumberOfStudyRelatedInstances(studyPk);
+    }
+
 }
@@ -43,11 +43,13 @@ import java.util.Collection;
 import java.util.HashSet;
 import java.util.List;
 
+import javax.annotation.Resource;
 import javax.ejb.EJB;
 import javax.ejb.Stateless;
 import javax.persistence.EntityManager;
 import javax.persistence.NoResultException;
 import javax.persistence.PersistenceContext;
+import javax.transaction.TransactionSynchronizationRegistry;
 
 import org.dcm4che.data.Attributes;
 import org.dcm4che.data.Sequence;
@@ -59,8 +61,10 @@ import org.dcm4chee.archive.common.StoreParam;
 import org.dcm4chee.archive.conf.AttributeFilter;
 import org.dcm4chee.archive.conf.Entity;
 import org.dcm4chee.archive.dao.CodeService;
+import org.dcm4chee.archive.dao.NumberOfInstancesQueue;
 import org.dcm4chee.archive.dao.PatientService;
 import org.dcm4chee.archive.dao.RequestService;
+import org.dcm4chee.archive.dao.SeriesAttributesCache;
 import org.dcm4chee.archive.entity.Availability;
 import org.dcm4chee.archive.entity.Instance;
 import org.dcm4chee.archive.entity.Patient;
@@ -68,6 +72,7 @@ import org.dcm4chee.archive.entity.PerformedProcedureStep;
 import org.dcm4chee.archive.entity.ScheduledProcedureStep;
 import org.dcm4chee.archive.entity.Series;
 import org.dcm4chee.archive.entity.Study;
+import org.dcm4chee.archive.query.dao.QueryResultCache;
 
 /**
  * @author Gunter Zeilinger <gunterze@gmail.com>
@@ -78,6 +83,9 @@ public class MPPSService {
     @PersistenceContext
     private EntityManager em;
 
+    @Resource
+    private TransactionSynchronizationRegistry tsr;
+
     @EJB
     private PatientService patService;
 
@@ -164,6 +172,11 @@ public class MPPSService {
             Study study = series.getStudy();
             series.resetNumberOfInstances();
             study.resetNumberOfInstances();
+            NumberOfInstancesQueue.INSTANCE.markDirty(tsr, series);
+            SeriesAttributesCache.INSTANCE.invalidate(tsr,
+                    series.getPk(), study.getPk());
+            QueryResultCache.INSTANCE.invalidate(tsr,
+                    study.getPatient().getPatientID());
             iuids.clear();
         }
     }
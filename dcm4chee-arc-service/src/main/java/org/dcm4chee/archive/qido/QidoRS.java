@@ -42,8 +42,10 @@ import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.EnumSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.UUID;
 
 import javax.ws.rs.GET;
 import javax.ws.rs.Path;
@@ -53,7 +55,9 @@ import javax.ws.rs.QueryParam;
 import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.core.Context;
 import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.ResponseBuilder;
 import javax.ws.rs.core.Response.Status;
 import javax.ws.rs.core.StreamingOutput;
 import javax.ws.rs.core.UriInfo;
@@ -78,11 +82,11 @@ import org.dcm4che.util.StringUtils;
 import org.dcm4chee.archive.Archive;
 import org.dcm4chee.archive.common.IDWithIssuer;
 import org.dcm4chee.archive.conf.ArchiveAEExtension;
+import org.dcm4chee.archive.query.dao.QueryCursor;
 import org.dcm4chee.archive.query.dao.QueryService;
 import org.dcm4chee.archive.util.BeanLocator;
 import org.dcm4chee.archive.util.query.Builder;
 import org.dcm4chee.archive.wado.MediaTypes;
-import org.jboss.resteasy.plugins.providers.multipart.MultipartRelatedOutput;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -164,6 +168,9 @@ public class QidoRS {
     @QueryParam("orderby")
     private List<String> orderby;
 
+    @QueryParam("cursor")
+    private String cursor;
+
     private OrderSpecifier<?>[] orderSpecifiers;
 
     private final Attributes keys = new Attributes(64);
@@ -287,40 +294,132 @@ public class QidoRS {
             String seriesInstanceUID, int[] includetags, Output output) {
         init(method, qrlevel, relational, studyInstanceUID, seriesInstanceUID,
                 includetags);
+        boolean streaming = false;
         try {
             queryService.createQuery(qrlevel, pids, keys, queryParam);
             int status = STATUS_OK;
             int maxResults = aeExt.getQIDOMaxNumberOfResults();
             int offset = Math.max(this.offset, 0);
             int limit = Math.max(this.limit, 0);
-            if (maxResults > 0 && (limit == 0 || limit >  maxResults)) {
-                int numResults = (int) (queryService.count() - offset);
-                if (numResults == 0)
-                    return Response.ok().build();
-    
-                if (numResults > maxResults) {
-                    limit = maxResults;
-                    status = STATUS_PARTIAL_CONTENT;
+            boolean limitedByMaxResults =
+                    maxResults > 0 && (limit == 0 || limit > maxResults);
+            // page by SQL OFFSET, unless keyset pagination is configured
+            if (offset > 0 || !aeExt.isQIDOKeysetPagination()) {
+                if (cursor != null)
+                    throw new WebApplicationException(Status.BAD_REQUEST);
+
+                if (limitedByMaxResults) {
+                    int numResults = (int) (queryService.count() - offset);
+                    if (numResults <= 0)
+                        return Response.ok().build();
+
+                    if (numResults > maxResults) {
+                        limit = maxResults;
+                        status = STATUS_PARTIAL_CONTENT;
+                    }
+                }
+                if (offset > 0)
+                    queryService.offset(offset);
+
+                if (limit > 0)
+                    queryService.limit(limit);
+
+                if (orderSpecifiers != null)
+                    queryService.orderBy(orderSpecifiers);
+            } else {
+                int pageSize = limitedByMaxResults ? maxResults : limit;
+                if (pageSize > 0 || cursor != null || orderSpecifiers != null) {
+                    try {
+                        queryService.keyset(orderSpecifiers, cursor != null
+                                ? QueryCursor.valueOf(cursor)
+                                : null);
+                    } catch (IllegalArgumentException e) {
+                        throw new WebApplicationException(e, Status.BAD_REQUEST);
+                    }
                 }
+                if (pageSize > 0)
+                    return searchPage(qrlevel, output, pageSize,
+                            limitedByMaxResults);
             }
-            if (offset > 0)
-                queryService.offset(offset);
-            
-            if (limit > 0)
-                queryService.limit(limit);
-    
-            if (orderSpecifiers != null)
-                queryService.orderBy(orderSpecifiers);
-    
             queryService.executeQuery();
             if (!queryService.hasMoreMatches())
                 return Response.ok().build();
-    
-            return Response.status(status).entity(
-                    output.entity(this, qrlevel)).build();
+
+            streaming = true;
+            return response(status, output, qrlevel, matches()).build();
         } finally {
-            cleanup();
+            if (!streaming)
+                cleanup();
+        }
+    }
+
+    /**
+     * Fetches one more match than returned, to decide if there are further
+     * matches without a separate count query. If so, the response contains a
+     * Link header with the URI of the next page, which continues after the
+     * last returned match by a seek predicate instead of SQL OFFSET.
+     */
+    private Response searchPage(QueryRetrieveLevel qrlevel, Output output,
+            int pageSize, boolean limitedByMaxResults) {
+        queryService.limit(pageSize + 1);
+        queryService.executeQuery();
+        List<Attributes> matches = new ArrayList<Attributes>(pageSize);
+        for (int i = 0; i < pageSize && queryService.hasMoreMatches(); i++) {
+            Attributes match = queryService.nextMatch();
+            if (match != null)
+                matches.add(match);
+        }
+        boolean moreMatches = queryService.hasMoreMatches();
+        if (matches.isEmpty() && !moreMatches)
+            return Response.ok().build();
+
+        QueryCursor next = null;
+        if (moreMatches) {
+            next = queryService.getCursor();
+            // complete the page, so its matches are cached by the QueryService
+            queryService.nextMatch();
         }
+
+        ResponseBuilder builder = response(
+                moreMatches && limitedByMaxResults
+                        ? STATUS_PARTIAL_CONTENT
+                        : STATUS_OK,
+                output, qrlevel, matches.iterator());
+        if (moreMatches)
+            builder.header("Link", "<" + uriInfo.getRequestUriBuilder()
+                    .replaceQueryParam("cursor", next)
+                    .build() + ">; rel=\"next\"");
+        return builder.build();
+    }
+
+    private ResponseBuilder response(int status, Output output,
+            QueryRetrieveLevel qrlevel, Iterator<Attributes> matches) {
+        StreamingOutput entity = output.entity(this, qrlevel, matches);
+        ResponseBuilder builder = Response.status(status).entity(entity);
+        if (entity instanceof MultipartRelatedStreamingOutput)
+            builder.type(((MultipartRelatedStreamingOutput) entity)
+                    .getMediaType());
+        return builder;
+    }
+
+    private Iterator<Attributes> matches() {
+        return new Iterator<Attributes>() {
+
+            @Override
+            public boolean hasNext() {
+                return queryService.hasMoreMatches();
+            }
+
+            @Override
+            public Attributes next() {
+                return queryService.nextMatch();
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
     }
 
     private void init(String method, QueryRetrieveLevel qrlevel,
@@ -382,6 +481,9 @@ public class QidoRS {
         queryService = BeanLocator.lookup(QueryService.class);
         queryParam = org.dcm4chee.archive.common.QueryParam.valueOf(
                 ae, queryOpts, accessControlIDs());
+        queryParam.setReturnAllAttributes(includeAll);
+        if (offset > 0 || orderSpecifiers != null)
+            queryParam.setParallelQueryThreshold(0);
         IDWithIssuer pid = IDWithIssuer.pidWithIssuer(keys,
                 queryParam.getDefaultIssuerOfPatientID());
         this.pids = Archive.getInstance().pixQuery(ae, pid);
@@ -395,6 +497,8 @@ public class QidoRS {
 
     private static boolean isDicomAttribute(String name) {
         switch (name.charAt(0)) {
+        case 'c':
+            return !name.equals("cursor");
         case 'd':
             return !name.equals("datetimematching");
         case 'f':
@@ -499,79 +603,132 @@ public class QidoRS {
     }
 
     private void cleanup() {
-        if (queryService != null)
+        if (queryService != null) {
             queryService.close();
+            queryService = null;
+        }
     }
 
     private enum Output {
         DICOM_XML {
             @Override
-            Object entity(QidoRS service, QueryRetrieveLevel qrlevel) {
-                return service.writeXML(qrlevel);
+            StreamingOutput entity(QidoRS service, QueryRetrieveLevel qrlevel,
+                    Iterator<Attributes> matches) {
+                return service.writeXML(qrlevel, matches);
             }
         },
         JSON {
             @Override
-            Object entity(QidoRS service, QueryRetrieveLevel qrlevel) {
-                return service.writeJSON(qrlevel);
+            StreamingOutput entity(QidoRS service, QueryRetrieveLevel qrlevel,
+                    Iterator<Attributes> matches) {
+                return service.writeJSON(qrlevel, matches);
             }
         };
         
-        abstract Object entity(QidoRS service, QueryRetrieveLevel qrlevel);
+        abstract StreamingOutput entity(QidoRS service,
+                QueryRetrieveLevel qrlevel, Iterator<Attributes> matches);
     }
 
-    private Object writeXML(QueryRetrieveLevel qrlevel) {
-        MultipartRelatedOutput output = new MultipartRelatedOutput();
-        int count = 0;
-        while (queryService.hasMoreMatches()) {
-            final Attributes match = filter(addRetrieveURL(queryService.nextMatch(), qrlevel));
-            LOG.debug("{}: Match #{}:\n{}", new Object[]{method, ++count, match});
-            output.addPart(new StreamingOutput() {
+    /**
+     * Writes each match as a part of a multipart/related response as it is
+     * fetched from the database, instead of collecting all matches in a
+     * {@code MultipartRelatedOutput} first.
+     */
+    private final class MultipartRelatedStreamingOutput
+            implements StreamingOutput {
+
+        private final QueryRetrieveLevel qrlevel;
+        private final Iterator<Attributes> matches;
+        private final String boundary = UUID.randomUUID().toString();
+
+        MultipartRelatedStreamingOutput(QueryRetrieveLevel qrlevel,
+                Iterator<Attributes> matches) {
+            this.qrlevel = qrlevel;
+            this.matches = matches;
+        }
 
-                @Override
-                public void write(OutputStream out) throws IOException,
-                        WebApplicationException {
-                    try {
-                        SAXTransformer.getSAXWriter(new StreamResult(out)).write(match);
-                    } catch (Exception e) {
-                        throw new WebApplicationException(e);
-                    }
-                }},
-                MediaTypes.APPLICATION_DICOM_XML_TYPE);
+        MediaType getMediaType() {
+            return MediaType.valueOf("multipart/related;type="
+                    + MediaTypes.APPLICATION_DICOM_XML
+                    + ";boundary=" + boundary);
         }
-        LOG.info("{}: {} Matches", method, count);
-        return output;
-    }
 
-    private Object writeJSON(QueryRetrieveLevel qrlevel) {
-        final ArrayList<Attributes> matches = new ArrayList<Attributes>();
-        int count = 0;
-        while (queryService.hasMoreMatches()) {
-            Attributes match = filter(addRetrieveURL(queryService.nextMatch(), qrlevel));
-            LOG.debug("{}: Match #{}:\n{}", new Object[]{method, ++count, match});
-            matches.add(match);
+        @Override
+        public void write(OutputStream out) throws IOException,
+                WebApplicationException {
+            try {
+                byte[] delimiter = ("\r\n--" + boundary).getBytes("US-ASCII");
+                byte[] partHeader = ("\r\nContent-Type: "
+                        + MediaTypes.APPLICATION_DICOM_XML + "\r\n\r\n")
+                        .getBytes("US-ASCII");
+                StreamResult result = new StreamResult(out);
+                int count = 0;
+                while (matches.hasNext()) {
+                    Attributes match = matches.next();
+                    if (match == null)
+                        continue;
+                    match = filter(addRetrieveURL(match, qrlevel));
+                    LOG.debug("{}: Match #{}:\n{}",
+                            new Object[]{method, ++count, match});
+                    out.write(delimiter);
+                    out.write(partHeader);
+                    SAXTransformer.getSAXWriter(result).write(match);
+                }
+                out.write(delimiter);
+                out.write('-');
+                out.write('-');
+                out.write('\r');
+                out.write('\n');
+                LOG.info("{}: {} Matches", method, count);
+            } catch (IOException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new WebApplicationException(e);
+            } finally {
+                cleanup();
+            }
         }
-        LOG.info("{}: {} Matches", method, count);
-        StreamingOutput output = new StreamingOutput(){
+    }
+
+    private StreamingOutput writeXML(QueryRetrieveLevel qrlevel,
+            Iterator<Attributes> matches) {
+        return new MultipartRelatedStreamingOutput(qrlevel, matches);
+    }
+
+    private StreamingOutput writeJSON(final QueryRetrieveLevel qrlevel,
+            final Iterator<Attributes> matches) {
+        return new StreamingOutput(){
 
             @Override
             public void write(OutputStream out) throws IOException {
                 try {
                     StreamResult result = new StreamResult(out);
                     Templates jsonTpls = jsonTpls();
-                    for (int i = 0, n=matches.size(); i < n; i++) {
-                        out.write(i == 0 ? '[' : ',');
-                            Attributes match = matches.get(i);
-                            SAXTransformer.getSAXWriter(jsonTpls, result)
-                                .write(match);
+                    int count = 0;
+                    out.write('[');
+                    while (matches.hasNext()) {
+                        Attributes match = matches.next();
+                        if (match == null)
+                            continue;
+                        match = filter(addRetrieveURL(match, qrlevel));
+                        LOG.debug("{}: Match #{}:\n{}",
+                                new Object[]{method, ++count, match});
+                        if (count > 1)
+                            out.write(',');
+                        SAXTransformer.getSAXWriter(jsonTpls, result)
+                            .write(match);
                     }
                     out.write(']');
+                    LOG.info("{}: {} Matches", method, count);
+                } catch (IOException e) {
+                    throw e;
                 } catch (Exception e) {
                     throw new WebApplicationException(e);
+                } finally {
+                    cleanup();
                 }
             }
         };
-        return output;
     }
 
     private static Templates jsonTpls() throws Exception {
@@ -38,13 +38,21 @@
 
 package org.dcm4chee.archive.query.dao;
 
+import java.util.Arrays;
+
 import org.dcm4che.data.Attributes;
+import org.dcm4che.data.Issuer;
+import org.dcm4chee.archive.common.IDWithIssuer;
 import org.dcm4chee.archive.common.QueryParam;
+import org.dcm4chee.archive.util.query.Builder;
 import org.hibernate.ScrollMode;
 import org.hibernate.ScrollableResults;
 
 import com.mysema.query.jpa.hibernate.HibernateQuery;
 import com.mysema.query.types.Expression;
+import com.mysema.query.types.OrderSpecifier;
+import com.mysema.query.types.path.NumberPath;
+import com.mysema.query.types.path.StringPath;
 
 /**
  * @author Gunter Zeilinger <gunterze@gmail.com>
@@ -54,8 +62,10 @@ abstract class AbstractQuery {
     protected final QueryService queryService;
     protected final QueryParam queryParam;
     private final HibernateQuery query;
-    private final Expression<?>[] select;
+    private Expression<?>[] select;
     private final boolean optionalKeyNotSupported;
+    private int numSortKeys = -1;
+    private int sortKeyIndex;
 
     protected AbstractQuery(QueryService queryService, HibernateQuery query,
             QueryParam queryParam, boolean optionalKeyNotSupported, 
@@ -71,6 +81,44 @@ abstract class AbstractQuery {
         return query.scroll(ScrollMode.FORWARD_ONLY, select);
     }
 
+    /**
+     * Orders the query by the specified sort keys, followed by the primary
+     * key of the queried entity, and restricts it to matches positioned after
+     * {@code after}, if not {@code null}. Values of the sort keys and the
+     * primary key are appended to the selected columns, so the position of
+     * each match is available by {@link #cursor}.
+     */
+    public void keyset(OrderSpecifier<?>[] orderSpecifiers, QueryCursor after) {
+        NumberPath<Long> pk = pk();
+        int n = orderSpecifiers.length;
+        if (after != null)
+            query.where(Builder.seek(orderSpecifiers, after.getValues(),
+                    pk, after.getPk()));
+        OrderSpecifier<?>[] orderBy = Arrays.copyOf(orderSpecifiers, n + 1);
+        orderBy[n] = pk.asc();
+        query.orderBy(orderBy);
+        Expression<?>[] select = Arrays.copyOf(this.select,
+                this.select.length + n + 1);
+        for (int i = 0; i < n; i++)
+            select[this.select.length + i] =
+                (StringPath) orderSpecifiers[i].getTarget();
+        select[this.select.length + n] = pk;
+        this.sortKeyIndex = this.select.length;
+        this.numSortKeys = n;
+        this.select = select;
+    }
+
+    public QueryCursor cursor(ScrollableResults results) {
+        if (numSortKeys < 0)
+            return null;
+
+        String[] values = new String[numSortKeys];
+        for (int i = 0; i < values.length; i++)
+            values[i] = results.getString(sortKeyIndex + i);
+        return new QueryCursor(values,
+                results.getLong(sortKeyIndex + numSortKeys));
+    }
+
     public final HibernateQuery getQuery() {
         return query;
     }
@@ -79,6 +127,25 @@ abstract class AbstractQuery {
         return optionalKeyNotSupported;
     }
 
+    /**
+     * Returns {@code true}, if the issuer of the Patient ID or of the
+     * Accession Number of matches has to be compared with a requested or
+     * default issuer, which requires the issuers of the match to be
+     * decoded from the attribute blobs.
+     */
+    protected static boolean issuerRequested(IDWithIssuer[] pids,
+            Attributes keys, QueryParam queryParam) {
+        if (queryParam.getDefaultIssuerOfAccessionNumber() != null)
+            return true;
+
+        return pids.length == 1 ? pids[0].issuer != null
+                : pids.length == 0
+                    && (queryParam.getDefaultIssuerOfPatientID() != null
+                        || Issuer.issuerOfPatientID(keys) != null);
+    }
+
+    protected abstract NumberPath<Long> pk();
+
     protected abstract  Attributes toAttributes(ScrollableResults results);
 
 }
@@ -38,7 +38,10 @@
 
 package org.dcm4chee.archive.query.dao;
 
+import java.util.Arrays;
+
 import org.dcm4che.data.Attributes;
+import org.dcm4che.data.Tag;
 import org.dcm4chee.archive.common.IDWithIssuer;
 import org.dcm4chee.archive.common.QueryParam;
 import org.dcm4chee.archive.entity.Availability;
@@ -53,25 +56,51 @@ import org.hibernate.StatelessSession;
 
 import com.mysema.query.BooleanBuilder;
 import com.mysema.query.jpa.hibernate.HibernateQuery;
+import com.mysema.query.types.Expression;
+import com.mysema.query.types.path.NumberPath;
 
 /**
  * @author Gunter Zeilinger <gunterze@gmail.com>
  */
 class InstanceQuery extends AbstractQuery {
 
+    private static final Expression<?>[] SELECT = {
+        QSeries.series.pk,                       // (0)
+        QInstance.instance.retrieveAETs,         // (1)
+        QInstance.instance.externalRetrieveAET,  // (2)
+        QInstance.instance.availability,         // (3)
+        QInstance.instance.encodedAttributes     // (4)
+    };
+
+    // attributes calculated from columns of table instance, sorted
+    private static final int[] CALCULATED_TAGS = {
+        Tag.RetrieveAETitle,
+        Tag.InstanceAvailability
+    };
+
+    private final Projection projection;
     private Long seriesPk;
     private Attributes seriesAttrs;
 
-    public InstanceQuery(QueryService queryService, IDWithIssuer[] pids,
-            Attributes keys, QueryParam queryParam) {
+    public InstanceQuery(QueryService queryService, StatelessSession session,
+            IDWithIssuer[] pids, Attributes keys, QueryParam queryParam) {
+        this(queryService, session, pids, keys, queryParam,
+                Projection.valueOf(queryService.pids(), keys, queryParam,
+                        CALCULATED_TAGS,
+                        Projection.PATIENT, Projection.STUDY,
+                        Projection.SERIES, Projection.INSTANCE));
+    }
+
+    private InstanceQuery(QueryService queryService, StatelessSession session,
+            IDWithIssuer[] pids, Attributes keys, QueryParam queryParam,
+            Projection projection) {
         super(queryService, 
-                query(queryService.session(), pids, keys, queryParam),
+                query(session, pids, keys, queryParam),
                 queryParam, false,
-                QSeries.series.pk,
-                QInstance.instance.retrieveAETs,
-                QInstance.instance.externalRetrieveAET,
-                QInstance.instance.availability,
-                QInstance.instance.encodedAttributes);
+                projection != null
+                        ? projection.select(Arrays.copyOf(SELECT, 4))
+                        : SELECT);
+        this.projection = projection;
     }
 
     private static HibernateQuery query(StatelessSession session, IDWithIssuer[] pids,
@@ -89,20 +118,31 @@ class InstanceQuery extends AbstractQuery {
             .where(builder);
     }
 
+    @Override
+    protected NumberPath<Long> pk() {
+        return QInstance.instance.pk;
+    }
+
     @Override
     protected Attributes toAttributes(ScrollableResults results) {
         Long seriesPk = results.getLong(0);
         String retrieveAETs = results.getString(1);
         String externalRetrieveAET = results.getString(2);
         Availability availability = (Availability) results.get(3);
-        byte[] instAttributes = results.getBinary(4);
-        if (!seriesPk.equals(this.seriesPk)) {
-            this.seriesAttrs = queryService.seriesService()
-                    .getAttributes(seriesPk, queryParam);
-            this.seriesPk = seriesPk;
+        Attributes attrs;
+        if (projection != null) {
+            attrs = new Attributes();
+            projection.setAttributes(attrs, results, 4);
+        } else {
+            byte[] instAttributes = results.getBinary(4);
+            if (!seriesPk.equals(this.seriesPk)) {
+                this.seriesAttrs = queryService.seriesService()
+                        .getAttributes(seriesPk, queryParam);
+                this.seriesPk = seriesPk;
+            }
+            attrs = new Attributes(seriesAttrs);
+            Utils.decodeAttributes(attrs, instAttributes);
         }
-        Attributes attrs = new Attributes(seriesAttrs);
-        Utils.decodeAttributes(attrs, instAttributes);
         Utils.setRetrieveAET(attrs, retrieveAETs, externalRetrieveAET);
         Utils.setAvailability(attrs, availability);
         return attrs;
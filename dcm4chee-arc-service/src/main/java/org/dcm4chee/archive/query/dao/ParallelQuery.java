@@ -0,0 +1,255 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+package org.dcm4chee.archive.query.dao;
+
+import java.sql.Connection;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+
+import javax.ejb.EJBException;
+
+import org.dcm4che.data.Attributes;
+import org.dcm4che.net.service.QueryRetrieveLevel;
+import org.dcm4chee.archive.common.IDWithIssuer;
+import org.dcm4chee.archive.common.QueryParam;
+import org.hibernate.ScrollableResults;
+import org.hibernate.StatelessSession;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mysema.query.types.OrderSpecifier;
+
+/**
+ * Query for a list of Patient IDs - e.g. returned by a PIX Query - split
+ * into queries for subsets of the Patient IDs, executed in parallel on
+ * separate connections. Each query is ordered by the primary key of the
+ * queried entity, so their matches are merged into one ordered sequence,
+ * skipping duplicates. Matches are counted by one query for all Patient IDs,
+ * so Patients or Studies matching several Patient IDs are counted once.
+ * 
+ * @author agent <agent@local>
+ */
+class ParallelQuery {
+
+    private static final Logger LOG =
+            LoggerFactory.getLogger(ParallelQuery.class);
+
+    private static final OrderSpecifier<?>[] NO_ORDER = {};
+
+    private final QueryService queryService;
+    private final QueryRetrieveLevel qrlevel;
+    private final IDWithIssuer[] pids;
+    private final Attributes keys;
+    private final QueryParam queryParam;
+    private final Part[] parts;
+    private boolean ordered;
+    private QueryCursor cursor;
+
+    ParallelQuery(QueryService queryService, QueryRetrieveLevel qrlevel,
+            IDWithIssuer[] pids, Attributes keys, QueryParam queryParam) {
+        this.queryService = queryService;
+        this.qrlevel = qrlevel;
+        this.pids = pids;
+        this.keys = keys;
+        this.queryParam = queryParam;
+        int n = Math.min(pids.length, queryParam.getMaxParallelQueries());
+        parts = new Part[n];
+        try {
+            for (int i = 0; i < n; i++) {
+                Connection connection = queryService.openConnection();
+                StatelessSession session =
+                        queryService.openStatelessSession(connection);
+                parts[i] = new Part(connection, session);
+                parts[i].query = queryService.newQuery(session, qrlevel,
+                        subset(pids, i, n), keys, queryParam);
+            }
+        } catch (RuntimeException e) {
+            close();
+            throw e;
+        }
+    }
+
+    private static IDWithIssuer[] subset(IDWithIssuer[] pids, int i, int n) {
+        IDWithIssuer[] subset = new IDWithIssuer[(pids.length - i + n - 1) / n];
+        for (int j = 0; j < subset.length; j++)
+            subset[j] = pids[i + j * n];
+        return subset;
+    }
+
+    public boolean optionalKeyNotSupported() {
+        return parts[0].query.optionalKeyNotSupported();
+    }
+
+    public long count() {
+        return queryService.newQuery(queryService.session(), qrlevel, pids,
+                keys, queryParam).getQuery().count();
+    }
+
+    public void limit(long limit) {
+        for (Part part : parts)
+            part.query.getQuery().limit(limit);
+    }
+
+    public void keyset(OrderSpecifier<?>[] orderSpecifiers, QueryCursor after) {
+        if (orderSpecifiers.length > 0)
+            throw new IllegalStateException(
+                    "order by sort keys not supported by parallel query");
+        for (Part part : parts)
+            part.query.keyset(NO_ORDER, after);
+        ordered = true;
+    }
+
+    public void execute(Executor executor) {
+        if (!ordered)
+            keyset(NO_ORDER, null);
+
+        FutureTask<?>[] tasks = new FutureTask<?>[parts.length];
+        try {
+            for (int i = 1; i < parts.length; i++) {
+                FutureTask<Void> task = new FutureTask<Void>(parts[i]);
+                executor.execute(task);
+                tasks[i] = task;
+            }
+            parts[0].call();
+            for (int i = 1; i < parts.length; i++)
+                tasks[i].get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new EJBException(e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            throw new EJBException((Exception) cause);
+        } finally {
+            awaitCompletion(tasks);
+        }
+    }
+
+    /**
+     * Waits until all sub-queries completed, so their sessions are not
+     * closed while they are still executed, if the execution of another
+     * sub-query failed.
+     */
+    private static void awaitCompletion(FutureTask<?>[] tasks) {
+        boolean interrupted = false;
+        for (FutureTask<?> task : tasks) {
+            while (task != null) {
+                try {
+                    task.get();
+                    task = null;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    task = null;
+                }
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    public boolean hasMoreMatches() {
+        for (Part part : parts)
+            if (part.hasMoreMatches)
+                return true;
+        return false;
+    }
+
+    public Attributes nextMatch() {
+        Part next = null;
+        for (Part part : parts)
+            if (part.hasMoreMatches
+                    && (next == null || part.cursor.getPk() < next.cursor.getPk()))
+                next = part;
+        Attributes attrs = next.query.toAttributes(next.results);
+        cursor = next.cursor;
+        // skip duplicate matches of other Patient IDs
+        for (Part part : parts)
+            if (part.hasMoreMatches && part.cursor.getPk() == cursor.getPk())
+                part.next();
+        return attrs;
+    }
+
+    public QueryCursor getCursor() {
+        return cursor;
+    }
+
+    public void close() {
+        for (Part part : parts)
+            if (part != null)
+                part.close();
+    }
+
+    private static final class Part implements Callable<Void> {
+        final Connection connection;
+        final StatelessSession session;
+        AbstractQuery query;
+        ScrollableResults results;
+        boolean hasMoreMatches;
+        QueryCursor cursor;
+
+        Part(Connection connection, StatelessSession session) {
+            this.connection = connection;
+            this.session = session;
+        }
+
+        @Override
+        public Void call() {
+            results = query.execute();
+            next();
+            return null;
+        }
+
+        void next() {
+            hasMoreMatches = results.next();
+            cursor = hasMoreMatches ? query.cursor(results) : null;
+        }
+
+        void close() {
+            session.close();
+            try {
+                connection.close();
+            } catch (Exception e) {
+                LOG.warn("Failed to close connection of parallel query:", e);
+            }
+        }
+    }
+}
@@ -49,15 +49,16 @@ import org.hibernate.StatelessSession;
 
 import com.mysema.query.BooleanBuilder;
 import com.mysema.query.jpa.hibernate.HibernateQuery;
+import com.mysema.query.types.path.NumberPath;
 
 /**
  * @author Gunter Zeilinger <gunterze@gmail.com>
  */
 class PatientQuery extends AbstractQuery {
 
-    public PatientQuery(QueryService queryService, IDWithIssuer[] pids,
-            Attributes keys, QueryParam queryParam) {
-        super(queryService, query(queryService.session(), pids, keys, queryParam),
+    public PatientQuery(QueryService queryService, StatelessSession session,
+            IDWithIssuer[] pids, Attributes keys, QueryParam queryParam) {
+        super(queryService, query(session, pids, keys, queryParam),
                 queryParam, false,
                 QPatient.patient.pk,
                 QPatient.patient.encodedAttributes);
@@ -72,6 +73,11 @@ class PatientQuery extends AbstractQuery {
             .where(builder);
     }
 
+    @Override
+    protected NumberPath<Long> pk() {
+        return QPatient.patient.pk;
+    }
+
     @Override
     protected Attributes toAttributes(ScrollableResults results) {
         Attributes attrs = new Attributes();
@@ -0,0 +1,193 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+package org.dcm4chee.archive.query.dao;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.dcm4che.data.Attributes;
+import org.dcm4che.data.ElementDictionary;
+import org.dcm4che.data.Tag;
+import org.dcm4che.data.VR;
+import org.dcm4chee.archive.common.IDWithIssuer;
+import org.dcm4chee.archive.common.QueryParam;
+import org.dcm4chee.archive.entity.QInstance;
+import org.dcm4chee.archive.entity.QPatient;
+import org.dcm4chee.archive.entity.QSeries;
+import org.dcm4chee.archive.entity.QStudy;
+import org.hibernate.ScrollableResults;
+
+import com.mysema.query.types.Expression;
+import com.mysema.query.types.path.StringPath;
+
+/**
+ * Projection of requested return keys on indexed columns of the queried
+ * entities, used instead of decoding the attribute blobs if all return keys
+ * are covered by such columns. Only single-valued attributes, whose values
+ * are stored verbatim, are covered; dates, times, person names and values
+ * which are converted to upper case for matching have to be decoded from
+ * the attribute blobs.
+ * 
+ * @author agent <agent@local>
+ */
+class Projection {
+
+    private static final ElementDictionary DICT =
+            ElementDictionary.getStandardElementDictionary();
+
+    static final Column[] PATIENT = {
+        new Column(Tag.PatientID, QPatient.patient.patientID),
+        new Column(Tag.PatientBirthDate, QPatient.patient.patientBirthDate)
+    };
+
+    static final Column[] STUDY = {
+        new Column(Tag.AccessionNumber, QStudy.study.accessionNumber),
+        new Column(Tag.StudyDescription, QStudy.study.studyDescription),
+        new Column(Tag.StudyInstanceUID, QStudy.study.studyInstanceUID),
+        new Column(Tag.StudyID, QStudy.study.studyID)
+    };
+
+    static final Column[] SERIES = {
+        new Column(Tag.InstitutionName, QSeries.series.institutionName),
+        new Column(Tag.StationName, QSeries.series.stationName),
+        new Column(Tag.SeriesDescription, QSeries.series.seriesDescription),
+        new Column(Tag.InstitutionalDepartmentName,
+                QSeries.series.institutionalDepartmentName),
+        new Column(Tag.SeriesInstanceUID, QSeries.series.seriesInstanceUID),
+        new Column(Tag.SeriesNumber, QSeries.series.seriesNumber)
+    };
+
+    static final Column[] INSTANCE = {
+        new Column(Tag.SOPClassUID, QInstance.instance.sopClassUID),
+        new Column(Tag.SOPInstanceUID, QInstance.instance.sopInstanceUID),
+        new Column(Tag.InstanceNumber, QInstance.instance.instanceNumber)
+    };
+
+    static final class Column {
+        final int tag;
+        final StringPath path;
+
+        Column(int tag, StringPath path) {
+            this.tag = tag;
+            this.path = path;
+        }
+
+        String valueOf(ScrollableResults results, int index) {
+            String s = results.getString(index);
+            return s == null || s.equals("*") ? null : s;
+        }
+    }
+
+    private final Column[] columns;
+
+    private Projection(Column[] columns) {
+        this.columns = columns;
+    }
+
+    /**
+     * Returns projection of the return keys on columns of the specified
+     * entity levels or {@code null}, if any key - which is not contained in
+     * sorted {@code calculatedTags} - is not covered by such columns, if all
+     * attributes shall be returned or if issuers have to be compared.
+     */
+    static Projection valueOf(IDWithIssuer[] pids, Attributes keys,
+            QueryParam queryParam, int[] calculatedTags, Column[]... levels) {
+        if (queryParam.isReturnAllAttributes()
+                || AbstractQuery.issuerRequested(pids, keys, queryParam))
+            return null;
+
+        ArrayList<Column> list = new ArrayList<Column>();
+        for (int tag : keys.tags()) {
+            if (tag == Tag.QueryRetrieveLevel
+                    || tag == Tag.SpecificCharacterSet
+                    || Arrays.binarySearch(calculatedTags, tag) >= 0)
+                continue;
+
+            Column column = columnOf(tag, levels);
+            if (column == null)
+                return null;
+
+            list.add(column);
+        }
+        return new Projection(list.toArray(new Column[list.size()]));
+    }
+
+    private static Column columnOf(int tag, Column[][] levels) {
+        for (Column[] level : levels)
+            for (Column column : level)
+                if (column.tag == tag)
+                    return column;
+        return null;
+    }
+
+    /**
+     * Returns {@code select} followed by the columns of the projection.
+     */
+    Expression<?>[] select(Expression<?>... select) {
+        ArrayList<Expression<?>> list =
+                new ArrayList<Expression<?>>(Arrays.asList(select));
+        for (Column column : columns)
+            list.add(column.path);
+        return list.toArray(new Expression<?>[list.size()]);
+    }
+
+    /**
+     * Sets the return keys to the values of the projected columns, starting
+     * at {@code index}. As the character set of the original attributes is
+     * not known, values with non-ASCII characters are returned as UTF-8.
+     */
+    void setAttributes(Attributes attrs, ScrollableResults results, int index) {
+        boolean ascii = true;
+        for (Column column : columns) {
+            String value = column.valueOf(results, index++);
+            if (value != null) {
+                attrs.setString(column.tag, DICT.vrOf(column.tag), value);
+                ascii = ascii && isASCII(value);
+            }
+        }
+        if (!ascii)
+            attrs.setString(Tag.SpecificCharacterSet, VR.CS, "ISO_IR 192");
+    }
+
+    private static boolean isASCII(String s) {
+        for (int i = 0, n = s.length(); i < n; i++)
+            if (s.charAt(i) > 127)
+                return false;
+        return true;
+    }
+}
@@ -0,0 +1,122 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+package org.dcm4chee.archive.query.dao;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import org.dcm4che.util.TagUtils;
+
+/**
+ * Position after the last returned match of a query ordered by the values of
+ * its sort keys and the primary key of the matching entity, encoded as
+ * opaque continuation token.
+ * 
+ * @author agent <agent@local>
+ *
+ */
+public class QueryCursor {
+
+    private final String[] values;
+    private final long pk;
+
+    public QueryCursor(String[] values, long pk) {
+        this.values = values;
+        this.pk = pk;
+    }
+
+    public String[] getValues() {
+        return values;
+    }
+
+    public long getPk() {
+        return pk;
+    }
+
+    public static QueryCursor valueOf(String token) {
+        try {
+            DataInputStream in = new DataInputStream(
+                    new ByteArrayInputStream(fromHexString(token)));
+            String[] values = new String[in.readUnsignedByte()];
+            for (int i = 0; i < values.length; i++)
+                values[i] = in.readBoolean() ? in.readUTF() : null;
+            long pk = in.readLong();
+            if (in.read() != -1)
+                throw new IllegalArgumentException("cursor=" + token);
+            return new QueryCursor(values, pk);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("cursor=" + token);
+        }
+    }
+
+    @Override
+    public String toString() {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream(64);
+        DataOutputStream out = new DataOutputStream(bout);
+        try {
+            out.writeByte(values.length);
+            for (String value : values) {
+                out.writeBoolean(value != null);
+                if (value != null)
+                    out.writeUTF(value);
+            }
+            out.writeLong(pk);
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        return TagUtils.toHexString(bout.toByteArray());
+    }
+
+    private static byte[] fromHexString(String s) {
+        int len = s.length();
+        if ((len & 1) != 0)
+            throw new IllegalArgumentException("cursor=" + s);
+        byte[] b = new byte[len / 2];
+        for (int i = 0; i < b.length; i++) {
+            int hi = Character.digit(s.charAt(2 * i), 16);
+            int lo = Character.digit(s.charAt(2 * i + 1), 16);
+            if (hi < 0 || lo < 0)
+                throw new IllegalArgumentException("cursor=" + s);
+            b[i] = (byte) ((hi << 4) | lo);
+        }
+        return b;
+    }
+}
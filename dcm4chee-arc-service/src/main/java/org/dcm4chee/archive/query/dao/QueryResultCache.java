@@ -0,0 +1,350 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+package org.dcm4chee.archive.query.dao;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.TransactionSynchronizationRegistry;
+
+import org.dcm4che.data.Attributes;
+import org.dcm4che.data.Sequence;
+import org.dcm4che.io.DicomEncodingOptions;
+import org.dcm4che.net.service.QueryRetrieveLevel;
+import org.dcm4chee.archive.common.IDWithIssuer;
+import org.dcm4chee.archive.common.QueryParam;
+
+/**
+ * Caches the matches of C-FIND and QIDO-RS queries for a configurable time,
+ * so identical queries - e.g. of polling viewers - are answered without
+ * access of the database. Queries are identified by their Query/Retrieve
+ * Level, Patient IDs, matching and return keys and {@link QueryParam}.
+ * 
+ * <p>Entries are invalidated after commit of transactions which store,
+ * reject or modify objects or Patients, which may be matched by the query:
+ * changes of a Patient invalidate queries restricted to the ID of that
+ * Patient and all queries which are not restricted to particular Patient
+ * IDs. Matches are loaded without holding the lock and only put into the
+ * cache if no invalidation was committed meanwhile.
+ * 
+ * @author agent <agent@local>
+ */
+public enum QueryResultCache {
+
+    INSTANCE;
+
+    /**
+     * Maximal number of matches of a cached query.
+     */
+    static final int MAX_MATCHES = 1000;
+
+    private static final Object TX_KEY = QueryResultCache.class;
+
+    static final class Entry {
+        final List<Attributes> matches;
+        final List<QueryCursor> cursors;
+        final Set<String> patientIDs;
+        final long expires;
+        final long size;
+
+        Entry(List<Attributes> matches, List<QueryCursor> cursors,
+                Set<String> patientIDs, long expires) {
+            this.matches = matches;
+            this.cursors = cursors;
+            this.patientIDs = patientIDs;
+            this.expires = expires;
+            long size = 0;
+            for (Attributes match : matches)
+                size += match.calcLength(DicomEncodingOptions.DEFAULT, true);
+            this.size = size;
+        }
+
+        boolean mayMatch(Set<String> patientIDs) {
+            if (this.patientIDs == null)
+                return true;
+
+            for (String pid : patientIDs)
+                if (this.patientIDs.contains(pid))
+                    return true;
+
+            return false;
+        }
+    }
+
+    private static final class Invalidation implements Synchronization {
+        final Set<String> patientIDs = new LinkedHashSet<String>();
+        boolean all;
+
+        @Override
+        public void beforeCompletion() {
+        }
+
+        @Override
+        public void afterCompletion(int status) {
+            if (status == Status.STATUS_COMMITTED)
+                INSTANCE.invalidate(this);
+        }
+    }
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+
+    @SuppressWarnings("serial")
+    private final Map<String, Entry> cache =
+            new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                    if (size() <= maxSize)
+                        return false;
+
+                    footprint -= eldest.getValue().size;
+                    return true;
+                }
+            };
+
+    private volatile int maxSize;
+    private volatile boolean used;
+    private long generation;
+    private long footprint;
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public synchronized void setMaxSize(int maxSize) {
+        this.maxSize = maxSize;
+        for (Iterator<Entry> it = cache.values().iterator();
+                cache.size() > Math.max(maxSize, 0);) {
+            footprint -= it.next().size;
+            it.remove();
+        }
+    }
+
+    /**
+     * Returns the key of a query for the specified Patient IDs, matching
+     * and return keys.
+     */
+    static String keyOf(QueryRetrieveLevel qrlevel, IDWithIssuer[] pids,
+            Attributes keys, QueryParam queryParam) {
+        StringBuilder sb = new StringBuilder(256);
+        sb.append(qrlevel)
+          .append(queryParam.isCombinedDatetimeMatching() ? 'C' : '-')
+          .append(queryParam.isFuzzySemanticMatching() ? 'F' : '-')
+          .append(queryParam.isMatchUnknown() ? 'U' : '-')
+          .append(queryParam.isShowRejectedInstances() ? 'R' : '-')
+          .append(queryParam.isReturnOtherPatientIDs() ? 'I' : '-')
+          .append(queryParam.isReturnOtherPatientNames() ? 'N' : '-')
+          .append(queryParam.isStudyQueryView() ? 'V' : '-')
+          .append(queryParam.isReturnAllAttributes() ? 'A' : '-')
+          .append(Arrays.toString(queryParam.getAccessControlIDs()))
+          .append(queryParam.getDefaultIssuerOfPatientID())
+          .append('|')
+          .append(queryParam.getDefaultIssuerOfAccessionNumber())
+          .append(Arrays.toString(pids));
+        appendKeys(sb, keys);
+        return sb.toString();
+    }
+
+    private static void appendKeys(StringBuilder sb, Attributes keys) {
+        sb.append('{');
+        for (int tag : keys.tags()) {
+            sb.append(Integer.toHexString(tag)).append('=');
+            Object value = keys.getValue(tag);
+            if (value instanceof Sequence) {
+                for (Attributes item : (Sequence) value)
+                    appendKeys(sb, item);
+            } else {
+                String[] values = keys.getStrings(tag);
+                if (values != null)
+                    for (String s : values)
+                        sb.append(s).append('\\');
+            }
+            sb.append(';');
+        }
+        sb.append('}');
+    }
+
+    /**
+     * Returns the Patient IDs to which a query for the specified Patient IDs
+     * is restricted, or {@code null} if the query may match any Patient.
+     */
+    static Set<String> patientIDsOf(IDWithIssuer[] pids) {
+        if (pids.length == 0)
+            return null;
+
+        Set<String> set = new HashSet<String>(pids.length * 4 / 3 + 1);
+        for (IDWithIssuer pid : pids) {
+            if (pid.id.indexOf('*') >= 0 || pid.id.indexOf('?') >= 0)
+                return null;
+            set.add(pid.id);
+        }
+        return set;
+    }
+
+    /**
+     * Returns the generation, which has to be passed to subsequent
+     * {@code put} invocations after loading matches from the database.
+     */
+    synchronized long generation() {
+        used = true;
+        return generation;
+    }
+
+    /**
+     * Returns cached matches - and their positions, if the query was
+     * initialized by {@link QueryService#keyset} - which must not be
+     * modified by callers, or {@code null}.
+     */
+    synchronized Entry get(String key) {
+        if (maxSize <= 0)
+            return null;
+
+        Entry entry = cache.get(key);
+        if (entry != null && entry.expires < System.currentTimeMillis()) {
+            cache.remove(key);
+            footprint -= entry.size;
+            entry = null;
+        }
+        if (entry == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return entry;
+    }
+
+    synchronized void put(long generation, String key, Set<String> patientIDs,
+            int ttl, List<Attributes> matches, List<QueryCursor> cursors) {
+        if (maxSize <= 0 || this.generation != generation)
+            return;
+
+        Entry entry = new Entry(Collections.unmodifiableList(matches),
+                cursors != null ? Collections.unmodifiableList(cursors) : null,
+                patientIDs, System.currentTimeMillis() + ttl * 1000L);
+        Entry prev = cache.put(key, entry);
+        if (prev != null)
+            footprint -= prev.size;
+        footprint += entry.size;
+    }
+
+    /**
+     * Invalidates cached matches of queries, which may match the Patient
+     * with the specified ID, after commit of the current transaction.
+     */
+    public void invalidate(TransactionSynchronizationRegistry tsr,
+            String patientID) {
+        if (!used)
+            return;
+
+        Invalidation inv = invalidation(tsr);
+        if (patientID != null)
+            inv.patientIDs.add(patientID);
+        else
+            inv.all = true;
+    }
+
+    /**
+     * Invalidates all cached matches after commit of the current
+     * transaction, e.g. on update of Patient attributes.
+     */
+    public void invalidateAll(TransactionSynchronizationRegistry tsr) {
+        if (used)
+            invalidation(tsr).all = true;
+    }
+
+    private Invalidation invalidation(TransactionSynchronizationRegistry tsr) {
+        Invalidation inv = (Invalidation) tsr.getResource(TX_KEY);
+        if (inv == null) {
+            inv = new Invalidation();
+            tsr.putResource(TX_KEY, inv);
+            tsr.registerInterposedSynchronization(inv);
+        }
+        return inv;
+    }
+
+    private synchronized void invalidate(Invalidation inv) {
+        generation++;
+        invalidations.incrementAndGet();
+        if (inv.all) {
+            cache.clear();
+            footprint = 0;
+            return;
+        }
+        for (Iterator<Entry> it = cache.values().iterator(); it.hasNext();) {
+            Entry entry = it.next();
+            if (entry.mayMatch(inv.patientIDs)) {
+                footprint -= entry.size;
+                it.remove();
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        generation++;
+        cache.clear();
+        footprint = 0;
+    }
+
+    public String statistics() {
+        long hits = this.hits.get();
+        long lookups = hits + misses.get();
+        int size;
+        long footprint;
+        synchronized (this) {
+            size = cache.size();
+            footprint = this.footprint;
+        }
+        return String.format(
+                "size=%d, footprint=%dKB, lookups=%d, hits=%d, hitRatio=%.3f, invalidations=%d",
+                size, footprint / 1024, lookups, hits,
+                lookups == 0 ? 0.0 : (double) hits / lookups,
+                invalidations.get());
+    }
+}
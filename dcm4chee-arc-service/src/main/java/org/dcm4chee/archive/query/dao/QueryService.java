@@ -40,15 +40,22 @@ package org.dcm4chee.archive.query.dao;
 
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.ejb.EJB;
 import javax.ejb.EJBException;
 import javax.ejb.Remove;
 import javax.ejb.Stateful;
+import javax.ejb.StatefulTimeout;
 import javax.persistence.EntityManagerFactory;
 import javax.persistence.PersistenceUnit;
 import javax.sql.DataSource;
@@ -56,6 +63,7 @@ import javax.sql.DataSource;
 import org.dcm4che.data.Attributes;
 import org.dcm4che.data.Tag;
 import org.dcm4che.net.service.QueryRetrieveLevel;
+import org.dcm4chee.archive.Archive;
 import org.dcm4chee.archive.common.IDWithIssuer;
 import org.dcm4chee.archive.common.QueryParam;
 import org.dcm4chee.archive.dao.SeriesService;
@@ -72,11 +80,20 @@ import com.mysema.query.jpa.hibernate.HibernateQuery;
 import com.mysema.query.types.OrderSpecifier;
 
 /**
+ * Keeps a database connection and the open result of the query until
+ * {@link #close()}. If the client never invokes {@link #close()} - e.g. if
+ * a QIDO-RS response entity is never written - the container removes the
+ * bean after {@value #STATEFUL_TIMEOUT} minutes without invocation, which
+ * releases them.
+ * 
  * @author Gunter Zeilinger <gunterze@gmail.com>
  */
 @Stateful
+@StatefulTimeout(value = QueryService.STATEFUL_TIMEOUT, unit = TimeUnit.MINUTES)
 public class QueryService {
 
+    static final long STATEFUL_TIMEOUT = 5;
+
     // injection configured in ejb-jar.xml
     private DataSource dataSource;
 
@@ -87,8 +104,12 @@ public class QueryService {
 
     private Connection connection;
 
+    private IDWithIssuer[] pids;
+
     private AbstractQuery query;
 
+    private ParallelQuery parallelQuery;
+
     private ScrollableResults results;
 
     @EJB
@@ -96,6 +117,26 @@ public class QueryService {
 
     private boolean hasMoreMatches;
 
+    private QueryCursor cursor;
+
+    private String resultCacheKey;
+
+    private Set<String> resultCachePatientIDs;
+
+    private int resultCacheTTL;
+
+    private long resultCacheGeneration;
+
+    private List<Attributes> recordedMatches;
+
+    private Iterator<Attributes> cachedMatches;
+
+    private List<QueryCursor> recordedCursors;
+
+    private Iterator<QueryCursor> cachedCursors;
+
+    private boolean keyset;
+
     final StatelessSession session() {
         return session;
     }
@@ -104,20 +145,44 @@ public class QueryService {
         return seriesService;
     }
 
-    @PostConstruct
-    protected void init() {
-        SessionFactory sessionFactory = 
-                ((HibernateEntityManagerFactory) emf).getSessionFactory();
+    final IDWithIssuer[] pids() {
+        return pids;
+    }
+
+    final Connection openConnection() {
         try {
-            connection = dataSource.getConnection();
+            return dataSource.getConnection();
         } catch (SQLException e) {
             throw new EJBException(e);
         }
-        session = sessionFactory.openStatelessSession(connection);
+    }
+
+    final StatelessSession openStatelessSession(Connection connection) {
+        SessionFactory sessionFactory = 
+                ((HibernateEntityManagerFactory) emf).getSessionFactory();
+        return sessionFactory.openStatelessSession(connection);
+    }
+
+    @PostConstruct
+    protected void init() {
+        connection = openConnection();
+        session = openStatelessSession(connection);
     }
 
     public void createQuery(QueryRetrieveLevel qrlevel, IDWithIssuer[] pids,
             Attributes keys, QueryParam queryParam) {
+        resultCacheTTL = queryParam.getQueryResultCacheTTL();
+        if (resultCacheTTL > 0) {
+            resultCacheKey =
+                    QueryResultCache.keyOf(qrlevel, pids, keys, queryParam);
+            resultCachePatientIDs = QueryResultCache.patientIDsOf(pids);
+        }
+        int threshold = queryParam.getParallelQueryThreshold();
+        if (threshold > 0 && pids.length >= threshold
+                && queryParam.getMaxParallelQueries() > 1) {
+            createParallelQuery(qrlevel, pids, keys, queryParam);
+            return;
+        }
         switch (qrlevel) {
         case PATIENT:
             createPatientQuery(pids, keys, queryParam);
@@ -138,56 +203,156 @@ public class QueryService {
 
     public void executeQuery() {
         checkQuery();
-        results = query.execute();
-        hasMoreMatches = results.next();
+        if (resultCacheKey != null) {
+            QueryResultCache cache = QueryResultCache.INSTANCE;
+            QueryResultCache.Entry entry = cache.get(resultCacheKey);
+            if (entry != null) {
+                cachedMatches = entry.matches.iterator();
+                if (entry.cursors != null)
+                    cachedCursors = entry.cursors.iterator();
+                hasMoreMatches = cachedMatches.hasNext();
+                return;
+            }
+            resultCacheGeneration = cache.generation();
+            recordedMatches = new ArrayList<Attributes>();
+            if (keyset)
+                recordedCursors = new ArrayList<QueryCursor>();
+        }
+        if (parallelQuery != null) {
+            parallelQuery.execute(
+                    Archive.getInstance().getDevice().getExecutor());
+            hasMoreMatches = parallelQuery.hasMoreMatches();
+        } else {
+            results = query.execute();
+            hasMoreMatches = results.next();
+        }
+        if (recordedMatches != null && !hasMoreMatches)
+            cacheRecordedMatches();
     }
 
     public long count() {
         checkQuery();
+        resultCacheKey = null;
+        if (parallelQuery != null)
+            return parallelQuery.count();
         return query.getQuery().count();
     }
 
     public void limit(long limit) {
         checkQuery();
-        query.getQuery().limit(limit);
+        if (parallelQuery != null)
+            parallelQuery.limit(limit);
+        else
+            query.getQuery().limit(limit);
+        if (resultCacheKey != null)
+            resultCacheKey += "limit=" + limit;
     }
 
     public void offset(long offset) {
-        checkQuery();
+        checkNoParallelQuery();
+        resultCacheKey = null;
         query.getQuery().offset(offset);
     }
 
     public void orderBy(OrderSpecifier<?>... orderSpecifiers) {
-        checkQuery();
+        checkNoParallelQuery();
+        resultCacheKey = null;
         query.getQuery().orderBy(orderSpecifiers);
     }
 
+    /**
+     * Orders matches by the specified sort keys and the primary key of the
+     * queried entity, and skips matches up to the position specified by
+     * {@code after}, without use of SQL OFFSET.
+     * 
+     * @see #getCursor()
+     */
+    public void keyset(OrderSpecifier<?>[] orderSpecifiers, QueryCursor after) {
+        checkQuery();
+        if (orderSpecifiers == null)
+            orderSpecifiers = new OrderSpecifier<?>[0];
+        if (resultCacheKey != null)
+            resultCacheKey += "keyset=" + Arrays.toString(orderSpecifiers)
+                    + "after=" + after;
+        keyset = true;
+        if (parallelQuery != null)
+            parallelQuery.keyset(orderSpecifiers, after);
+        else
+            query.keyset(orderSpecifiers, after);
+    }
+
+    /**
+     * Returns the position of the last match returned by
+     * {@link #nextMatch()} of a query initialized by {@link #keyset}.
+     */
+    public QueryCursor getCursor() {
+        return cursor;
+    }
+
     public void createPatientQuery(IDWithIssuer[] pids, Attributes keys,
             QueryParam queryParam) {
         checkNoQuery();
-        query = new PatientQuery(this, pids, keys, queryParam);
+        this.pids = pids;
+        query = newQuery(session, QueryRetrieveLevel.PATIENT, pids, keys,
+                queryParam);
     }
 
     public void createStudyQuery(IDWithIssuer[] pids, Attributes keys,
             QueryParam queryParam) {
         checkNoQuery();
-        query = new StudyQuery(this, pids, keys, queryParam);
+        this.pids = pids;
+        query = newQuery(session, QueryRetrieveLevel.STUDY, pids, keys,
+                queryParam);
     }
 
     public void createSeriesQuery(IDWithIssuer[] pids, Attributes keys,
             QueryParam queryParam) {
         checkNoQuery();
-        query = new SeriesQuery(this, pids, keys, queryParam);
+        this.pids = pids;
+        query = newQuery(session, QueryRetrieveLevel.SERIES, pids, keys,
+                queryParam);
     }
 
     public void createInstanceQuery(IDWithIssuer[] pids, Attributes keys,
             QueryParam queryParam) {
         checkNoQuery();
-        query = new InstanceQuery(this, pids, keys, queryParam);
+        this.pids = pids;
+        query = newQuery(session, QueryRetrieveLevel.IMAGE, pids, keys,
+                queryParam);
+    }
+
+    /**
+     * Splits the query for the specified Patient IDs in queries for subsets
+     * of the Patient IDs, which are executed in parallel, instead of
+     * matching all Patient IDs by one disjunction.
+     */
+    public void createParallelQuery(QueryRetrieveLevel qrlevel,
+            IDWithIssuer[] pids, Attributes keys, QueryParam queryParam) {
+        checkNoQuery();
+        this.pids = pids;
+        parallelQuery = new ParallelQuery(this, qrlevel, pids, keys, queryParam);
+    }
+
+    AbstractQuery newQuery(StatelessSession session, QueryRetrieveLevel qrlevel,
+            IDWithIssuer[] pids, Attributes keys, QueryParam queryParam) {
+        switch (qrlevel) {
+        case PATIENT:
+            return new PatientQuery(this, session, pids, keys, queryParam);
+        case STUDY:
+            return new StudyQuery(this, session, pids, keys, queryParam);
+        case SERIES:
+            return new SeriesQuery(this, session, pids, keys, queryParam);
+        case IMAGE:
+            return new InstanceQuery(this, session, pids, keys, queryParam);
+        default:
+            throw new IllegalArgumentException("qrlevel: " + qrlevel);
+        }
     }
 
     public boolean optionalKeyNotSupported() {
         checkQuery();
+        if (parallelQuery != null)
+            return parallelQuery.optionalKeyNotSupported();
         return query.optionalKeyNotSupported();
     }
 
@@ -198,21 +363,65 @@ public class QueryService {
     public Attributes nextMatch() {
         if (!hasMoreMatches)
             throw new NoSuchElementException();
-        Attributes attrs = query.toAttributes(results);
-        hasMoreMatches = results.next();
+        if (cachedMatches != null) {
+            Attributes attrs = new Attributes(cachedMatches.next());
+            if (cachedCursors != null)
+                cursor = cachedCursors.next();
+            hasMoreMatches = cachedMatches.hasNext();
+            return attrs;
+        }
+        Attributes attrs;
+        if (parallelQuery != null) {
+            attrs = parallelQuery.nextMatch();
+            cursor = parallelQuery.getCursor();
+            hasMoreMatches = parallelQuery.hasMoreMatches();
+        } else {
+            attrs = query.toAttributes(results);
+            cursor = query.cursor(results);
+            hasMoreMatches = results.next();
+        }
+        if (recordedMatches != null)
+            recordMatch(attrs);
         return attrs;
     }
 
+    private void recordMatch(Attributes attrs) {
+        if (recordedMatches.size() >= QueryResultCache.MAX_MATCHES) {
+            recordedMatches = null;
+            recordedCursors = null;
+            return;
+        }
+        recordedMatches.add(new Attributes(attrs));
+        if (recordedCursors != null)
+            recordedCursors.add(cursor);
+        if (!hasMoreMatches)
+            cacheRecordedMatches();
+    }
+
+    private void cacheRecordedMatches() {
+        QueryResultCache.INSTANCE.put(resultCacheGeneration, resultCacheKey,
+                resultCachePatientIDs, resultCacheTTL, recordedMatches,
+                recordedCursors);
+        recordedMatches = null;
+        recordedCursors = null;
+    }
+
     private void checkNoQuery() {
-        if (query != null)
+        if (query != null || parallelQuery != null)
             throw new IllegalStateException("query already initalized");
     }
 
     private void checkQuery() {
-        if (query == null)
+        if (query == null && parallelQuery == null)
             throw new IllegalStateException("query not initalized");
     }
 
+    private void checkNoParallelQuery() {
+        checkQuery();
+        if (parallelQuery != null)
+            throw new IllegalStateException("not supported by parallel query");
+    }
+
     public String[] patientNamesOf(IDWithIssuer[] pids) {
         HashSet<String> c = new HashSet<String>(pids.length * 4 / 3 + 1);
         BooleanBuilder builder = new BooleanBuilder();
@@ -233,12 +442,33 @@ public class QueryService {
 
     @Remove
     public void close() {
+        release();
+    }
+
+    @PreDestroy
+    protected void release() {
+        if (session == null)
+            return;
+
         StatelessSession s = session;
         Connection c = connection;
+        ParallelQuery pq = parallelQuery;
         connection = null;
         session = null;
+        pids = null;
         query = null;
+        parallelQuery = null;
         results = null;
+        cursor = null;
+        resultCacheKey = null;
+        resultCachePatientIDs = null;
+        recordedMatches = null;
+        cachedMatches = null;
+        recordedCursors = null;
+        cachedCursors = null;
+        keyset = false;
+        if (pq != null)
+            pq.close();
         s.close();
         try {
             c.close();
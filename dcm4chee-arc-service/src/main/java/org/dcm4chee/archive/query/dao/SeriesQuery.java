@@ -38,7 +38,10 @@
 
 package org.dcm4chee.archive.query.dao;
 
+import java.util.Arrays;
+
 import org.dcm4che.data.Attributes;
+import org.dcm4che.data.Tag;
 import org.dcm4chee.archive.common.IDWithIssuer;
 import org.dcm4chee.archive.common.QueryParam;
 import org.dcm4chee.archive.entity.Availability;
@@ -52,35 +55,66 @@ import org.hibernate.StatelessSession;
 
 import com.mysema.query.BooleanBuilder;
 import com.mysema.query.jpa.hibernate.HibernateQuery;
+import com.mysema.query.types.Expression;
+import com.mysema.query.types.path.NumberPath;
 
 /**
  * @author Gunter Zeilinger <gunterze@gmail.com>
  */
 class SeriesQuery extends AbstractQuery {
 
+    private static final Expression<?>[] SELECT = {
+        QStudy.study.pk,                         // (0)
+        QSeries.series.pk,                       // (1)
+        QStudy.study.numberOfSeries,             // (2)
+        QStudy.study.numberOfSeriesA,            // (3)
+        QStudy.study.numberOfInstances,          // (4)
+        QStudy.study.numberOfInstancesA,         // (5)
+        QSeries.series.numberOfInstances,        // (6)
+        QSeries.series.numberOfInstancesA,       // (7)
+        QStudy.study.modalitiesInStudy,          // (8)
+        QStudy.study.sopClassesInStudy,          // (9)
+        QSeries.series.retrieveAETs,             // (10)
+        QSeries.series.externalRetrieveAET,      // (11)
+        QSeries.series.availability,             // (12)
+        QSeries.series.encodedAttributes,        // (13)
+        QStudy.study.encodedAttributes,          // (14)
+        QPatient.patient.encodedAttributes       // (15)
+    };
+
+    // attributes calculated from columns of tables study and series, sorted
+    private static final int[] CALCULATED_TAGS = {
+        Tag.RetrieveAETitle,
+        Tag.InstanceAvailability,
+        Tag.ModalitiesInStudy,
+        Tag.SOPClassesInStudy,
+        Tag.NumberOfStudyRelatedSeries,
+        Tag.NumberOfStudyRelatedInstances,
+        Tag.NumberOfSeriesRelatedInstances
+    };
+
+    private final Projection projection;
     private Long studyPk;
     private Attributes studyAttrs;
 
-    public SeriesQuery(QueryService queryService, IDWithIssuer[] pids,
-            Attributes keys, QueryParam queryParam) {
-        super(queryService, query(queryService.session(), pids, keys, queryParam),
+    public SeriesQuery(QueryService queryService, StatelessSession session,
+            IDWithIssuer[] pids, Attributes keys, QueryParam queryParam) {
+        this(queryService, session, pids, keys, queryParam,
+                Projection.valueOf(queryService.pids(), keys, queryParam,
+                        CALCULATED_TAGS,
+                        Projection.PATIENT, Projection.STUDY,
+                        Projection.SERIES));
+    }
+
+    private SeriesQuery(QueryService queryService, StatelessSession session,
+            IDWithIssuer[] pids, Attributes keys, QueryParam queryParam,
+            Projection projection) {
+        super(queryService, query(session, pids, keys, queryParam),
                 queryParam, false,
-                QStudy.study.pk,                         // (0)
-                QSeries.series.pk,                       // (1)
-                QStudy.study.numberOfSeries,             // (2)
-                QStudy.study.numberOfSeriesA,            // (3)
-                QStudy.study.numberOfInstances,          // (4)
-                QStudy.study.numberOfInstancesA,         // (5)
-                QSeries.series.numberOfInstances,        // (6)
-                QSeries.series.numberOfInstancesA,       // (7)
-                QStudy.study.modalitiesInStudy,          // (8)
-                QStudy.study.sopClassesInStudy,          // (9)
-                QSeries.series.retrieveAETs,             // (10)
-                QSeries.series.externalRetrieveAET,      // (11)
-                QSeries.series.availability,             // (12)
-                QSeries.series.encodedAttributes,        // (13)
-                QStudy.study.encodedAttributes,          // (14)
-                QPatient.patient.encodedAttributes);     // (15)
+                projection != null
+                        ? projection.select(Arrays.copyOf(SELECT, 13))
+                        : SELECT);
+        this.projection = projection;
     }
 
     private static HibernateQuery query(StatelessSession session, IDWithIssuer[] pids,
@@ -96,6 +130,11 @@ class SeriesQuery extends AbstractQuery {
             .where(builder);
     }
 
+    @Override
+    protected NumberPath<Long> pk() {
+        return QSeries.series.pk;
+    }
+
     @Override
     protected Attributes toAttributes(ScrollableResults results) {
         Long studyPk = results.getLong(0);
@@ -106,13 +145,17 @@ class SeriesQuery extends AbstractQuery {
         String retrieveAETs = results.getString(10);
         String externalRetrieveAET = results.getString(11);
         Availability availability = (Availability) results.get(12);
-        byte[] seriesAttributes = results.getBinary(13);
         if (!studyPk.equals(this.studyPk)) {
             this.studyAttrs = toStudyAttributes(studyPk, results);
             this.studyPk = studyPk;
         }
         Attributes attrs = new Attributes(studyAttrs);
-        Utils.decodeAttributes(attrs, seriesAttributes);
+        if (projection != null) {
+            projection.setAttributes(attrs, results, 13);
+        } else {
+            byte[] seriesAttributes = results.getBinary(13);
+            Utils.decodeAttributes(attrs, seriesAttributes);
+        }
         if (a[0] == -1)
             a = queryService.seriesService()
                     .calculateNumberOfSeriesRelatedInstances(seriesPk);
@@ -139,11 +182,13 @@ class SeriesQuery extends AbstractQuery {
                 results.getInteger(5)}; // study.numberOfInstancesA
         String modalitiesInStudy = results.getString(8);
         String sopClassesInStudy = results.getString(9);
-        byte[] studyAttributes = results.getBinary(14);
-        byte[] patientAttributes = results.getBinary(15);
         Attributes attrs = new Attributes();
-        Utils.decodeAttributes(attrs, patientAttributes);
-        Utils.decodeAttributes(attrs, studyAttributes);
+        if (projection == null) {
+            byte[] studyAttributes = results.getBinary(14);
+            byte[] patientAttributes = results.getBinary(15);
+            Utils.decodeAttributes(attrs, patientAttributes);
+            Utils.decodeAttributes(attrs, studyAttributes);
+        }
         if ((a[0] | a[1] | a[2] | a[3]) < 0)
             a = queryService.seriesService()
                     .calculateNumberOfStudyRelatedInstances(studyPk);
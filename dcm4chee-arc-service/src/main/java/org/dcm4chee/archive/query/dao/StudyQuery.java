@@ -38,12 +38,17 @@
 
 package org.dcm4chee.archive.query.dao;
 
+import java.util.Arrays;
+
 import org.dcm4che.data.Attributes;
+import org.dcm4che.data.Tag;
 import org.dcm4chee.archive.common.IDWithIssuer;
 import org.dcm4chee.archive.common.QueryParam;
 import org.dcm4chee.archive.entity.Availability;
 import org.dcm4chee.archive.entity.QPatient;
 import org.dcm4chee.archive.entity.QStudy;
+import org.dcm4chee.archive.entity.QStudyQueryView;
+import org.dcm4chee.archive.entity.StudyQueryView;
 import org.dcm4chee.archive.entity.Utils;
 import org.dcm4chee.archive.util.query.Builder;
 import org.hibernate.ScrollableResults;
@@ -51,39 +56,137 @@ import org.hibernate.StatelessSession;
 
 import com.mysema.query.BooleanBuilder;
 import com.mysema.query.jpa.hibernate.HibernateQuery;
+import com.mysema.query.types.Expression;
+import com.mysema.query.types.path.NumberPath;
 
 /**
  * @author Gunter Zeilinger <gunterze@gmail.com>
  */
 class StudyQuery extends AbstractQuery {
 
-    public StudyQuery(QueryService queryService, IDWithIssuer[] pids,
-            Attributes keys, QueryParam queryParam) {
-        super(queryService, query(queryService.session(), pids, keys, queryParam),
+    private static final Expression<?>[] SELECT = {
+        QStudy.study.pk,                        // (0)
+        QStudy.study.numberOfSeries,            // (1)
+        QStudy.study.numberOfSeriesA,           // (2)
+        QStudy.study.numberOfInstances,         // (3)
+        QStudy.study.numberOfInstancesA,        // (4)
+        QStudy.study.modalitiesInStudy,         // (5)
+        QStudy.study.sopClassesInStudy,         // (6)
+        QStudy.study.retrieveAETs,              // (7)
+        QStudy.study.externalRetrieveAET,       // (8)
+        QStudy.study.availability,              // (9)
+        QStudy.study.encodedAttributes,         // (10)
+        QPatient.patient.encodedAttributes      // (11)
+    };
+
+    // columns in order of StudyQueryView.TAGS
+    private static final Expression<?>[] SELECT_VIEW = {
+        QStudy.study.pk,                        // (0)
+        QStudy.study.numberOfSeries,            // (1)
+        QStudy.study.numberOfSeriesA,           // (2)
+        QStudy.study.numberOfInstances,         // (3)
+        QStudy.study.numberOfInstancesA,        // (4)
+        QStudy.study.modalitiesInStudy,         // (5)
+        QStudy.study.sopClassesInStudy,         // (6)
+        QStudy.study.retrieveAETs,              // (7)
+        QStudy.study.externalRetrieveAET,       // (8)
+        QStudy.study.availability,              // (9)
+        QStudyQueryView.studyQueryView.pk,      // (10)
+        QStudyQueryView.studyQueryView.specificCharacterSet,
+        QStudyQueryView.studyQueryView.studyDate,
+        QStudyQueryView.studyQueryView.studyTime,
+        QStudyQueryView.studyQueryView.accessionNumber,
+        QStudyQueryView.studyQueryView.referringPhysicianName,
+        QStudyQueryView.studyQueryView.studyDescription,
+        QStudyQueryView.studyQueryView.patientName,
+        QStudyQueryView.studyQueryView.patientID,
+        QStudyQueryView.studyQueryView.issuerOfPatientID,
+        QStudyQueryView.studyQueryView.patientBirthDate,
+        QStudyQueryView.studyQueryView.patientSex,
+        QStudyQueryView.studyQueryView.studyInstanceUID,
+        QStudyQueryView.studyQueryView.studyID
+    };
+
+    // attributes calculated from columns of table study, sorted
+    private static final int[] CALCULATED_TAGS = {
+        Tag.RetrieveAETitle,
+        Tag.InstanceAvailability,
+        Tag.ModalitiesInStudy,
+        Tag.SOPClassesInStudy,
+        Tag.NumberOfStudyRelatedSeries,
+        Tag.NumberOfStudyRelatedInstances
+    };
+
+    private final Projection projection;
+    private final boolean useQueryView;
+
+    public StudyQuery(QueryService queryService, StatelessSession session,
+            IDWithIssuer[] pids, Attributes keys, QueryParam queryParam) {
+        this(queryService, session, pids, keys, queryParam,
+                Projection.valueOf(queryService.pids(), keys, queryParam,
+                        CALCULATED_TAGS, Projection.PATIENT, Projection.STUDY));
+    }
+
+    private StudyQuery(QueryService queryService, StatelessSession session,
+            IDWithIssuer[] pids, Attributes keys, QueryParam queryParam,
+            Projection projection) {
+        this(queryService, session, pids, keys, queryParam, projection,
+                projection == null
+                        && useQueryView(queryService.pids(), keys, queryParam));
+    }
+
+    private StudyQuery(QueryService queryService, StatelessSession session,
+            IDWithIssuer[] pids, Attributes keys, QueryParam queryParam,
+            Projection projection, boolean useQueryView) {
+        super(queryService,
+                query(session, pids, keys, queryParam, useQueryView),
                 queryParam, false,
-                QStudy.study.pk,                        // (0)
-                QStudy.study.numberOfSeries,            // (1)
-                QStudy.study.numberOfSeriesA,           // (2)
-                QStudy.study.numberOfInstances,         // (3)
-                QStudy.study.numberOfInstancesA,        // (4)
-                QStudy.study.modalitiesInStudy,         // (5)
-                QStudy.study.sopClassesInStudy,         // (6)
-                QStudy.study.retrieveAETs,              // (7)
-                QStudy.study.externalRetrieveAET,       // (8)
-                QStudy.study.availability,              // (9)
-                QStudy.study.encodedAttributes,         // (10)
-                QPatient.patient.encodedAttributes);    // (11)
+                projection != null
+                        ? projection.select(Arrays.copyOf(SELECT, 10))
+                        : useQueryView ? SELECT_VIEW : SELECT);
+        this.projection = projection;
+        this.useQueryView = useQueryView;
+    }
+
+    /**
+     * Returns {@code true}, if all requested return keys are provided by
+     * {@link StudyQueryView} or calculated from columns of table study, and
+     * no issuer has to be compared with the - not flattened - issuer of the
+     * match.
+     */
+    private static boolean useQueryView(IDWithIssuer[] pids, Attributes keys,
+            QueryParam queryParam) {
+        if (!queryParam.isStudyQueryView()
+                || queryParam.isReturnAllAttributes()
+                || issuerRequested(pids, keys, queryParam))
+            return false;
+
+        for (int tag : keys.tags())
+            if (tag != Tag.QueryRetrieveLevel
+                    && Arrays.binarySearch(StudyQueryView.TAGS, tag) < 0
+                    && Arrays.binarySearch(CALCULATED_TAGS, tag) < 0)
+                return false;
+
+        return true;
     }
 
     private static HibernateQuery query(StatelessSession session, IDWithIssuer[] pids,
-            Attributes keys, QueryParam queryParam) {
+            Attributes keys, QueryParam queryParam, boolean useQueryView) {
         BooleanBuilder builder = new BooleanBuilder();
         Builder.addPatientLevelPredicates(builder, pids, keys, queryParam);
         Builder.addStudyLevelPredicates(builder, keys, queryParam);
-        return new HibernateQuery(session)
+        HibernateQuery query = new HibernateQuery(session)
             .from(QStudy.study)
-            .innerJoin(QStudy.study.patient, QPatient.patient)
-            .where(builder);
+            .innerJoin(QStudy.study.patient, QPatient.patient);
+        if (useQueryView)
+            query.leftJoin(QStudy.study.queryView,
+                    QStudyQueryView.studyQueryView);
+        return query.where(builder);
+    }
+
+    @Override
+    protected NumberPath<Long> pk() {
+        return QStudy.study.pk;
     }
 
     @Override
@@ -99,11 +202,31 @@ class StudyQuery extends AbstractQuery {
         String retrieveAETs = results.getString(7);
         String externalRetrieveAET = results.getString(8);
         Availability availability = (Availability) results.get(9);
-        byte[] studyAttributes = results.getBinary(10);
-        byte[] patientAttributes = results.getBinary(11);
         Attributes attrs = new Attributes();
-        Utils.decodeAttributes(attrs, patientAttributes);
-        Utils.decodeAttributes(attrs, studyAttributes);
+        if (projection != null) {
+            projection.setAttributes(attrs, results, 10);
+        } else if (!useQueryView) {
+            byte[] studyAttributes = results.getBinary(10);
+            byte[] patientAttributes = results.getBinary(11);
+            Utils.decodeAttributes(attrs, patientAttributes);
+            Utils.decodeAttributes(attrs, studyAttributes);
+        } else if (results.get(10) != null) {
+            int[] tags = StudyQueryView.TAGS;
+            for (int i = 0; i < tags.length; i++)
+                StudyQueryView.setValue(attrs, tags[i],
+                        results.getString(11 + i));
+        } else {
+            // no StudyQueryView record - yet
+            Object[] blobs = new HibernateQuery(queryService.session())
+                .from(QStudy.study)
+                .innerJoin(QStudy.study.patient, QPatient.patient)
+                .where(QStudy.study.pk.eq(studyPk))
+                .uniqueResult(
+                    QStudy.study.encodedAttributes,
+                    QPatient.patient.encodedAttributes);
+            Utils.decodeAttributes(attrs, (byte[]) blobs[1]);
+            Utils.decodeAttributes(attrs, (byte[]) blobs[0]);
+        }
         if (a[2] == -1)
             a = queryService.seriesService()
                     .calculateNumberOfStudyRelatedInstances(studyPk);
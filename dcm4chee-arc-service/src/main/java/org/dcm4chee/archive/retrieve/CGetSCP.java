@@ -121,6 +121,7 @@ public class CGetSCP extends BasicCGetSCP {
             retrieveTask.setSendPendingRSP(aeExt.isSendPendingCGet());
             retrieveTask.setReturnOtherPatientIDs(aeExt.isReturnOtherPatientIDs());
             retrieveTask.setReturnOtherPatientNames(aeExt.isReturnOtherPatientNames());
+            retrieveTask.setPrefetchDepth(aeExt.getRetrievePrefetchDepth());
             return retrieveTask;
         } catch (Exception e) {
             throw new DicomServiceException(Status.UnableToCalculateNumberOfMatches, e);
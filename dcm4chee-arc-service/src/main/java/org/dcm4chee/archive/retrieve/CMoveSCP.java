@@ -137,6 +137,8 @@ public class CMoveSCP extends BasicCMoveSCP {
             retrieveTask.setSendPendingRSPInterval(aeExt.getSendPendingCMoveInterval());
             retrieveTask.setReturnOtherPatientIDs(aeExt.isReturnOtherPatientIDs());
             retrieveTask.setReturnOtherPatientNames(aeExt.isReturnOtherPatientNames());
+            retrieveTask.setPrefetchDepth(aeExt.getRetrievePrefetchDepth());
+            retrieveTask.setMaxStoreAssociations(aeExt.getMoveStoreAssociations());
             return retrieveTask;
         } catch (ConfigurationNotFoundException e) {
             throw new DicomServiceException(Status.MoveDestinationUnknown,
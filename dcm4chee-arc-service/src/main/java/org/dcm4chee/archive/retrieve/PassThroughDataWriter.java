@@ -0,0 +1,135 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+package org.dcm4chee.archive.retrieve;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.dcm4che.data.Attributes;
+import org.dcm4che.io.DicomInputStream;
+import org.dcm4che.net.DataWriter;
+import org.dcm4che.net.PDVOutputStream;
+import org.dcm4che.util.SafeClose;
+
+/**
+ * Writes the dataset of a stored instance file unmodified, by transferring
+ * the bytes following the File Meta Information from the file channel to
+ * the PDV output stream, without decoding and re-encoding the dataset.
+ * 
+ * @author agent <agent@local>
+ */
+public class PassThroughDataWriter implements DataWriter {
+
+    private static final AtomicLong passedThrough = new AtomicLong();
+    static final AtomicLong patched = new AtomicLong();
+    private static final AtomicLong encoded = new AtomicLong();
+
+    private final File file;
+    private final long offset;
+
+    public PassThroughDataWriter(File file, long offset) {
+        this(file, offset, passedThrough);
+    }
+
+    PassThroughDataWriter(File file, long offset, AtomicLong counter) {
+        this.file = file;
+        this.offset = offset;
+        counter.incrementAndGet();
+    }
+
+    /**
+     * Returns the position of the dataset in the specified file, or -1 if
+     * the file does not contain File Meta Information or if its dataset is
+     * not encoded with the specified Transfer Syntax.
+     */
+    public static long datasetOffset(File file, String tsuid)
+            throws IOException {
+        DicomInputStream in = new DicomInputStream(file);
+        try {
+            Attributes fmi = in.readFileMetaInformation();
+            return fmi != null && tsuid.equals(in.getTransferSyntax())
+                    ? in.getPosition()
+                    : -1L;
+        } finally {
+            SafeClose.close(in);
+        }
+    }
+
+    public static void countEncoded() {
+        encoded.incrementAndGet();
+    }
+
+    @Override
+    public void writeTo(PDVOutputStream out, String tsuid) throws IOException {
+        transferFile(out);
+    }
+
+    protected void transferFile(PDVOutputStream out) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            WritableByteChannel target = Channels.newChannel(out);
+            long pos = offset;
+            long end = channel.size();
+            while (pos < end) {
+                long n = channel.transferTo(pos, end - pos, target);
+                if (n <= 0)
+                    throw new EOFException(file.getPath());
+                pos += n;
+            }
+        } finally {
+            SafeClose.close(in);
+        }
+    }
+
+    public static String statistics() {
+        long passedThrough = PassThroughDataWriter.passedThrough.get();
+        long patched = PassThroughDataWriter.patched.get();
+        long total = passedThrough + patched + encoded.get();
+        return String.format(
+                "instances=%d, passedThrough=%d, patched=%d, ratio=%.3f",
+                total, passedThrough, patched,
+                total == 0 ? 0.0 : (double) (passedThrough + patched) / total);
+    }
+}
@@ -0,0 +1,140 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+package org.dcm4chee.archive.retrieve;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.dcm4che.data.Attributes;
+import org.dcm4che.data.Tag;
+import org.dcm4che.data.UID;
+import org.dcm4che.io.DicomInputStream;
+import org.dcm4che.io.DicomOutputStream;
+import org.dcm4che.net.PDVOutputStream;
+import org.dcm4che.util.SafeClose;
+
+/**
+ * Writes the modified attributes preceding the Pixel Data of a stored
+ * instance file, followed by the unmodified bytes of the file from the
+ * Pixel Data element onwards.
+ * 
+ * @author agent <agent@local>
+ */
+public class PatchDataWriter extends PassThroughDataWriter {
+
+    private final Attributes header;
+
+    private PatchDataWriter(File file, long offset, Attributes header) {
+        super(file, offset, patched);
+        this.header = header;
+    }
+
+    /**
+     * Returns a writer for the specified modified attributes, or
+     * {@code null} if the attributes differ from the stored attributes in
+     * or after the Pixel Data element, or if the file cannot be spliced.
+     */
+    public static PatchDataWriter valueOf(File file, String tsuid,
+            Attributes stored, Attributes modified) throws IOException {
+        if (tsuid.equals(UID.DeflatedExplicitVRLittleEndian)
+                || tsuid.equals(UID.JPIPReferencedDeflate))
+            return null;
+
+        int[] storedTags = stored.tags();
+        int[] modifiedTags = modified.tags();
+        int storedHeader = headerSize(storedTags);
+        int modifiedHeader = headerSize(modifiedTags);
+        if (storedHeader == storedTags.length
+                || storedTags.length - storedHeader
+                    != modifiedTags.length - modifiedHeader)
+            return null;
+
+        for (int i = storedHeader, j = modifiedHeader;
+                i < storedTags.length; i++, j++) {
+            if (storedTags[i] != modifiedTags[j]
+                    || !equalValues(stored.getValue(storedTags[i]),
+                            modified.getValue(modifiedTags[j])))
+                return null;
+        }
+
+        long offset = pixelDataOffset(file, tsuid);
+        if (offset < 0)
+            return null;
+
+        return new PatchDataWriter(file, offset,
+                new Attributes(modified, modified.bigEndian(),
+                        Arrays.copyOf(modifiedTags, modifiedHeader)));
+    }
+
+    private static int headerSize(int[] tags) {
+        int i = 0;
+        while (i < tags.length && (tags[i] & 0xffffffffL) < Tag.PixelData)
+            i++;
+        return i;
+    }
+
+    private static boolean equalValues(Object v1, Object v2) {
+        if (v1 instanceof byte[] && v2 instanceof byte[])
+            return Arrays.equals((byte[]) v1, (byte[]) v2);
+        return v1 == null ? v2 == null : v1.equals(v2);
+    }
+
+    private static long pixelDataOffset(File file, String tsuid)
+            throws IOException {
+        DicomInputStream in = new DicomInputStream(file);
+        try {
+            Attributes fmi = in.readFileMetaInformation();
+            if (fmi == null || !tsuid.equals(in.getTransferSyntax()))
+                return -1L;
+
+            in.readDataset(-1, Tag.PixelData);
+            return in.tag() == Tag.PixelData ? in.getTagPosition() : -1L;
+        } finally {
+            SafeClose.close(in);
+        }
+    }
+
+    @Override
+    public void writeTo(PDVOutputStream out, String tsuid) throws IOException {
+        @SuppressWarnings("resource")
+        DicomOutputStream dos = new DicomOutputStream(out, tsuid);
+        dos.writeDataset(null, header);
+        transferFile(out);
+    }
+}
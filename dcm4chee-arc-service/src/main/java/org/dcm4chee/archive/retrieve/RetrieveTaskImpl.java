@@ -38,8 +38,19 @@
 
 package org.dcm4chee.archive.retrieve;
 
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 import javax.xml.transform.Templates;
 
@@ -55,21 +66,28 @@ import org.dcm4che.io.DicomInputStream.IncludeBulkData;
 import org.dcm4che.io.SAXTransformer;
 import org.dcm4che.net.ApplicationEntity;
 import org.dcm4che.net.Association;
+import org.dcm4che.net.Commands;
 import org.dcm4che.net.DataWriter;
 import org.dcm4che.net.DataWriterAdapter;
 import org.dcm4che.net.Device;
 import org.dcm4che.net.Dimse;
+import org.dcm4che.net.DimseRSPHandler;
+import org.dcm4che.net.Status;
 import org.dcm4che.net.TransferCapability.Role;
 import org.dcm4che.net.pdu.PresentationContext;
 import org.dcm4che.net.service.BasicRetrieveTask;
+import org.dcm4che.net.service.DicomServiceException;
 import org.dcm4che.net.service.InstanceLocator;
 import org.dcm4che.util.SafeClose;
 import org.dcm4che.util.StringUtils;
 import org.dcm4chee.archive.Archive;
 import org.dcm4chee.archive.common.IDWithIssuer;
 import org.dcm4chee.archive.conf.ArchiveAEExtension;
+import org.dcm4chee.archive.retrieve.dao.InstanceAttributes;
 import org.dcm4chee.archive.retrieve.dao.RetrieveService;
 import org.dcm4chee.archive.util.AuditUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * @author Gunter Zeilinger <gunterze@gmail.com>
@@ -77,6 +95,11 @@ import org.dcm4chee.archive.util.AuditUtils;
  */
 class RetrieveTaskImpl extends BasicRetrieveTask {
 
+    private static final Logger LOG =
+            LoggerFactory.getLogger(RetrieveTaskImpl.class);
+
+    private static final int READ_AHEAD_BUFFER_SIZE = 65536;
+
     private final RetrieveService retrieveService;
     private final boolean withoutBulkData;
     private IDWithIssuer[] pids;
@@ -85,6 +108,15 @@ class RetrieveTaskImpl extends BasicRetrieveTask {
     private boolean returnOtherPatientNames;
     private Issuer requestedIssuerOfPatientID;
     private Issuer requestedIssuerOfAccessionNumber;
+    private int maxStoreAssociations = 1;
+    private int sendPendingRSPInterval;
+    private volatile boolean cancelRQ;
+    private boolean done;
+    private Iterator<InstanceLocator> remaining;
+    private int prefetchDepth;
+    private int nextPrefetch;
+    private final LinkedHashMap<InstanceLocator, Future<Attributes>> prefetched =
+            new LinkedHashMap<InstanceLocator, Future<Attributes>>();
 
     public RetrieveTaskImpl(BasicRetrieveTask.Service service, Association as,
             PresentationContext pc, Attributes rq, List<InstanceLocator> matches,
@@ -109,6 +141,227 @@ class RetrieveTaskImpl extends BasicRetrieveTask {
         this.returnOtherPatientNames = returnOtherPatientNames;
     }
 
+    /**
+     * Sets the maximal number of associations to the Move Destination, over
+     * which the C-STORE sub-operations are spread. Each association keeps up
+     * to the negotiated maximal number of operations invoked outstanding.
+     */
+    public void setMaxStoreAssociations(int maxStoreAssociations) {
+        this.maxStoreAssociations = maxStoreAssociations;
+    }
+
+    /**
+     * Sets the number of instances following the one currently sent, which
+     * files are read ahead and parsed by the device executor.
+     */
+    public void setPrefetchDepth(int prefetchDepth) {
+        this.prefetchDepth = prefetchDepth;
+    }
+
+    @Override
+    public void setSendPendingRSPInterval(int sendPendingRSPInterval) {
+        super.setSendPendingRSPInterval(sendPendingRSPInterval);
+        this.sendPendingRSPInterval = sendPendingRSPInterval;
+    }
+
+    @Override
+    public void onCancelRQ(Association as) {
+        super.onCancelRQ(as);
+        cancelRQ = true;
+    }
+
+    @Override
+    public void run() {
+        int n = Math.min(maxStoreAssociations, insts.size());
+        if (n <= 1) {
+            super.run();
+            return;
+        }
+        int msgId = rq.getInt(Tag.MessageID, -1);
+        as.addCancelRQHandler(msgId, this);
+        try {
+            runOverStoreAssociations(n);
+        } finally {
+            as.removeCancelRQHandler(msgId);
+            close();
+        }
+    }
+
+    private void runOverStoreAssociations(int n) {
+        List<Association> storeass = new ArrayList<Association>(n);
+        try {
+            storeass.add(getStoreAssociation());
+        } catch (DicomServiceException e) {
+            Attributes cmd = Commands.mkCMoveRSP(rq, e.getStatus());
+            cmd.setString(Tag.ErrorComment, VR.LO, e.getMessage());
+            writeRSP(cmd, null);
+            return;
+        }
+        while (storeass.size() < n) {
+            try {
+                storeass.add(getStoreAssociation());
+            } catch (DicomServiceException e) {
+                LOG.info("{}: failed to open additional association to {}: {}",
+                        as, rq.getString(Tag.MoveDestination), e.getMessage());
+                break;
+            }
+        }
+        Device device = as.getApplicationEntity().getDevice();
+        ScheduledFuture<?> writePendingRSP = null;
+        if (sendPendingRSPInterval > 0)
+            writePendingRSP = device.scheduleAtFixedRate(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        writePendingRSP();
+                    }
+                },
+                sendPendingRSPInterval, sendPendingRSPInterval,
+                TimeUnit.SECONDS);
+        remaining = insts.iterator();
+        List<FutureTask<Void>> tasks = new ArrayList<FutureTask<Void>>(n);
+        try {
+            for (int i = 1; i < storeass.size(); i++) {
+                final Association storeas = storeass.get(i);
+                FutureTask<Void> task = new FutureTask<Void>(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        cstoreRemaining(storeas);
+                    }
+                }, null);
+                tasks.add(task);
+                device.execute(task);
+            }
+            cstoreRemaining(storeass.get(0));
+            for (FutureTask<Void> task : tasks)
+                task.get();
+        } catch (Exception e) {
+            LOG.warn("{}: C-STORE sub-operations interrupted", as, e);
+        } finally {
+            if (writePendingRSP != null)
+                writePendingRSP.cancel(false);
+        }
+        writeFinalRSP();
+    }
+
+    private synchronized InstanceLocator nextRemaining() {
+        return !cancelRQ && remaining.hasNext() ? remaining.next() : null;
+    }
+
+    private void cstoreRemaining(Association storeas) {
+        try {
+            InstanceLocator inst;
+            while ((inst = nextRemaining()) != null)
+                cstore(storeas, inst);
+            storeas.waitForOutstandingRSP();
+        } catch (InterruptedException e) {
+            LOG.warn("{}: failed to wait for outstanding C-STORE RSPs", storeas, e);
+        } finally {
+            try {
+                storeas.release();
+            } catch (IOException e) {
+                LOG.warn("{}: failed to release association", storeas, e);
+            }
+        }
+    }
+
+    private void cstore(Association storeas, final InstanceLocator inst) {
+        try {
+            String tsuid = selectTransferSyntaxFor(storeas, inst);
+            DataWriter data = createDataWriter(inst, tsuid);
+            storeas.cstore(inst.cuid, inst.iuid, rq.getInt(Tag.Priority, 0),
+                    as.getRemoteAET(), rq.getInt(Tag.MessageID, -1),
+                    data, tsuid,
+                    new DimseRSPHandler(storeas.nextMessageID()) {
+
+                        @Override
+                        public void onDimseRSP(Association storeas,
+                                Attributes cmd, Attributes data) {
+                            super.onDimseRSP(storeas, cmd, data);
+                            stored(inst, cmd.getInt(Tag.Status, -1));
+                        }
+
+                        @Override
+                        public void onClose(Association storeas) {
+                            super.onClose(storeas);
+                            stored(inst, Status.UnableToProcess);
+                        }
+                    });
+        } catch (Exception e) {
+            LOG.info("{}: failed to send {}:", storeas, inst, e);
+            stored(inst, Status.UnableToProcess);
+        }
+    }
+
+    private synchronized void stored(InstanceLocator inst, int status) {
+        if (status == Status.Success)
+            completed++;
+        else if ((status & 0xF000) == 0xB000)
+            warning++;
+        else
+            failed.add(inst.iuid);
+    }
+
+    private synchronized void writePendingRSP() {
+        int remaining = insts.size()
+                - completed - warning - failed.size();
+        if (done || cancelRQ || remaining <= 0)
+            return;
+
+        Attributes cmd = Commands.mkCMoveRSP(rq, Status.Pending);
+        cmd.setInt(Tag.NumberOfRemainingSuboperations, VR.US, remaining);
+        setNumberOfSuboperations(cmd);
+        writeRSP(cmd, null);
+    }
+
+    /**
+     * Writes the final C-MOVE-RSP under the task lock, so no pending
+     * C-MOVE-RSP, which was already triggered, can follow it.
+     */
+    private synchronized void writeFinalRSP() {
+        done = true;
+        writeRSP(mkFinalRSP(), mkFinalRSPData());
+    }
+
+    private synchronized Attributes mkFinalRSP() {
+        int status = cancelRQ ? Status.Cancel
+                : failed.isEmpty() && warning == 0 ? Status.Success
+                : completed == 0 && warning == 0
+                        ? Status.UnableToPerformSubOperations
+                        : Status.OneOrMoreFailures;
+        Attributes cmd = Commands.mkCMoveRSP(rq, status);
+        if (cancelRQ)
+            cmd.setInt(Tag.NumberOfRemainingSuboperations, VR.US,
+                    insts.size() - completed - warning - failed.size());
+        setNumberOfSuboperations(cmd);
+        return cmd;
+    }
+
+    private synchronized Attributes mkFinalRSPData() {
+        if (failed.isEmpty())
+            return null;
+
+        Attributes data = new Attributes(1);
+        data.setString(Tag.FailedSOPInstanceUIDList, VR.UI,
+                failed.toArray(new String[failed.size()]));
+        return data;
+    }
+
+    private void setNumberOfSuboperations(Attributes cmd) {
+        cmd.setInt(Tag.NumberOfCompletedSuboperations, VR.US, completed);
+        cmd.setInt(Tag.NumberOfFailedSuboperations, VR.US, failed.size());
+        cmd.setInt(Tag.NumberOfWarningSuboperations, VR.US, warning);
+    }
+
+    private void writeRSP(Attributes cmd, Attributes data) {
+        try {
+            as.writeDimseRSP(pc, cmd, data);
+        } catch (IOException e) {
+            LOG.warn("{}: failed to write C-MOVE-RSP", as, e);
+        }
+    }
+
     @Override
     protected String selectTransferSyntaxFor(Association storeas, InstanceLocator inst) {
         if (storeas.getTransferSyntaxesFor(inst.cuid).contains(inst.tsuid))
@@ -120,20 +373,13 @@ class RetrieveTaskImpl extends BasicRetrieveTask {
     @Override
     protected DataWriter createDataWriter(InstanceLocator inst, String tsuid)
             throws IOException {
-        Attributes attrs;
-        DicomInputStream in = new DicomInputStream(inst.getFile());
-        try {
-            if (withoutBulkData) {
-                in.setIncludeBulkData(IncludeBulkData.NO);
-                attrs = in.readDataset(-1, Tag.PixelData);
-            } else {
-                in.setIncludeBulkData(IncludeBulkData.URI);
-                attrs = in.readDataset(-1, -1);
-            }
-        } finally {
-            SafeClose.close(in);
-        }
-        attrs.addAll((Attributes) inst.getObject());
+        Attributes attrs = prefetchDepth > 0
+                ? prefetchedDataset(inst)
+                : readDataset(inst);
+        Attributes stored = !withoutBulkData && tsuid.equals(inst.tsuid)
+                ? new Attributes(attrs)
+                : null;
+        attrs.addAll(((InstanceAttributes) inst.getObject()).getAttributes());
         if (!tsuid.equals(inst.tsuid))
             Decompressor.decompress(attrs, inst.tsuid);
 
@@ -149,9 +395,121 @@ class RetrieveTaskImpl extends BasicRetrieveTask {
         } catch (Exception e) {
             throw new IOException(e);
         }
+        if (stored != null) {
+            if (stored.equals(attrs)) {
+                long offset = PassThroughDataWriter.datasetOffset(
+                        inst.getFile(), inst.tsuid);
+                if (offset >= 0)
+                    return new PassThroughDataWriter(inst.getFile(), offset);
+            } else {
+                DataWriter patch = PatchDataWriter.valueOf(
+                        inst.getFile(), inst.tsuid, stored, attrs);
+                if (patch != null)
+                    return patch;
+            }
+        }
+        PassThroughDataWriter.countEncoded();
         return new DataWriterAdapter(attrs);
     }
 
+    private Attributes readDataset(InstanceLocator inst) throws IOException {
+        DicomInputStream in = new DicomInputStream(inst.getFile());
+        try {
+            if (withoutBulkData) {
+                in.setIncludeBulkData(IncludeBulkData.NO);
+                return in.readDataset(-1, Tag.PixelData);
+            } else {
+                in.setIncludeBulkData(IncludeBulkData.URI);
+                return in.readDataset(-1, -1);
+            }
+        } finally {
+            SafeClose.close(in);
+        }
+    }
+
+    private Attributes prefetchedDataset(InstanceLocator inst)
+            throws IOException {
+        Future<Attributes> future;
+        synchronized (prefetched) {
+            while (prefetched.size() <= prefetchDepth
+                    && nextPrefetch < insts.size())
+                prefetch(insts.get(nextPrefetch++));
+            future = removePrefetched(inst);
+        }
+        if (future == null)
+            return readDataset(inst);
+
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Removes the prefetch of the specified locator and cancels and removes
+     * prefetches of preceding locators, which were skipped - e.g. because
+     * of a not negotiated SOP Class - and would otherwise block the window.
+     */
+    private Future<Attributes> removePrefetched(InstanceLocator inst) {
+        if (!prefetched.containsKey(inst))
+            return null;
+
+        for (Iterator<Map.Entry<InstanceLocator, Future<Attributes>>> it =
+                prefetched.entrySet().iterator(); it.hasNext();) {
+            Map.Entry<InstanceLocator, Future<Attributes>> entry = it.next();
+            it.remove();
+            if (entry.getKey().equals(inst))
+                return entry.getValue();
+            entry.getValue().cancel(false);
+        }
+        return null;
+    }
+
+    private void prefetch(final InstanceLocator inst) {
+        FutureTask<Attributes> task = new FutureTask<Attributes>(
+                new Callable<Attributes>() {
+
+                    @Override
+                    public Attributes call() throws Exception {
+                        Attributes attrs = readDataset(inst);
+                        if (!withoutBulkData)
+                            readAhead(inst);
+                        return attrs;
+                    }
+                });
+        prefetched.put(inst, task);
+        as.getApplicationEntity().getDevice().execute(task);
+    }
+
+    /**
+     * Reads the whole file, so the bulk data is already in the page cache
+     * when it is written to the Move Destination.
+     */
+    private static void readAhead(InstanceLocator inst) throws IOException {
+        FileInputStream in = new FileInputStream(inst.getFile());
+        try {
+            byte[] buf = new byte[READ_AHEAD_BUFFER_SIZE];
+            while (in.read(buf) > 0)
+                ;
+        } finally {
+            SafeClose.close(in);
+        }
+    }
+
+    private void cancelPrefetch() {
+        synchronized (prefetched) {
+            for (Future<Attributes> future : prefetched.values())
+                future.cancel(false);
+            prefetched.clear();
+        }
+    }
+
     private void adjustPatientID(Attributes attrs) {
         IDWithIssuer pid = IDWithIssuer.pidWithIssuer(attrs, null);
         if (pid == null)
@@ -227,6 +585,7 @@ class RetrieveTaskImpl extends BasicRetrieveTask {
 
     @Override
     protected void close() {
+        cancelPrefetch();
         super.close();
         AuditUtils.logRetrieve(as, insts, failed);
     }
@@ -40,7 +40,9 @@ package org.dcm4chee.archive.retrieve.dao;
 
 import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
@@ -135,6 +137,11 @@ public class RetrieveService {
     }
 
     private List<InstanceLocator> locate(List<Object[]> tuples) {
+        LinkedHashSet<Long> seriesPks = new LinkedHashSet<Long>();
+        for (Object[] tuple : tuples)
+            seriesPks.add((Long) tuple[3]);
+        Map<Long, Attributes> seriesAttrsByPk =
+                seriesService.getAttributes(seriesPks);
         List<InstanceLocator> locators = new ArrayList<InstanceLocator>(tuples.size());
         long instPk = -1;
         long seriesPk = -1;
@@ -146,7 +153,7 @@ public class RetrieveService {
             long nextSeriesPk = (Long) tuple[3];
             long nextInstPk = (Long) tuple[4];
             if (seriesPk != nextSeriesPk) {
-                seriesAttrs = seriesService.getAttributes(nextSeriesPk);
+                seriesAttrs = seriesAttrsByPk.get(nextSeriesPk);
                 seriesPk = nextSeriesPk;
             }
             if (instPk != nextInstPk) {
@@ -155,12 +162,10 @@ public class RetrieveService {
                 String retrieveAETs = (String) tuple[7];
                 String externalRetrieveAET = (String) tuple[8];
                 String uri;
-                Attributes attrs;
+                InstanceAttributes attrs =
+                        new InstanceAttributes(seriesAttrs, (byte[]) tuple[9]);
                 if (fsuri != null) {
                     uri = fsuri + filePath;
-                    byte[] instAttrs = (byte[]) tuple[9];
-                    attrs = new Attributes(seriesAttrs);
-                    Utils.decodeAttributes(attrs, instAttrs);
                 } else {
                     StringBuilder sb = new StringBuilder();
                     sb.append("aet:");
@@ -173,7 +178,6 @@ public class RetrieveService {
                         sb.append(externalRetrieveAET);
                     }
                     uri = sb.toString();
-                    attrs = null;
                 }
                 locators.add(new InstanceLocator(cuid, iuid, tsuid, uri).setObject(attrs));
                 instPk = nextInstPk;
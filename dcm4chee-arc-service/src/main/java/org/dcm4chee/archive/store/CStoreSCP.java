@@ -39,21 +39,28 @@
 package org.dcm4chee.archive.store;
 
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
-import java.security.DigestOutputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 import javax.ejb.EJB;
-import javax.xml.transform.Templates;
+import javax.ejb.EJBException;
 
 import org.dcm4che.audit.AuditMessage;
 import org.dcm4che.audit.AuditMessages.EventOutcomeIndicator;
-import org.dcm4che.conf.api.ConfigurationNotFoundException;
 import org.dcm4che.data.Attributes;
 import org.dcm4che.data.BulkData;
 import org.dcm4che.data.Tag;
@@ -64,31 +71,38 @@ import org.dcm4che.imageio.codec.Compressor;
 import org.dcm4che.io.DicomInputStream;
 import org.dcm4che.io.DicomInputStream.IncludeBulkData;
 import org.dcm4che.io.DicomOutputStream;
-import org.dcm4che.io.SAXTransformer;
 import org.dcm4che.net.ApplicationEntity;
 import org.dcm4che.net.Association;
+import org.dcm4che.net.Commands;
+import org.dcm4che.net.Device;
 import org.dcm4che.net.Dimse;
 import org.dcm4che.net.PDVInputStream;
 import org.dcm4che.net.Status;
-import org.dcm4che.net.TransferCapability;
 import org.dcm4che.net.pdu.PresentationContext;
 import org.dcm4che.net.service.BasicCStoreSCP;
 import org.dcm4che.net.service.DicomServiceException;
 import org.dcm4che.util.AttributesFormat;
 import org.dcm4che.util.SafeClose;
+import org.dcm4che.util.StreamUtils;
 import org.dcm4che.util.TagUtils;
 import org.dcm4chee.archive.Archive;
 import org.dcm4chee.archive.common.StoreParam;
 import org.dcm4chee.archive.conf.ArchiveAEExtension;
+import org.dcm4chee.archive.conf.FileSystemSelection;
 import org.dcm4chee.archive.entity.FileRef;
 import org.dcm4chee.archive.entity.FileSystem;
 import org.dcm4chee.archive.entity.Instance;
 import org.dcm4chee.archive.entity.PerformedProcedureStep;
 import org.dcm4chee.archive.mpps.dao.IANQueryService;
+import org.dcm4chee.archive.store.dao.FileSystemSelector;
+import org.dcm4chee.archive.store.dao.PendingFileRef;
 import org.dcm4chee.archive.store.dao.StoreContext;
 import org.dcm4chee.archive.store.dao.StoreService;
 import org.dcm4chee.archive.util.AuditUtils;
+import org.dcm4chee.archive.util.ChecksumMessageDigest;
 import org.dcm4chee.archive.util.FileUtils;
+import org.dcm4chee.archive.util.PipelinedDigestOutputStream;
+import org.dcm4chee.archive.util.TeeInputStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -99,11 +113,35 @@ import org.slf4j.LoggerFactory;
 public class CStoreSCP extends BasicCStoreSCP {
 
     private static final String STORE_CONTEXT_PROPERTY = StoreContext.class.getName();
+    private static final String STORE_BATCH_PROPERTY = StoreBatch.class.getName();
+    private static final String COERCION_PLAN_PROPERTY = CoercionPlan.class.getName();
     private static final String AUDIT_MESSAGE_SUCCESS = "InstanceStoredSuccess";
     private static final String AUDIT_MESSAGE_FAILURE = "InstanceStoredFailed";
 
     private static final Logger LOG = LoggerFactory.getLogger(CStoreSCP.class);
 
+    /**
+     * Maximal length of the attributes preceding the Pixel Data, which are
+     * buffered to select the file system and - on direct write - to calculate
+     * the storage file path before the object is written. Objects with longer
+     * headers are spooled on the first file system of the group.
+     */
+    private static final int MAX_HEADER_LENGTH = 8192;
+
+    @SuppressWarnings("serial")
+    private static final class HeaderTooLongException extends IOException {
+    }
+
+    private static final class StoredFile {
+        final Attributes attrs;
+        final String digest;
+
+        StoredFile(Attributes attrs, String digest) {
+            this.attrs = attrs;
+            this.digest = digest;
+        }
+    }
+
 
     @EJB
     private IANQueryService ianQueryService;
@@ -111,14 +149,58 @@ public class CStoreSCP extends BasicCStoreSCP {
     @EJB
     private StoreService storeService;
 
+    private final CompressionExecutor compressionExecutor =
+            new CompressionExecutor();
+
     public CStoreSCP() {
         super("*");
     }
 
+    public void start(Device device) {
+        compressionExecutor.start(device);
+    }
+
+    public void stop() {
+        compressionExecutor.stop();
+    }
+
+    public String getCompressionStatistics() {
+        return compressionExecutor.statistics();
+    }
+
+    @Override
+    public void onDimseRQ(Association as, PresentationContext pc, Dimse dimse,
+            Attributes rq, PDVInputStream data) throws IOException {
+        StoreBatch batch = getStoreBatch(as);
+        if (batch == null || dimse != Dimse.C_STORE_RQ) {
+            super.onDimseRQ(as, pc, dimse, rq, data);
+            return;
+        }
+
+        Attributes rsp = Commands.mkCStoreRSP(rq, Status.Success);
+        batch.add(receive(as, pc, rq, data, rsp));
+    }
+
     @Override
     protected void store(Association as, PresentationContext pc,
             Attributes rq, PDVInputStream data, Attributes rsp)
             throws IOException {
+        PendingStore pending = receive(as, pc, rq, data, rsp);
+        try {
+            storeService.addFileRef(pending, pending.storeContext);
+            if (pending.getException() != null)
+                throw pending.getException();
+            stored(pending);
+        } catch (Exception e) {
+            pending.storeContext.getSeriesCache().clear();
+            throw failed(as, pending.aeExt, pending.getAttributes(),
+                    pending.spoolFile, pending.getFile(), e);
+        }
+    }
+
+    private PendingStore receive(Association as, PresentationContext pc,
+            Attributes rq, PDVInputStream data, Attributes rsp)
+            throws IOException {
 
         ApplicationEntity ae = as.getApplicationEntity();
         ArchiveAEExtension aeExt = ae.getAEExtension(ArchiveAEExtension.class);
@@ -145,85 +227,156 @@ public class CStoreSCP extends BasicCStoreSCP {
         File spoolFile = null;
         File destFile = null;
         try {
-            MessageDigest digest = createMessageDigest(
+            MessageDigest messageDigest = createMessageDigest(
                     aeExt.getDigestAlgorithm());
-
-
-            FileSystem storeDir = storeContext.getFileSystem();
-            
-            destFile = spoolFile = File.createTempFile("dcm", ".dcm",
-                    spoolDir(storeDir, aeExt, sourceAET, cuid));
-            storeTo(as, fmi, data, spoolFile, digest);
-            attrs = parse(spoolFile);
-            if (attrs.bigEndian())
-                attrs = new Attributes(attrs, false);
+            String digest = null;
+
+
+            FileSystemSelector fsSelector = FileSystemSelector.INSTANCE;
+            // select the file system before writing, so the spool file is
+            // only renamed within the selected file system
+            ByteArrayOutputStream header =
+                    new ByteArrayOutputStream(MAX_HEADER_LENGTH);
+            Attributes headerAttrs = readHeader(data, tsuid, header);
+            InputStream in = new SequenceInputStream(
+                    new ByteArrayInputStream(header.toByteArray()), data);
+            FileSystem fs = headerAttrs != null
+                    ? storeContext.getFileSystem(
+                            headerAttrs.getString(Tag.SeriesInstanceUID))
+                    : null;
+            boolean directWrite = fs != null && aeExt.isDirectWrite();
             File f;
-            synchronized (filePathFormat) {
-                f = new File(storeDir.getDirectory(), filePathFormat.format(attrs));
+            File written;
+            if (directWrite) {
+                f = storageFile(fs, filePathFormat, headerAttrs);
+                destFile = written = f;
+                // on failure, preserve partial file in the spool directory
+                spoolFile = aeExt.isPreserveSpoolFileOnFailure()
+                        ? FileUtils.ensureNotExists(new File(
+                                spoolDir(fs, aeExt, sourceAET, cuid),
+                                f.getName()))
+                        : f;
+            } else {
+                destFile = spoolFile = written = File.createTempFile("dcm",
+                        ".dcm", spoolDir(
+                                fs != null ? fs : storeContext.getFileSystem(),
+                                aeExt, sourceAET, cuid));
+                StoredFile stored =
+                        storeTo(as, fmi, in, spoolFile, messageDigest);
+                attrs = stored.attrs;
+                digest = stored.digest;
+                if (attrs.bigEndian())
+                    attrs = new Attributes(attrs, false);
+                if (fs == null)
+                    fs = storeContext.getFileSystem(
+                            attrs.getString(Tag.SeriesInstanceUID));
+                f = storageFile(fs, filePathFormat, attrs);
             }
-            f = FileUtils.ensureNotExists(f);
-            CompressionRule compressionRule =
-                    findCompressionRules(aeExt, sourceAET, attrs);
-            if (compressionRule != null) {
-                try {
-                    MessageDigest digest2 = createMessageDigest(
-                            aeExt.getDigestAlgorithm());
-                    CStoreSCP.compress(as, fmi, attrs, tsuid,
-                            compressionRule, spoolFile, f, digest2);
-                    tsuid = compressionRule.getTransferSyntax();
-                    digest = digest2;
-                    CStoreSCP.deleteFile(as, spoolFile);
-                } catch (IOException e) {
-                    LOG.info("Compression failed:", e);
-                    deleteFile(as, f);
+            long writeStart = System.currentTimeMillis();
+            fsSelector.beginWrite(fs);
+            CompressionRule compressionRule;
+            try {
+                if (directWrite) {
+                    StoredFile stored =
+                            storeTo(as, fmi, in, f, messageDigest);
+                    attrs = stored.attrs;
+                    digest = stored.digest;
+                    if (attrs.bigEndian())
+                        attrs = new Attributes(attrs, false);
+                }
+                compressionRule = findCompressionRules(aeExt, sourceAET, attrs);
+                if (compressionRule != null && !compressionExecutor.isEnabled()) {
+                    long start = System.currentTimeMillis();
+                    boolean compressed = false;
+                    File dest = directWrite ? FileUtils.ensureNotExists(f) : f;
+                    try {
+                        digest = compress(as, fmi, attrs, tsuid,
+                                compressionRule, written, dest,
+                                createMessageDigest(aeExt.getDigestAlgorithm()));
+                        tsuid = compressionRule.getTransferSyntax();
+                        compressed = true;
+                        CStoreSCP.deleteFile(as, written);
+                        if (directWrite)
+                            CStoreSCP.renameTo(as, dest, f);
+                    } catch (IOException e) {
+                        LOG.info("Compression failed:", e);
+                        deleteFile(as, dest);
+                        if (!directWrite)
+                            CStoreSCP.renameTo(as, spoolFile, f);
+                    } finally {
+                        compressionExecutor.record(compressionRule.getCommonName(),
+                                System.currentTimeMillis() - start, compressed);
+                    }
+                    compressionRule = null;
+                } else if (!directWrite) {
                     CStoreSCP.renameTo(as, spoolFile, f);
                 }
-            } else {
-                CStoreSCP.renameTo(as, spoolFile, f);
+            } finally {
+                fsSelector.endWrite(fs, f.length(),
+                        System.currentTimeMillis() - writeStart);
             }
             destFile = f;
-            Attributes modified = coerceAttributes(aeExt, sourceAET, cuid, attrs);
-            FileRef fileRef = storeService.addFileRef(
-                    sourceAET, attrs, modified, destFile, 
-                    digest(digest), tsuid, storeContext);
-            if (!modified.isEmpty())
-                onCoercionOfDataElements(as, aeExt, attrs, modified, rsp);
-            if (fileRef != null) {
-                PerformedProcedureStep mpps = storeContext.getPreviousMPPS();
-                scheduleIANsForMPPS(aeExt, mpps);
-                storeContext.setPreviousMPPS(null);
-                
-                scheduleIANForRejectionNote(aeExt, attrs, fileRef.getInstance());
-            } else {
-               deleteFile(as, destFile);
-            }
-            AuditUtils.logInstanceStored(as, attrs,
-                    EventOutcomeIndicator.Success, AUDIT_MESSAGE_SUCCESS);
+            Attributes modified = getCoercionPlan(as, aeExt, storeContext)
+                    .coerce(cuid, attrs);
+            PendingStore pending = new PendingStore(as, pc, rsp, aeExt,
+                    storeContext, sourceAET, attrs, modified, fs, spoolFile,
+                    destFile, digest, tsuid);
+            pending.compressionRule = compressionRule;
+            return pending;
         } catch (Exception e) {
-            if (destFile != null) {
-                AuditUtils.logInstanceStored(as, attrs,
-                        EventOutcomeIndicator.SeriousFailure,
-                        AUDIT_MESSAGE_FAILURE);
+            throw failed(as, aeExt, attrs, spoolFile, destFile, e);
+        }
+    }
+
+    private void stored(PendingStore pending) {
+        Association as = pending.as;
+        ArchiveAEExtension aeExt = pending.aeExt;
+        Attributes attrs = pending.getAttributes();
+        Attributes modified = pending.getModified();
+        FileRef fileRef = pending.getFileRef();
+        if (!modified.isEmpty())
+            onCoercionOfDataElements(as, aeExt, attrs, modified, pending.rsp);
+        if (fileRef != null) {
+            scheduleIANsForMPPS(aeExt, pending.getPreviousMPPS());
+            scheduleIANForRejectionNote(aeExt, attrs, fileRef.getInstance());
+            if (pending.compressionRule != null)
+                scheduleCompression(as, aeExt, pending.compressionRule,
+                        pending.getFile(), fileRef);
+        } else {
+           deleteFile(as, pending.getFile());
+        }
+        AuditUtils.logInstanceStored(as, attrs,
+                EventOutcomeIndicator.Success, AUDIT_MESSAGE_SUCCESS);
+    }
+
+    private DicomServiceException failed(Association as,
+            ArchiveAEExtension aeExt, Attributes attrs, File spoolFile,
+            File destFile, Exception e) {
+        if (destFile != null) {
+            AuditUtils.logInstanceStored(as, attrs,
+                    EventOutcomeIndicator.SeriousFailure,
+                    AUDIT_MESSAGE_FAILURE);
+            try {
                 if (aeExt.isPreserveSpoolFileOnFailure()) {
                     if (destFile != spoolFile)
                         renameTo(as, destFile, spoolFile);
                 } else {
                     deleteFile(as, destFile);
                 }
-            }
-            if (e instanceof DicomServiceException) {
-                throw (DicomServiceException) e;
-            } else {
-                throw new DicomServiceException(Status.ProcessingFailure, e);
+            } catch (IOException e2) {
+                LOG.warn("{}: Failed to preserve spool file:", as, e2);
             }
         }
+        return e instanceof DicomServiceException
+                ? (DicomServiceException) e
+                : new DicomServiceException(Status.ProcessingFailure, e);
     }
 
     private File spoolDir(FileSystem storeDir, ArchiveAEExtension aeExt,
             String sourceAET, String cuid) {
         String spoolDirectoryPath = aeExt.getSpoolDirectoryPath(); 
         if (spoolDirectoryPath == null)
-            return null;
+            return new File(System.getProperty("java.io.tmpdir"));
         
         File spoolDir;
         try {
@@ -240,6 +393,53 @@ public class CStoreSCP extends BasicCStoreSCP {
         return spoolDir;
     }
 
+    private static File storageFile(FileSystem storeDir,
+            AttributesFormat filePathFormat, Attributes attrs) {
+        File f;
+        synchronized (filePathFormat) {
+            f = new File(storeDir.getDirectory(), filePathFormat.format(attrs));
+        }
+        return FileUtils.ensureNotExists(f);
+    }
+
+    /**
+     * Reads the attributes preceding the Pixel Data, to calculate the
+     * storage file path from them before the object is written. The read
+     * bytes are collected in {@code header}, to prepend them to the
+     * remaining data on writing the file. Returns {@code null}, if the
+     * header exceeds {@value #MAX_HEADER_LENGTH} bytes.
+     */
+    private static Attributes readHeader(InputStream data, String tsuid,
+            final ByteArrayOutputStream header) throws IOException {
+        OutputStream out = new OutputStream() {
+
+            @Override
+            public void write(int b) throws IOException {
+                header.write(b);
+                checkLength();
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                header.write(b, off, len);
+                checkLength();
+            }
+
+            private void checkLength() throws HeaderTooLongException {
+                if (header.size() > MAX_HEADER_LENGTH)
+                    throw new HeaderTooLongException();
+            }
+        };
+        DicomInputStream in = new DicomInputStream(
+                new TeeInputStream(data, out), tsuid);
+        in.setIncludeBulkData(IncludeBulkData.NO);
+        try {
+            return in.readDataset(-1, Tag.PixelData);
+        } catch (HeaderTooLongException e) {
+            return null;
+        }
+    }
+
     private static CompressionRule findCompressionRules(ArchiveAEExtension aeExt,
             String sourceAET, Attributes attrs) {
         if (!(attrs.getValue(Tag.PixelData) instanceof BulkData))
@@ -248,27 +448,85 @@ public class CStoreSCP extends BasicCStoreSCP {
         return aeExt.getCompressionRules().findCompressionRule(sourceAET, attrs);
     }
 
-    private static void compress(Association as, Attributes fmi,
+    private void scheduleCompression(final Association as,
+            final ArchiveAEExtension aeExt, final CompressionRule rule,
+            final File file, final FileRef fileRef) {
+        compressionExecutor.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                compressStoredFile(as, aeExt, rule, file, fileRef);
+            }
+        });
+    }
+
+    private void compressStoredFile(Association as, ArchiveAEExtension aeExt,
+            CompressionRule rule, File src, FileRef fileRef) {
+        long start = System.currentTimeMillis();
+        File dest = FileUtils.ensureNotExists(src);
+        boolean compressed = false;
+        try {
+            Attributes fmi;
+            Attributes attrs;
+            DicomInputStream in = new DicomInputStream(src);
+            try {
+                in.setIncludeBulkData(IncludeBulkData.URI);
+                in.setURI(src.toURI().toString());
+                fmi = in.readFileMetaInformation();
+                attrs = in.readDataset(-1, -1);
+            } finally {
+                SafeClose.close(in);
+            }
+            String digest = compress(as, fmi, attrs,
+                    fmi.getString(Tag.TransferSyntaxUID), rule, src, dest,
+                    createMessageDigest(aeExt.getDigestAlgorithm()));
+            compressed = storeService.replaceFileRef(fileRef.getPk(), dest,
+                    rule.getTransferSyntax(), digest);
+            if (!compressed)
+                LOG.info("{}: {} was deleted meanwhile", as, fileRef);
+        } catch (Exception e) {
+            LOG.warn("{}: Compression of {} failed:",
+                    new Object[] { as, src, e });
+        } finally {
+            compressionExecutor.record(rule.getCommonName(),
+                    System.currentTimeMillis() - start, compressed);
+        }
+        if (compressed)
+            deleteFile(as, src);
+        else if (dest.exists())
+            deleteFile(as, dest);
+    }
+
+    private String compress(Association as, Attributes fmi,
             Attributes attrs, String tsuid, CompressionRule rule, File src,
             File dest, MessageDigest digest) throws IOException {
         LOG.info("{}: M-COMPRESS {} to {}", new Object[]{ as, src, dest });
         dest.getParentFile().mkdirs();
+        FrameCompressor frameCompressor =
+                new FrameCompressor(attrs, tsuid, rule);
+        byte[][] frames = compressionExecutor.compressFrames(frameCompressor);
         Compressor compressor = new Compressor(attrs, tsuid);
+        PipelinedDigestOutputStream dout = null;
         DicomOutputStream out = null;
         try {
             compressor.compress(rule.getTransferSyntax(),
                     rule.getImageWriteParams());
+            if (frames != null)
+                frameCompressor.setCompressedPixelData(frames);
             if (digest == null)
                 out = new DicomOutputStream(dest);
             else {
-                out = new DicomOutputStream(
-                        new BufferedOutputStream(
-                            new DigestOutputStream(
-                                    new FileOutputStream(dest), digest)),
+                dout = new PipelinedDigestOutputStream(
+                        new FileOutputStream(dest), digest,
+                        as.getApplicationEntity().getDevice().getExecutor());
+                out = new DicomOutputStream(new BufferedOutputStream(dout),
                         UID.ExplicitVRLittleEndian);
             }
-            fmi.setString(Tag.TransferSyntaxUID, VR.UI, tsuid);
+            fmi.setString(Tag.TransferSyntaxUID, VR.UI,
+                    rule.getTransferSyntax());
             out.writeDataset(fmi, attrs);
+            out.close();
+            return digest(dout);
         } finally {
             SafeClose.close(out);
             compressor.close();
@@ -322,48 +580,44 @@ public class CStoreSCP extends BasicCStoreSCP {
         }
     }
 
-    private Attributes coerceAttributes(ArchiveAEExtension aeExt,
-            String sourceAET, String cuid, Attributes attrs) throws Exception {
-        Attributes modified = new Attributes();
-        Templates tpl = aeExt.getAttributeCoercionTemplates(cuid,
-                Dimse.C_STORE_RQ, TransferCapability.Role.SCP, sourceAET);
-        if (tpl != null)
-            attrs.update(SAXTransformer.transform(attrs, tpl, false, false),
-                    modified);
-        try {
-            ApplicationEntity sourceAE = Archive.getInstance()
-                    .findApplicationEntity(sourceAET);
-            Supplements.supplementComposite(attrs, sourceAE.getDevice());
-        } catch (ConfigurationNotFoundException e) {
-        }
-        return modified;
-    }
-
     private MessageDigest createMessageDigest(String algorithm)
             throws NoSuchAlgorithmException {
-        return algorithm != null
-                ? MessageDigest.getInstance(algorithm)
-                : null;
+        if (algorithm == null)
+            return null;
+
+        MessageDigest digest = ChecksumMessageDigest.getInstance(algorithm);
+        return digest != null ? digest : MessageDigest.getInstance(algorithm);
     }
 
-    private void storeTo(Association as, Attributes fmi, 
-            PDVInputStream data, File file, MessageDigest digest)
+    private StoredFile storeTo(Association as, Attributes fmi,
+            InputStream data, File file, MessageDigest digest)
                     throws IOException  {
         LOG.info("{}: M-WRITE {}", as, file);
         file.getParentFile().mkdirs();
-        DicomOutputStream out;
-        if (digest == null)
-            out = new DicomOutputStream(file);
-        else {
-            out = new DicomOutputStream(
-                    new BufferedOutputStream(
-                        new DigestOutputStream(
-                                new FileOutputStream(file), digest)),
-                    UID.ExplicitVRLittleEndian);
-        }
+        ByteArrayOutputStream fmiBuffer = new ByteArrayOutputStream(512);
+        DicomOutputStream fmiOut = new DicomOutputStream(fmiBuffer,
+                UID.ExplicitVRLittleEndian);
+        fmiOut.writeFileMetaInformation(fmi);
+        fmiOut.flush();
+        OutputStream out = new FileOutputStream(file);
+        PipelinedDigestOutputStream dout = null;
+        if (digest != null)
+            out = dout = new PipelinedDigestOutputStream(out, digest,
+                    as.getApplicationEntity().getDevice().getExecutor());
+        out = new BufferedOutputStream(out);
         try {
-            out.writeFileMetaInformation(fmi);
-            data.copyTo(out);
+            TeeInputStream tee = new TeeInputStream(
+                    new SequenceInputStream(
+                            new ByteArrayInputStream(fmiBuffer.toByteArray()),
+                            data),
+                    out);
+            DicomInputStream in = new DicomInputStream(tee);
+            in.setIncludeBulkData(IncludeBulkData.URI);
+            in.setURI(file.toURI().toString());
+            Attributes attrs = in.readDataset(-1, -1);
+            tee.drain();
+            out.close();
+            return new StoredFile(attrs, digest(dout));
         } finally {
             SafeClose.close(out);
         }
@@ -374,17 +628,37 @@ public class CStoreSCP extends BasicCStoreSCP {
         LOG.info("{}: M-RENAME {} to {}", new Object[]{ as, from, dest });
         dest.getParentFile().mkdirs();
         if (!from.renameTo(dest))
-            throw new IOException("Failed to rename " + from + " to " + dest);
+            moveTo(as, from, dest);
     }
 
-    private static Attributes parse(File file) throws IOException {
-        DicomInputStream in = new DicomInputStream(file);
+    /**
+     * Copies and deletes the file, if it cannot be renamed, because the
+     * spool directory and the selected file system are on different mounts,
+     * which only happens for objects with headers exceeding
+     * {@value #MAX_HEADER_LENGTH} bytes. The copy is synced to disk before
+     * the spool file is deleted.
+     */
+    private static void moveTo(Association as, File from, File dest)
+            throws IOException {
+        LOG.info("{}: M-COPY {} to {}", new Object[]{ as, from, dest });
         try {
-            in.setIncludeBulkData(IncludeBulkData.URI);
-            return in.readDataset(-1, -1);
-        } finally {
-            SafeClose.close(in);
+            FileInputStream in = new FileInputStream(from);
+            try {
+                FileOutputStream out = new FileOutputStream(dest);
+                try {
+                    StreamUtils.copy(in, out);
+                    out.getFD().sync();
+                } finally {
+                    out.close();
+                }
+            } finally {
+                SafeClose.close(in);
+            }
+        } catch (IOException e) {
+            dest.delete();
+            throw new IOException("Failed to move " + from + " to " + dest, e);
         }
+        deleteFile(as, from);
     }
 
     private static void deleteFile(Association as, File file) {
@@ -405,8 +679,9 @@ public class CStoreSCP extends BasicCStoreSCP {
 
 }
 
-    private String digest(MessageDigest digest) {
-        return digest != null ? TagUtils.toHexString(digest.digest()) : null;
+    private static String digest(PipelinedDigestOutputStream dout)
+            throws IOException {
+        return dout != null ? TagUtils.toHexString(dout.digest()) : null;
     }
 
     private StoreContext getStoreContext(Association as, ApplicationEntity ae,
@@ -423,17 +698,62 @@ public class CStoreSCP extends BasicCStoreSCP {
                     "No File System Group ID configured for "
                             + ae.getAETitle());
         }
-        FileSystem fs = storeService.selectFileSystem(
-                fsGroupID, aeExt.getInitFileSystemURI());
         storeContext = new StoreContext(StoreParam.valueOf(aeExt));
-        storeContext.setFileSystem(fs);
+        FileSystemSelection fsSelection = aeExt.getFileSystemSelection();
+        if (fsSelection != null) {
+            storeContext.setFileSystems(
+                    storeService.findWriteableFileSystems(
+                            fsGroupID, aeExt.getInitFileSystemURI()),
+                    fsSelection,
+                    aeExt.getMinFreeSpace() * 1024L * 1024L);
+        } else {
+            storeContext.setFileSystem(storeService.selectFileSystem(
+                    fsGroupID, aeExt.getInitFileSystemURI()));
+        }
 
         as.setProperty(STORE_CONTEXT_PROPERTY, storeContext);
         return storeContext;
     }
 
+    private CoercionPlan getCoercionPlan(Association as,
+            ArchiveAEExtension aeExt, StoreContext storeContext) {
+        CoercionPlan plan = (CoercionPlan) as.getProperty(COERCION_PLAN_PROPERTY);
+        if (plan == null) {
+            plan = new CoercionPlan(aeExt, as.getRemoteAET(),
+                    storeContext.getStoreParam());
+            as.setProperty(COERCION_PLAN_PROPERTY, plan);
+        }
+        return plan;
+    }
+
+    private StoreBatch getStoreBatch(Association as) {
+        StoreBatch batch = (StoreBatch) as.getProperty(STORE_BATCH_PROPERTY);
+        if (batch != null)
+            return batch;
+
+        ArchiveAEExtension aeExt = as.getApplicationEntity()
+                .getAEExtension(ArchiveAEExtension.class);
+        if (aeExt == null)
+            return null;
+
+        int maxSize = aeExt.getStoreBatchSize();
+        int maxOpsPerformed = as.getMaxOpsPerformed();
+        if (maxOpsPerformed > 0)
+            maxSize = Math.min(maxSize, maxOpsPerformed);
+        if (maxSize <= 1)
+            return null;
+
+        batch = new StoreBatch(as, maxSize, aeExt.getStoreBatchTimeout());
+        as.setProperty(STORE_BATCH_PROPERTY, batch);
+        return batch;
+    }
+
     @Override
     public void onClose(Association as) {
+        StoreBatch batch = (StoreBatch) as.clearProperty(STORE_BATCH_PROPERTY);
+        if (batch != null)
+            batch.flush();
+        as.clearProperty(COERCION_PLAN_PROPERTY);
         createIANsforCurrentMPPS(as,
                 (StoreContext) as.clearProperty(STORE_CONTEXT_PROPERTY));
         AuditUtils.sendAuditLogMessage(
@@ -450,4 +770,113 @@ public class CStoreSCP extends BasicCStoreSCP {
             scheduleIANsForMPPS(aeExt, storeContext.getCurrentMPPS());
         }
     }
+
+    private static class PendingStore extends PendingFileRef {
+
+        final Association as;
+        final PresentationContext pc;
+        final Attributes rsp;
+        final ArchiveAEExtension aeExt;
+        final StoreContext storeContext;
+        final File spoolFile;
+        CompressionRule compressionRule;
+
+        PendingStore(Association as, PresentationContext pc, Attributes rsp,
+                ArchiveAEExtension aeExt, StoreContext storeContext,
+                String sourceAET, Attributes attrs, Attributes modified,
+                FileSystem fs, File spoolFile, File file, String digest,
+                String tsuid) {
+            super(sourceAET, attrs, modified, fs, file, digest, tsuid);
+            this.as = as;
+            this.pc = pc;
+            this.rsp = rsp;
+            this.aeExt = aeExt;
+            this.storeContext = storeContext;
+            this.spoolFile = spoolFile;
+        }
+    }
+
+    private class StoreBatch implements Runnable {
+
+        private final Association as;
+        private final int maxSize;
+        private final int timeout;
+        private final ArrayList<PendingStore> pending;
+        private ScheduledFuture<?> flushTimer;
+
+        StoreBatch(Association as, int maxSize, int timeout) {
+            this.as = as;
+            this.maxSize = maxSize;
+            this.timeout = timeout;
+            this.pending = new ArrayList<PendingStore>(maxSize);
+        }
+
+        synchronized void add(PendingStore pendingStore) {
+            pending.add(pendingStore);
+            if (pending.size() >= maxSize)
+                flush();
+            else if (flushTimer == null)
+                flushTimer = as.getApplicationEntity().getDevice()
+                        .schedule(this, timeout, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public void run() {
+            flush();
+        }
+
+        synchronized void flush() {
+            if (flushTimer != null) {
+                flushTimer.cancel(false);
+                flushTimer = null;
+            }
+            if (pending.isEmpty())
+                return;
+
+            StoreContext storeContext = pending.get(0).storeContext;
+            StoreContext.MPPSState mppsState = storeContext.getMPPSState();
+            try {
+                storeService.addFileRefs(pending, storeContext);
+            } catch (EJBException e) {
+                LOG.info("{}: Failed to commit batch of {} objects - commit objects separately:",
+                        new Object[] { as, pending.size(), e });
+                storeContext.getSeriesCache().clear();
+                storeContext.setMPPSState(mppsState);
+                for (PendingStore pendingStore : pending) {
+                    mppsState = storeContext.getMPPSState();
+                    try {
+                        storeService.addFileRef(pendingStore, storeContext);
+                    } catch (EJBException e2) {
+                        storeContext.getSeriesCache().clear();
+                        storeContext.setMPPSState(mppsState);
+                        pendingStore.setException(new DicomServiceException(
+                                Status.ProcessingFailure, e2));
+                    }
+                }
+            }
+            for (PendingStore pendingStore : pending)
+                complete(pendingStore);
+            pending.clear();
+        }
+
+        private void complete(PendingStore pendingStore) {
+            Attributes rsp = pendingStore.rsp;
+            try {
+                if (pendingStore.getException() != null)
+                    throw pendingStore.getException();
+                stored(pendingStore);
+            } catch (Exception e) {
+                DicomServiceException dse = failed(as, pendingStore.aeExt,
+                        pendingStore.getAttributes(), pendingStore.spoolFile,
+                        pendingStore.getFile(), e);
+                rsp.addAll(dse.mkRSP(rsp.getInt(Tag.CommandField, 0),
+                        rsp.getInt(Tag.MessageIDBeingRespondedTo, 0)));
+            }
+            try {
+                as.writeDimseRSP(pendingStore.pc, rsp);
+            } catch (IOException e) {
+                LOG.warn("{}: Failed to send C-STORE-RSP:", as, e);
+            }
+        }
+    }
 }
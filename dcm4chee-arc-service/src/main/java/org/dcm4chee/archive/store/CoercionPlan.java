@@ -0,0 +1,250 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+package org.dcm4chee.archive.store;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.xml.transform.Templates;
+
+import org.dcm4che.conf.api.ConfigurationException;
+import org.dcm4che.conf.api.ConfigurationNotFoundException;
+import org.dcm4che.data.Attributes;
+import org.dcm4che.data.Tag;
+import org.dcm4che.data.UID;
+import org.dcm4che.io.DicomOutputStream;
+import org.dcm4che.io.SAXTransformer;
+import org.dcm4che.net.Device;
+import org.dcm4che.net.Dimse;
+import org.dcm4che.net.TransferCapability;
+import org.dcm4chee.archive.Archive;
+import org.dcm4chee.archive.common.StoreParam;
+import org.dcm4chee.archive.conf.ArchiveAEExtension;
+import org.dcm4chee.archive.conf.Entity;
+
+/**
+ * Coerces attributes of objects received within one Association. Coercion
+ * templates and the Device of the Source AE are resolved once per
+ * Association. If enabled by {@link ArchiveAEExtension#isMemoizeAttributeCoercion},
+ * the result of the XSL transformation is reused for subsequent objects of
+ * the same Series and SOP Class with equal Patient, Study and Series
+ * attributes, which requires that the coercion template does not read
+ * Instance level attributes. The result is only reused if it is restricted
+ * to the selected Patient, Study and Series attributes; otherwise each
+ * object of the Series is transformed.
+ * 
+ * @author agent <agent@local>
+ *
+ */
+public class CoercionPlan {
+
+    private static final int MAX_MEMOIZED_SERIES = 10;
+
+    private static final AtomicLong coercions = new AtomicLong();
+    private static final AtomicLong transformations = new AtomicLong();
+    private static final AtomicLong memoHits = new AtomicLong();
+    private static final AtomicLong totalTime = new AtomicLong();
+    private static final AtomicLong maxTime = new AtomicLong();
+
+    private static final class Memo {
+        final String cuid;
+        final byte[] digest;
+        final Attributes coerced; // null, if not restricted to selection
+
+        Memo(String cuid, byte[] digest, Attributes coerced) {
+            this.cuid = cuid;
+            this.digest = digest;
+            this.coerced = coerced;
+        }
+    }
+
+    private final ArchiveAEExtension aeExt;
+    private final String sourceAET;
+    private final int[] selection;
+    private final HashMap<String, Templates> templates =
+            new HashMap<String, Templates>();
+    private final Map<String, Memo> memos;
+    private Device sourceDevice;
+    private boolean sourceDeviceResolved;
+
+    CoercionPlan(ArchiveAEExtension aeExt, String sourceAET,
+            StoreParam storeParam) {
+        this.aeExt = aeExt;
+        this.sourceAET = sourceAET;
+        if (aeExt.isMemoizeAttributeCoercion()) {
+            this.selection = selection(storeParam);
+            this.memos = new LinkedHashMap<String, Memo>(16, 0.75f, true) {
+
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Memo> eldest) {
+                    return size() > MAX_MEMOIZED_SERIES;
+                }
+            };
+        } else {
+            this.selection = null;
+            this.memos = null;
+        }
+    }
+
+    private static int[] selection(StoreParam storeParam) {
+        int[] patient = storeParam.getAttributeFilter(Entity.Patient).getSelection();
+        int[] study = storeParam.getAttributeFilter(Entity.Study).getSelection();
+        int[] series = storeParam.getAttributeFilter(Entity.Series).getSelection();
+        int[] selection = new int[patient.length + study.length + series.length];
+        System.arraycopy(patient, 0, selection, 0, patient.length);
+        System.arraycopy(study, 0, selection, patient.length, study.length);
+        System.arraycopy(series, 0, selection, patient.length + study.length,
+                series.length);
+        Arrays.sort(selection);
+        return selection;
+    }
+
+    public Attributes coerce(String cuid, Attributes attrs) throws Exception {
+        long start = System.nanoTime();
+        Attributes modified = new Attributes();
+        Templates tpl = getTemplates(cuid);
+        if (tpl != null)
+            attrs.update(transform(cuid, attrs, tpl), modified);
+        Device device = getSourceDevice();
+        if (device != null)
+            Supplements.supplementComposite(attrs, device);
+        record(System.nanoTime() - start);
+        return modified;
+    }
+
+    private Templates getTemplates(String cuid) throws Exception {
+        Templates tpl = templates.get(cuid);
+        if (tpl == null && !templates.containsKey(cuid)) {
+            tpl = aeExt.getAttributeCoercionTemplates(cuid,
+                    Dimse.C_STORE_RQ, TransferCapability.Role.SCP, sourceAET);
+            templates.put(cuid, tpl);
+        }
+        return tpl;
+    }
+
+    private Device getSourceDevice() throws ConfigurationException {
+        if (!sourceDeviceResolved) {
+            try {
+                sourceDevice = Archive.getInstance()
+                        .findApplicationEntity(sourceAET).getDevice();
+            } catch (ConfigurationNotFoundException e) {
+            }
+            sourceDeviceResolved = true;
+        }
+        return sourceDevice;
+    }
+
+    private Attributes transform(String cuid, Attributes attrs,
+            Templates tpl) throws Exception {
+        if (memos == null)
+            return transform(attrs, tpl);
+
+        String seriesIUID = attrs.getString(Tag.SeriesInstanceUID);
+        Memo memo = memos.get(seriesIUID);
+        if (memo != null && memo.cuid.equals(cuid) && memo.coerced == null)
+            return transform(attrs, tpl);
+
+        byte[] digest = digest(attrs);
+        if (memo != null && memo.cuid.equals(cuid)
+                && Arrays.equals(memo.digest, digest)) {
+            memoHits.incrementAndGet();
+            return new Attributes(memo.coerced);
+        }
+        Attributes coerced = transform(attrs, tpl);
+        memos.put(seriesIUID, new Memo(cuid, digest,
+                isSelected(coerced) ? coerced : null));
+        return coerced;
+    }
+
+    private boolean isSelected(Attributes coerced) {
+        for (int tag : coerced.tags())
+            if (Arrays.binarySearch(selection, tag) < 0)
+                return false;
+        return true;
+    }
+
+    private static Attributes transform(Attributes attrs, Templates tpl)
+            throws Exception {
+        transformations.incrementAndGet();
+        return SAXTransformer.transform(attrs, tpl, false, false);
+    }
+
+    private byte[] digest(Attributes attrs) {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream(1024);
+        try {
+            DicomOutputStream out = new DicomOutputStream(bout,
+                    UID.ExplicitVRLittleEndian);
+            out.writeDataset(null,
+                    new Attributes(attrs, attrs.bigEndian(), selection));
+            out.flush();
+            return MessageDigest.getInstance("MD5").digest(bout.toByteArray());
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static void record(long time) {
+        coercions.incrementAndGet();
+        totalTime.addAndGet(time);
+        long max;
+        while (time > (max = maxTime.get()))
+            if (maxTime.compareAndSet(max, time))
+                break;
+    }
+
+    public static String statistics() {
+        long count = coercions.get();
+        return count == 0
+                ? "coercions=0"
+                : String.format(
+                    "coercions=%d, transformations=%d, memoHits=%d, avgTime=%.3fms, maxTime=%.3fms",
+                    count, transformations.get(), memoHits.get(),
+                    totalTime.get() / 1e6 / count, maxTime.get() / 1e6);
+    }
+}
@@ -0,0 +1,177 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+package org.dcm4chee.archive.store;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.dcm4che.net.Device;
+import org.dcm4chee.archive.conf.ArchiveDeviceExtension;
+
+/**
+ * Executes compression of received objects, which were already stored
+ * uncompressed, in a bounded thread pool. If the queue is full, the
+ * compression is executed by the submitting thread, which throttles the
+ * association receiving the objects. Frames of multi-frame objects may
+ * be compressed in parallel by a separate thread pool.
+ * 
+ * @author agent <agent@local>
+ *
+ */
+public class CompressionExecutor {
+
+    private static final class RuleStatistics {
+        final AtomicLong count = new AtomicLong();
+        final AtomicLong failures = new AtomicLong();
+        final AtomicLong totalTime = new AtomicLong();
+        final AtomicLong maxTime = new AtomicLong();
+
+        void add(long time, boolean success) {
+            count.incrementAndGet();
+            if (!success)
+                failures.incrementAndGet();
+            totalTime.addAndGet(time);
+            long max;
+            while ((max = maxTime.get()) < time
+                    && !maxTime.compareAndSet(max, time));
+        }
+
+        @Override
+        public String toString() {
+            long n = count.get();
+            return String.format("count=%d, failures=%d, avgTime=%dms, maxTime=%dms",
+                    n, failures.get(), n > 0 ? totalTime.get() / n : 0,
+                    maxTime.get());
+        }
+    }
+
+    private final ConcurrentHashMap<String, RuleStatistics> statistics =
+            new ConcurrentHashMap<String, RuleStatistics>();
+
+    private volatile ThreadPoolExecutor executor;
+
+    private volatile ExecutorService frameExecutor;
+
+    private volatile int frameThreads;
+
+    public synchronized void start(Device device) {
+        ArchiveDeviceExtension arcDev =
+                device.getDeviceExtension(ArchiveDeviceExtension.class);
+        int frameThreads = arcDev.getFrameCompressionThreads();
+        if (frameThreads > 1) {
+            frameExecutor = Executors.newFixedThreadPool(frameThreads);
+            this.frameThreads = frameThreads;
+        }
+        int threads = arcDev.getCompressionThreads();
+        if (threads <= 0)
+            return;
+
+        executor = new ThreadPoolExecutor(threads, threads,
+                0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(
+                        Math.max(1, arcDev.getCompressionQueueSize())),
+                new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+    public synchronized void stop() {
+        if (executor != null) {
+            executor.shutdown();
+            executor = null;
+        }
+        if (frameExecutor != null) {
+            frameExecutor.shutdown();
+            frameExecutor = null;
+            frameThreads = 0;
+        }
+    }
+
+    public boolean isEnabled() {
+        return executor != null;
+    }
+
+    public void execute(Runnable compression) {
+        ThreadPoolExecutor executor = this.executor;
+        if (executor != null)
+            executor.execute(compression);
+        else
+            compression.run();
+    }
+
+    byte[][] compressFrames(FrameCompressor frameCompressor)
+            throws IOException {
+        ExecutorService frameExecutor = this.frameExecutor;
+        return frameExecutor != null
+                ? frameCompressor.compressFrames(frameExecutor, frameThreads)
+                : null;
+    }
+
+    public void record(String ruleName, long time, boolean success) {
+        RuleStatistics ruleStatistics = statistics.get(ruleName);
+        if (ruleStatistics == null) {
+            ruleStatistics = new RuleStatistics();
+            RuleStatistics prev =
+                    statistics.putIfAbsent(ruleName, ruleStatistics);
+            if (prev != null)
+                ruleStatistics = prev;
+        }
+        ruleStatistics.add(time, success);
+    }
+
+    public String statistics() {
+        StringBuilder sb = new StringBuilder();
+        ThreadPoolExecutor executor = this.executor;
+        if (executor != null)
+            sb.append("queued=").append(executor.getQueue().size())
+              .append(", active=").append(executor.getActiveCount())
+              .append(", completed=").append(executor.getCompletedTaskCount());
+        else
+            sb.append("queued=0 (synchronous)");
+        sb.append(", frameThreads=").append(frameThreads);
+        for (Map.Entry<String, RuleStatistics> entry : statistics.entrySet())
+            sb.append('\n').append(entry.getKey()).append(": ")
+              .append(entry.getValue());
+        return sb.toString();
+    }
+}
@@ -0,0 +1,163 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+package org.dcm4chee.archive.store;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.dcm4che.data.Attributes;
+import org.dcm4che.data.Fragments;
+import org.dcm4che.data.Tag;
+import org.dcm4che.data.UID;
+import org.dcm4che.data.VR;
+import org.dcm4che.data.Value;
+import org.dcm4che.imageio.codec.CompressionRule;
+import org.dcm4che.imageio.codec.Compressor;
+import org.dcm4che.io.DicomOutputStream;
+
+/**
+ * Compresses the frames of a multi-frame object in parallel, each thread
+ * encoding a contiguous range of frames by its own {@link Compressor}. The
+ * encoded frames are reassembled in order, so the result is identical to
+ * the sequential compression of all frames by one {@link Compressor}.
+ * 
+ * @author agent <agent@local>
+ *
+ */
+class FrameCompressor {
+
+    private static final int ITEM_HEADER_LENGTH = 8;
+
+    private final Attributes attrs;
+    private final String tsuid;
+    private final CompressionRule rule;
+
+    FrameCompressor(Attributes attrs, String tsuid, CompressionRule rule) {
+        this.attrs = attrs;
+        this.tsuid = tsuid;
+        this.rule = rule;
+    }
+
+    /**
+     * Returns the encoded frames, or {@code null} if the object has only
+     * one frame or there are not more than one thread.
+     */
+    byte[][] compressFrames(ExecutorService executor, int threads)
+            throws IOException {
+        int frames = attrs.getInt(Tag.NumberOfFrames, 1);
+        int n = Math.min(frames, threads);
+        if (n <= 1)
+            return null;
+
+        byte[][] encoded = new byte[frames][];
+        List<Future<Void>> futures = new ArrayList<Future<Void>>(n);
+        for (int i = 0; i < n; i++)
+            futures.add(executor.submit(
+                    new FrameRange(encoded, i * frames / n, (i + 1) * frames / n)));
+        try {
+            for (Future<Void> future : futures)
+                future.get();
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            throw new IOException(cause);
+        } finally {
+            for (Future<Void> future : futures)
+                future.cancel(true);
+        }
+        return encoded;
+    }
+
+    /**
+     * Replaces the compressed Pixel Data set by {@link Compressor#compress}
+     * by the frames encoded by {@link #compressFrames}.
+     */
+    void setCompressedPixelData(byte[][] encoded) {
+        Fragments fragments = attrs.newFragments(Tag.PixelData, VR.OB,
+                encoded.length + 1);
+        fragments.add(Value.NULL);
+        fragments.addAll(Arrays.asList(encoded));
+    }
+
+    private class FrameRange implements Callable<Void> {
+
+        private final byte[][] encoded;
+        private final int start;
+        private final int end;
+
+        FrameRange(byte[][] encoded, int start, int end) {
+            this.encoded = encoded;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        public Void call() throws Exception {
+            Attributes copy = new Attributes(attrs);
+            Compressor compressor = new Compressor(copy, tsuid);
+            try {
+                compressor.compress(rule.getTransferSyntax(),
+                        rule.getImageWriteParams());
+                Fragments fragments = (Fragments) copy.getValue(Tag.PixelData);
+                ByteArrayOutputStream bout = new ByteArrayOutputStream();
+                DicomOutputStream out = new DicomOutputStream(bout,
+                        UID.ExplicitVRLittleEndian);
+                for (int i = start; i < end; i++) {
+                    bout.reset();
+                    ((Value) fragments.get(i + 1)).writeTo(out, VR.OB);
+                    out.flush();
+                    byte[] b = bout.toByteArray();
+                    encoded[i] = Arrays.copyOfRange(b, ITEM_HEADER_LENGTH, b.length);
+                }
+            } finally {
+                compressor.close();
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,206 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+package org.dcm4chee.archive.store.dao;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.dcm4chee.archive.conf.FileSystemSelection;
+import org.dcm4chee.archive.entity.FileSystem;
+
+/**
+ * Selects the file system for storing objects of a new Series among all
+ * writeable file systems of a File System Group, skipping file systems
+ * with less than the configured minimal usable space. Tracks pending and
+ * completed writes, written bytes and write time per file system.
+ * 
+ * @author agent <agent@local>
+ *
+ */
+public enum FileSystemSelector {
+
+    INSTANCE;
+
+    private static final class FileSystemStatistics {
+        final String uri;
+        final AtomicInteger pendingWrites = new AtomicInteger();
+        final AtomicLong writes = new AtomicLong();
+        final AtomicLong writtenBytes = new AtomicLong();
+        final AtomicLong writeTime = new AtomicLong();
+        volatile long usableSpace;
+
+        FileSystemStatistics(String uri) {
+            this.uri = uri;
+        }
+
+        @Override
+        public String toString() {
+            long n = writes.get();
+            return String.format(
+                    "%s: usableSpace=%dMB, pendingWrites=%d, writes=%d, writtenBytes=%d, avgWriteTime=%dms",
+                    uri, usableSpace >> 20, pendingWrites.get(), n,
+                    writtenBytes.get(), n > 0 ? writeTime.get() / n : 0);
+        }
+    }
+
+    private final ConcurrentHashMap<Long, FileSystemStatistics> statistics =
+            new ConcurrentHashMap<Long, FileSystemStatistics>();
+
+    private final ConcurrentHashMap<String, AtomicInteger> nextIndex =
+            new ConcurrentHashMap<String, AtomicInteger>();
+
+    private FileSystemStatistics statisticsOf(FileSystem fs) {
+        FileSystemStatistics fsStatistics = statistics.get(fs.getPk());
+        if (fsStatistics == null) {
+            fsStatistics = new FileSystemStatistics(fs.getURI());
+            FileSystemStatistics prev =
+                    statistics.putIfAbsent(fs.getPk(), fsStatistics);
+            if (prev != null)
+                fsStatistics = prev;
+        }
+        return fsStatistics;
+    }
+
+    public boolean hasUsableSpace(FileSystem fs, long minUsableSpace) {
+        long usableSpace = fs.getDirectory().getUsableSpace();
+        statisticsOf(fs).usableSpace = usableSpace;
+        return usableSpace >= minUsableSpace;
+    }
+
+    /**
+     * Returns the selected file system or {@code null}, if no file system
+     * has at least {@code minUsableSpace} bytes usable space.
+     */
+    public FileSystem select(List<FileSystem> fileSystems,
+            FileSystemSelection selection, long minUsableSpace) {
+        switch (selection) {
+        case ROUND_ROBIN:
+            return selectRoundRobin(fileSystems, minUsableSpace);
+        case LEAST_USED:
+            return selectLeastUsed(fileSystems, minUsableSpace);
+        }
+        throw new AssertionError(selection);
+    }
+
+    private FileSystem selectRoundRobin(List<FileSystem> fileSystems,
+            long minUsableSpace) {
+        int size = fileSystems.size();
+        AtomicInteger next = nextIndex(keyOf(fileSystems));
+        for (int i = 0; i < size; i++) {
+            FileSystem fs = fileSystems.get(
+                    (next.getAndIncrement() & Integer.MAX_VALUE) % size);
+            if (hasUsableSpace(fs, minUsableSpace))
+                return fs;
+        }
+        return null;
+    }
+
+    /**
+     * Returns key of the round-robin index, which identifies the selectable
+     * file systems, so associations selecting among different file systems
+     * of one group do not share one index.
+     */
+    private static String keyOf(List<FileSystem> fileSystems) {
+        StringBuilder sb = new StringBuilder();
+        for (FileSystem fs : fileSystems)
+            sb.append(fs.getPk()).append(',');
+        return sb.toString();
+    }
+
+    private AtomicInteger nextIndex(String key) {
+        AtomicInteger next = nextIndex.get(key);
+        if (next == null) {
+            next = new AtomicInteger();
+            AtomicInteger prev = nextIndex.putIfAbsent(key, next);
+            if (prev != null)
+                next = prev;
+        }
+        return next;
+    }
+
+    private FileSystem selectLeastUsed(List<FileSystem> fileSystems,
+            long minUsableSpace) {
+        FileSystem selected = null;
+        int minPendingWrites = Integer.MAX_VALUE;
+        long maxUsableSpace = -1L;
+        for (FileSystem fs : fileSystems) {
+            if (!hasUsableSpace(fs, minUsableSpace))
+                continue;
+
+            FileSystemStatistics fsStatistics = statisticsOf(fs);
+            int pendingWrites = fsStatistics.pendingWrites.get();
+            long usableSpace = fsStatistics.usableSpace;
+            if (pendingWrites < minPendingWrites
+                    || pendingWrites == minPendingWrites
+                        && usableSpace > maxUsableSpace) {
+                selected = fs;
+                minPendingWrites = pendingWrites;
+                maxUsableSpace = usableSpace;
+            }
+        }
+        return selected;
+    }
+
+    public void beginWrite(FileSystem fs) {
+        statisticsOf(fs).pendingWrites.incrementAndGet();
+    }
+
+    public void endWrite(FileSystem fs, long bytes, long time) {
+        FileSystemStatistics fsStatistics = statisticsOf(fs);
+        fsStatistics.pendingWrites.decrementAndGet();
+        fsStatistics.writes.incrementAndGet();
+        fsStatistics.writtenBytes.addAndGet(bytes);
+        fsStatistics.writeTime.addAndGet(time);
+    }
+
+    public String statistics() {
+        if (statistics.isEmpty())
+            return "no writes";
+
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<Long, FileSystemStatistics> entry : statistics.entrySet()) {
+            if (sb.length() > 0)
+                sb.append('\n');
+            sb.append(entry.getValue());
+        }
+        return sb.toString();
+    }
+}
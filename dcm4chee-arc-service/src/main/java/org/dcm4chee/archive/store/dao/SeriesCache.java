@@ -0,0 +1,430 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+package org.dcm4chee.archive.store.dao;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.TransactionSynchronizationRegistry;
+
+import org.dcm4che.data.Attributes;
+import org.dcm4che.data.Tag;
+import org.dcm4che.data.UID;
+import org.dcm4che.io.DicomOutputStream;
+import org.dcm4chee.archive.common.StoreParam;
+import org.dcm4chee.archive.conf.Entity;
+import org.dcm4chee.archive.entity.Availability;
+import org.dcm4chee.archive.entity.Series;
+import org.dcm4chee.archive.entity.Study;
+
+/**
+ * Caches Series, Study and Patient of recently received objects, together
+ * with a digest of the received attributes merged into them. Subsequent
+ * objects of the same Series with equal digest need neither to look up nor
+ * to update the Series, Study and Patient records.
+ * 
+ * <p>Entries are invalidated after commit of transactions which modify the
+ * attributes of the Series, its Study or of any Patient, or delete the
+ * Patient, in any association. Therefore the stamps of the last
+ * {@value #MAX_INVALIDATION_STAMPS} invalidations of Series and Studies are
+ * kept; entries created before older invalidations are not used.
+ * 
+ * <p>The number of related instances of a cached Series and its Study is
+ * only reset again, if it was calculated since the last reset by the
+ * association - e.g. by a query or by {@code NumberOfInstancesUpdater}.
+ * 
+ * @author agent <agent@local>
+ *
+ */
+public class SeriesCache {
+
+    private static final Object TX_KEY = SeriesCache.class;
+
+    private static final int MAX_INVALIDATION_STAMPS = 10000;
+
+    /**
+     * Number of queries saved by a hit in addition to skipped resets of the
+     * number of related instances: the lookup of the Series, which fetches
+     * its Study and Patient.
+     */
+    private static final int LOOKUP_QUERIES_PER_HIT = 1;
+
+    /**
+     * Number of queries to reset the number of related instances of the
+     * Series and of its Study.
+     */
+    private static final int RESET_QUERIES_PER_HIT = 2;
+
+    private static final int[] STUDY_ATTRS_MERGED_BY_INSTANCE = {
+        Tag.SOPClassUID, Tag.Modality
+    };
+
+    private static final AtomicLong hits = new AtomicLong();
+    private static final AtomicLong misses = new AtomicLong();
+    private static final AtomicLong invalidatedHits = new AtomicLong();
+    private static final AtomicLong savedQueries = new AtomicLong();
+
+    private static long clock;
+    private static long minStamp;
+    private static long minCalculatedStamp;
+    private static final Map<Long, Long> seriesStamps = invalidationStamps();
+    private static final Map<Long, Long> studyStamps = invalidationStamps();
+    private static final Map<Long, Long> seriesCalculatedStamps =
+            calculatedStamps();
+    private static final Map<Long, Long> studyCalculatedStamps =
+            calculatedStamps();
+
+    private static final class Invalidation implements Synchronization {
+        final Set<Long> seriesPks = new LinkedHashSet<Long>();
+        final Set<Long> studyPks = new LinkedHashSet<Long>();
+        boolean all;
+
+        @Override
+        public void beforeCompletion() {
+        }
+
+        @Override
+        public void afterCompletion(int status) {
+            if (status == Status.STATUS_COMMITTED)
+                invalidate(this);
+        }
+    }
+
+    public static final class Entry {
+        private final long stamp;
+        private final long seriesPk;
+        private final long studyPk;
+        private final byte[] digest;
+        private final Attributes patientAttrs;
+        private final Attributes studyAttrs;
+        private final Attributes seriesAttrs;
+        private long resetStamp;
+
+        Entry(Series series, byte[] digest) {
+            Study study = series.getStudy();
+            this.stamp = stamp();
+            this.resetStamp = stamp;
+            this.seriesPk = series.getPk();
+            this.studyPk = study.getPk();
+            this.digest = digest;
+            this.patientAttrs = study.getPatient().getAttributes();
+            this.studyAttrs = study.getAttributes();
+            this.seriesAttrs = series.getAttributes();
+        }
+
+        public long getSeriesPk() {
+            return seriesPk;
+        }
+
+        public long getStudyPk() {
+            return studyPk;
+        }
+
+        public Attributes getPatientAttributes() {
+            return patientAttrs;
+        }
+
+        public Attributes getStudyAttributes() {
+            return studyAttrs;
+        }
+
+        public Attributes getSeriesAttributes() {
+            return seriesAttrs;
+        }
+
+        /**
+         * Returns the number of related instances of the Series and of its
+         * Study, which were calculated since they were last reset by this
+         * association, and therefore have to be reset again.
+         * 
+         * @return {@code [seriesCalculated, studyCalculated]}
+         */
+        public boolean[] numberOfInstancesCalculated() {
+            long now = stamp();
+            boolean[] calculated;
+            synchronized (SeriesCache.class) {
+                calculated = new boolean[] {
+                    calculatedSince(resetStamp, seriesCalculatedStamps, seriesPk),
+                    calculatedSince(resetStamp, studyCalculatedStamps, studyPk)
+                };
+            }
+            resetStamp = now;
+            int resets = (calculated[0] ? 1 : 0) + (calculated[1] ? 1 : 0);
+            savedQueries.addAndGet(RESET_QUERIES_PER_HIT - resets);
+            return calculated;
+        }
+    }
+
+    private final Map<String, Entry> cache;
+
+    public SeriesCache(final int maxSize) {
+        cache = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    public Entry get(String seriesIUID, byte[] digest) {
+        Entry entry = cache.get(seriesIUID);
+        if (entry != null && Arrays.equals(entry.digest, digest)) {
+            if (!invalidatedSince(entry)) {
+                hits.incrementAndGet();
+                savedQueries.addAndGet(LOOKUP_QUERIES_PER_HIT);
+                return entry;
+            }
+            invalidatedHits.incrementAndGet();
+            cache.remove(seriesIUID);
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    public Entry put(String seriesIUID, byte[] digest, Series series) {
+        Entry entry = new Entry(series, digest);
+        cache.put(seriesIUID, entry);
+        return entry;
+    }
+
+    public void clear() {
+        cache.clear();
+    }
+
+    /**
+     * Invalidates cached entries of the specified Series after commit of the
+     * current transaction.
+     */
+    public static void invalidateSeries(TransactionSynchronizationRegistry tsr,
+            long seriesPk) {
+        invalidation(tsr).seriesPks.add(seriesPk);
+    }
+
+    /**
+     * Invalidates cached entries of all Series of the specified Study after
+     * commit of the current transaction.
+     */
+    public static void invalidateStudy(TransactionSynchronizationRegistry tsr,
+            long studyPk) {
+        invalidation(tsr).studyPks.add(studyPk);
+    }
+
+    /**
+     * Invalidates all cached entries after commit of the current
+     * transaction, e.g. on update or deletion of Patients.
+     */
+    public static void invalidateAll(TransactionSynchronizationRegistry tsr) {
+        invalidation(tsr).all = true;
+    }
+
+    /**
+     * Notifies that the number of related instances of the specified Series
+     * was calculated, so cached entries of the Series have to reset it
+     * again on the next hit.
+     */
+    public static synchronized void seriesNumberOfInstancesCalculated(
+            long seriesPk) {
+        stamp(seriesCalculatedStamps, seriesPk, ++clock);
+    }
+
+    /**
+     * Notifies that the number of related instances of the specified Study
+     * was calculated, so cached entries of its Series have to reset it
+     * again on the next hit.
+     */
+    public static synchronized void studyNumberOfInstancesCalculated(
+            long studyPk) {
+        stamp(studyCalculatedStamps, studyPk, ++clock);
+    }
+
+    private static Invalidation invalidation(
+            TransactionSynchronizationRegistry tsr) {
+        Invalidation inv = (Invalidation) tsr.getResource(TX_KEY);
+        if (inv == null) {
+            inv = new Invalidation();
+            tsr.putResource(TX_KEY, inv);
+            tsr.registerInterposedSynchronization(inv);
+        }
+        return inv;
+    }
+
+    private static synchronized void invalidate(Invalidation inv) {
+        long stamp = ++clock;
+        if (inv.all) {
+            minStamp = stamp;
+            seriesStamps.clear();
+            studyStamps.clear();
+            return;
+        }
+        for (Long seriesPk : inv.seriesPks)
+            stamp(seriesStamps, seriesPk, stamp);
+        for (Long studyPk : inv.studyPks)
+            stamp(studyStamps, studyPk, stamp);
+    }
+
+    private static void stamp(Map<Long, Long> stamps, Long pk, long stamp) {
+        // re-insert to keep the stamps in invalidation order
+        stamps.remove(pk);
+        stamps.put(pk, stamp);
+    }
+
+    private static synchronized long stamp() {
+        return clock;
+    }
+
+    private static synchronized boolean invalidatedSince(Entry entry) {
+        return entry.stamp < minStamp
+                || invalidatedSince(entry.stamp, seriesStamps.get(entry.seriesPk))
+                || invalidatedSince(entry.stamp, studyStamps.get(entry.studyPk));
+    }
+
+    private static boolean invalidatedSince(long stamp, Long invalidated) {
+        return invalidated != null && invalidated > stamp;
+    }
+
+    private static boolean calculatedSince(long stamp,
+            Map<Long, Long> calculatedStamps, long pk) {
+        return stamp < minCalculatedStamp
+                || invalidatedSince(stamp, calculatedStamps.get(pk));
+    }
+
+    private static Map<Long, Long> invalidationStamps() {
+        return new LinkedHashMap<Long, Long>() {
+
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Long> eldest) {
+                if (size() <= MAX_INVALIDATION_STAMPS)
+                    return false;
+
+                minStamp = Math.max(minStamp, eldest.getValue());
+                return true;
+            }
+        };
+    }
+
+    private static Map<Long, Long> calculatedStamps() {
+        return new LinkedHashMap<Long, Long>() {
+
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Long> eldest) {
+                if (size() <= MAX_INVALIDATION_STAMPS)
+                    return false;
+
+                minCalculatedStamp =
+                        Math.max(minCalculatedStamp, eldest.getValue());
+                return true;
+            }
+        };
+    }
+
+    public static byte[] digest(Attributes data, StoreParam storeParam,
+            Availability availability) {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream(1024);
+        try {
+            DicomOutputStream out = new DicomOutputStream(bout,
+                    UID.ExplicitVRLittleEndian);
+            writeSelected(out, data,
+                    storeParam.getAttributeFilter(Entity.Patient).getSelection());
+            writeSelected(out, data,
+                    storeParam.getAttributeFilter(Entity.Study).getSelection());
+            writeSelected(out, data, STUDY_ATTRS_MERGED_BY_INSTANCE);
+            writeSelected(out, data,
+                    storeParam.getAttributeFilter(Entity.Series).getSelection());
+            out.write(availability.ordinal());
+            out.flush();
+            return MessageDigest.getInstance("MD5").digest(bout.toByteArray());
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static void writeSelected(DicomOutputStream out, Attributes data,
+            int[] selection) throws IOException {
+        out.writeDataset(null, new Attributes(data, data.bigEndian(), selection));
+        out.writeHeader(Tag.ItemDelimitationItem, null, 0);
+    }
+
+    public static long getHits() {
+        return hits.get();
+    }
+
+    public static long getMisses() {
+        return misses.get();
+    }
+
+    public static long getInvalidatedHits() {
+        return invalidatedHits.get();
+    }
+
+    public static long getSavedQueries() {
+        return savedQueries.get();
+    }
+
+    public static String statistics() {
+        long hits = getHits();
+        long lookups = hits + getMisses();
+        long savedQueries = getSavedQueries();
+        return lookups == 0
+                ? "lookups=0"
+                : String.format(
+                    "lookups=%d, hits=%d, hitRatio=%.3f, invalidatedHits=%d, "
+                    + "savedQueries=%d, savedQueriesPerInstance=%.3f",
+                    lookups, hits, (double) hits / lookups,
+                    getInvalidatedHits(), savedQueries,
+                    (double) savedQueries / lookups);
+    }
+}
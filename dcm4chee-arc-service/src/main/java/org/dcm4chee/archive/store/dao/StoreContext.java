@@ -37,7 +37,14 @@
  * ***** END LICENSE BLOCK ***** */
 package org.dcm4chee.archive.store.dao;
 
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.dcm4che.net.Status;
+import org.dcm4che.net.service.DicomServiceException;
 import org.dcm4chee.archive.common.StoreParam;
+import org.dcm4chee.archive.conf.FileSystemSelection;
 import org.dcm4chee.archive.entity.Availability;
 import org.dcm4chee.archive.entity.FileSystem;
 import org.dcm4chee.archive.entity.PerformedProcedureStep;
@@ -48,8 +55,32 @@ import org.dcm4chee.archive.entity.PerformedProcedureStep;
  */
 public class StoreContext {
 
+    /**
+     * Snapshot of the MPPS state of a {@link StoreContext}, to restore it
+     * if the transaction which updated it was rolled back.
+     */
+    public static final class MPPSState {
+        private final PerformedProcedureStep currentMPPS;
+        private final PerformedProcedureStep previousMPPS;
+        private final boolean rejectedByMPPS;
+
+        private MPPSState(StoreContext storeContext) {
+            this.currentMPPS = storeContext.currentMPPS;
+            this.previousMPPS = storeContext.previousMPPS;
+            this.rejectedByMPPS = storeContext.rejectedByMPPS;
+        }
+    }
+
+    private static final int SERIES_CACHE_SIZE = 10;
+    private static final int SERIES_FILE_SYSTEMS_SIZE = 100;
+
     private final StoreParam storeParam;
+    private final SeriesCache seriesCache = new SeriesCache(SERIES_CACHE_SIZE);
     private FileSystem fileSystem;
+    private List<FileSystem> fileSystems;
+    private FileSystemSelection fileSystemSelection;
+    private long minUsableSpace;
+    private Map<String, FileSystem> seriesFileSystems;
     private PerformedProcedureStep currentMPPS;
     private PerformedProcedureStep previousMPPS;
     private boolean rejectedByMPPS;
@@ -63,6 +94,10 @@ public class StoreContext {
         return storeParam;
     }
 
+    public SeriesCache getSeriesCache() {
+        return seriesCache;
+    }
+
     public FileSystem getFileSystem() {
         return fileSystem;
     }
@@ -72,6 +107,49 @@ public class StoreContext {
         this.availability = fileSystem.getAvailability();
     }
 
+    public void setFileSystems(List<FileSystem> fileSystems,
+            FileSystemSelection fileSystemSelection, long minUsableSpace) {
+        this.fileSystems = fileSystems;
+        this.fileSystemSelection = fileSystemSelection;
+        this.minUsableSpace = minUsableSpace;
+        this.seriesFileSystems = new LinkedHashMap<String, FileSystem>(
+                16, 0.75f, true) {
+
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(
+                    Map.Entry<String, FileSystem> eldest) {
+                return size() > SERIES_FILE_SYSTEMS_SIZE;
+            }
+        };
+        setFileSystem(fileSystems.get(0));
+    }
+
+    /**
+     * Returns the file system for storing an object of the specified Series.
+     * Objects of one Series are stored to the same file system, until its
+     * usable space falls below the configured minimum.
+     */
+    public FileSystem getFileSystem(String seriesIUID)
+            throws DicomServiceException {
+        if (fileSystemSelection == null)
+            return fileSystem;
+
+        FileSystemSelector selector = FileSystemSelector.INSTANCE;
+        FileSystem fs = seriesFileSystems.get(seriesIUID);
+        if (fs == null || !selector.hasUsableSpace(fs, minUsableSpace)) {
+            fs = selector.select(fileSystems, fileSystemSelection,
+                    minUsableSpace);
+            if (fs == null)
+                throw new DicomServiceException(Status.OutOfResources,
+                        "No File System with sufficient usable space in File System Group "
+                        + fileSystem.getGroupID());
+            seriesFileSystems.put(seriesIUID, fs);
+        }
+        return fs;
+    }
+
     public Availability getAvailability() {
         return availability;
     }
@@ -100,4 +178,14 @@ public class StoreContext {
     public final boolean isRejectedByMPPS() {
         return rejectedByMPPS;
     }
+
+    public MPPSState getMPPSState() {
+        return new MPPSState(this);
+    }
+
+    public void setMPPSState(MPPSState state) {
+        this.currentMPPS = state.currentMPPS;
+        this.previousMPPS = state.previousMPPS;
+        this.rejectedByMPPS = state.rejectedByMPPS;
+    }
 }
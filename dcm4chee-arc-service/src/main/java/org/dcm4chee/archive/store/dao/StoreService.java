@@ -45,6 +45,7 @@ import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 
+import javax.annotation.Resource;
 import javax.ejb.EJB;
 import javax.ejb.Stateless;
 import javax.persistence.EntityManager;
@@ -52,6 +53,7 @@ import javax.persistence.NoResultException;
 import javax.persistence.PersistenceContext;
 import javax.persistence.PersistenceException;
 import javax.persistence.TypedQuery;
+import javax.transaction.TransactionSynchronizationRegistry;
 
 import org.dcm4che.data.Attributes;
 import org.dcm4che.data.Sequence;
@@ -69,8 +71,10 @@ import org.dcm4chee.archive.conf.Entity;
 import org.dcm4chee.archive.conf.StoreDuplicate;
 import org.dcm4chee.archive.dao.CodeService;
 import org.dcm4chee.archive.dao.IssuerService;
+import org.dcm4chee.archive.dao.NumberOfInstancesQueue;
 import org.dcm4chee.archive.dao.PatientService;
 import org.dcm4chee.archive.dao.RequestService;
+import org.dcm4chee.archive.dao.SeriesAttributesCache;
 import org.dcm4chee.archive.entity.Availability;
 import org.dcm4chee.archive.entity.Code;
 import org.dcm4chee.archive.entity.ContentItem;
@@ -84,7 +88,9 @@ import org.dcm4chee.archive.entity.PerformedProcedureStep;
 import org.dcm4chee.archive.entity.ScheduledProcedureStep;
 import org.dcm4chee.archive.entity.Series;
 import org.dcm4chee.archive.entity.Study;
+import org.dcm4chee.archive.entity.StudyQueryView;
 import org.dcm4chee.archive.entity.VerifyingObserver;
+import org.dcm4chee.archive.query.dao.QueryResultCache;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -100,6 +106,9 @@ public class StoreService {
     @PersistenceContext
     private EntityManager em;
 
+    @Resource
+    private TransactionSynchronizationRegistry tsr;
+
     @EJB
     private CodeService codeService;
 
@@ -142,6 +151,26 @@ public class StoreService {
         }
     }
 
+    public List<FileSystem> findWriteableFileSystems(String groupID,
+            String initFileSystemURI) throws DicomServiceException {
+        List<FileSystem> resultList = 
+                em.createNamedQuery(FileSystem.FIND_BY_GROUP_ID, FileSystem.class)
+                    .setParameter(1, groupID)
+                    .getResultList();
+        List<FileSystem> writeable = new ArrayList<FileSystem>(resultList.size());
+        for (FileSystem fs : resultList)
+            if (fs.getStatus() != FileSystemStatus.RO)
+                writeable.add(fs);
+        if (writeable.isEmpty()) {
+            if (resultList.isEmpty() && initFileSystemURI != null)
+                writeable.add(initFileSystem(groupID, initFileSystemURI, null));
+            else
+                throw new DicomServiceException(Status.OutOfResources,
+                        "No writeable File System in File System Group " + groupID);
+        }
+        return writeable;
+    }
+
     private FileSystem initFileSystem(String groupID, String initFileSystemURI,
             TypedQuery<FileSystem> selectCurFileSystem) {
         FileSystem fs = new FileSystem();
@@ -163,10 +192,20 @@ public class StoreService {
     public FileRef addFileRef(String sourceAET, Attributes data,
             Attributes modified, File file, String digest, String tsuid,
             StoreContext storeContext) throws DicomServiceException {
+        return addFileRef(sourceAET, data, modified,
+                storeContext.getFileSystem(), file, digest, tsuid,
+                storeContext);
+    }
+
+    public FileRef addFileRef(String sourceAET, Attributes data,
+            Attributes modified, FileSystem fs, File file, String digest,
+            String tsuid, StoreContext storeContext)
+                    throws DicomServiceException {
 
         try {
-            FileSystem fs = storeContext.getFileSystem();
             StoreParam storeParam = storeContext.getStoreParam();
+            // availability of the file system selected for this object
+            storeContext.setAvailability(fs.getAvailability());
             Instance inst;
             try {
                 inst = findInstance(data.getString(Tag.SOPInstanceUID, null));
@@ -197,6 +236,11 @@ public class StoreService {
                 case STORE:
                     updateInstance(inst, data, modified, storeParam);
                     coerceAttributes(inst.getSeries(), data, modified);
+                    SeriesAttributesCache.INSTANCE.invalidate(tsr,
+                            inst.getSeries().getPk(),
+                            inst.getSeries().getStudy().getPk());
+                    QueryResultCache.INSTANCE.invalidate(tsr, inst.getSeries()
+                            .getStudy().getPatient().getPatientID());
                     break;
                 case REPLACE:
                     LOG.info("Replace already received object");
@@ -215,13 +259,61 @@ public class StoreService {
             em.detach(fileRef);
             return fileRef;
         } catch (DicomServiceException e) {
+            storeContext.getSeriesCache().clear();
             throw e;
         } catch (Exception e) {
+            storeContext.getSeriesCache().clear();
             LOG.error("Processing failure: ", e);
             throw new DicomServiceException(Status.ProcessingFailure, e.getMessage());
         }
     }
 
+    public boolean replaceFileRef(long fileRefPk, File file, String tsuid,
+            String digest) {
+        FileRef prev = em.find(FileRef.class, fileRefPk);
+        if (prev == null)
+            return false;
+
+        FileSystem fs = prev.getFileSystem();
+        String filePath = file.toURI().toString().substring(fs.getURI().length());
+        FileRef fileRef = new FileRef(fs, filePath, tsuid, file.length(), digest);
+        fileRef.setInstance(prev.getInstance());
+        em.persist(fileRef);
+        em.remove(prev);
+        return true;
+    }
+
+    public void addFileRefs(List<? extends PendingFileRef> pendingFileRefs,
+            StoreContext storeContext) {
+        for (PendingFileRef pendingFileRef : pendingFileRefs)
+            addFileRef(pendingFileRef, storeContext);
+    }
+
+    public void addFileRef(PendingFileRef pendingFileRef,
+            StoreContext storeContext) {
+        pendingFileRef.setFileRef(null);
+        pendingFileRef.setPreviousMPPS(null);
+        pendingFileRef.setException(null);
+        try {
+            FileRef fileRef = addFileRef(
+                    pendingFileRef.getSourceAET(),
+                    pendingFileRef.getAttributes(),
+                    pendingFileRef.getModified(),
+                    pendingFileRef.getFileSystem(),
+                    pendingFileRef.getFile(),
+                    pendingFileRef.getDigest(),
+                    pendingFileRef.getTransferSyntax(),
+                    storeContext);
+            pendingFileRef.setFileRef(fileRef);
+            if (fileRef != null) {
+                pendingFileRef.setPreviousMPPS(storeContext.getPreviousMPPS());
+                storeContext.setPreviousMPPS(null);
+            }
+        } catch (DicomServiceException e) {
+            pendingFileRef.setException(e);
+        }
+    }
+
     public Instance newInstance(String sourceAET, Attributes data,
             Attributes modified, StoreContext storeContext) throws DicomServiceException {
         StoreParam storeParam = storeContext.getStoreParam();
@@ -230,7 +322,7 @@ public class StoreService {
         if (rnAvailability != null) {
             processRejectionNote(data, rnAvailability);
         }
-        Series series = findOrCreateSeries(sourceAET, data, storeContext);
+        SeriesCache.Entry series = findOrCreateSeries(sourceAET, data, storeContext);
         Availability availability = rnAvailability != null
                     ? Availability.availabilityOfRejectedObject(rnAvailability)
                     : storeContext.isRejectedByMPPS()
@@ -249,7 +341,13 @@ public class StoreService {
             item.newSequence(Tag.ModifiedAttributesSequence, 1).add(modified);
         }
         Instance inst = new Instance();
-        inst.setSeries(series);
+        inst.setSeries(em.getReference(Series.class, series.getSeriesPk()));
+        NumberOfInstancesQueue.INSTANCE.markDirty(tsr,
+                series.getSeriesPk(), series.getStudyPk());
+        SeriesAttributesCache.INSTANCE.invalidate(tsr,
+                series.getSeriesPk(), series.getStudyPk());
+        QueryResultCache.INSTANCE.invalidate(tsr,
+                series.getPatientAttributes().getString(Tag.PatientID));
         inst.setConceptNameCode(singleCode(data, Tag.ConceptNameCodeSequence));
         inst.setVerifyingObservers(createVerifyingObservers(
                 data.getSequence(Tag.VerifyingObserverSequence),
@@ -341,6 +439,13 @@ public class StoreService {
         data.update(series.getAttributes(), modified);
     }
 
+    private static void coerceAttributes(SeriesCache.Entry series,
+            Attributes data, Attributes modified) {
+        data.update(series.getPatientAttributes(), modified);
+        data.update(series.getStudyAttributes(), modified);
+        data.update(series.getSeriesAttributes(), modified);
+    }
+
     private Instance findInstance(String sopIUID) {
         return em.createNamedQuery(
                     Instance.FIND_BY_SOP_INSTANCE_UID, Instance.class)
@@ -361,8 +466,8 @@ public class StoreService {
                  .getSingleResult();
     }
 
-    private Series findOrCreateSeries(String sourceAET, Attributes data,
-            StoreContext storeContext)
+    private SeriesCache.Entry findOrCreateSeries(String sourceAET,
+            Attributes data, StoreContext storeContext)
                     throws DicomServiceException {
         StoreParam storeParam = storeContext.getStoreParam();
         Availability availability = storeContext.getAvailability();
@@ -370,6 +475,13 @@ public class StoreService {
         Series series;
         updateRefPPS(data, storeContext);
         checkRefPPS(data, storeContext);
+        SeriesCache seriesCache = storeContext.getSeriesCache();
+        byte[] digest = SeriesCache.digest(data, storeParam, availability);
+        SeriesCache.Entry cached = seriesCache.get(seriesIUID, digest);
+        if (cached != null) {
+            resetNumberOfInstances(cached);
+            return cached;
+        }
         try {
             series = findSeries(seriesIUID);
         } catch (NoResultException e) {
@@ -390,13 +502,31 @@ public class StoreService {
                     storeParam.getAttributeFilter(Entity.Series),
                     storeParam.getFuzzyStr());
             em.persist(series);
-            return series;
+            return seriesCache.put(seriesIUID, digest, series);
         }
         Study study = series.getStudy();
         mergeSeriesAttributes(series, data, storeParam, availability);
         mergeStudyAttributes(study, data, storeParam, availability);
         patientService.mergeAttributes(study.getPatient(), data, storeParam);
-        return series;
+        return seriesCache.put(seriesIUID, digest, series);
+    }
+
+    private void resetNumberOfInstances(SeriesCache.Entry series) {
+        boolean[] calculated = series.numberOfInstancesCalculated();
+        if (calculated[0])
+            em.createNamedQuery(Series.UPDATE_NUMBER_OF_INSTANCES)
+                .setParameter(1, -1)
+                .setParameter(2, -1)
+                .setParameter(3, series.getSeriesPk())
+                .executeUpdate();
+        if (calculated[1])
+            em.createNamedQuery(Study.UPDATE_NUMBER_OF_INSTANCES)
+                .setParameter(1, -1)
+                .setParameter(2, -1)
+                .setParameter(3, -1)
+                .setParameter(4, -1)
+                .setParameter(5, series.getStudyPk())
+                .executeUpdate();
     }
 
     private void mergeSeriesAttributes(Series series, Attributes data,
@@ -409,6 +539,7 @@ public class StoreService {
         AttributeFilter seriesFilter = storeParam.getAttributeFilter(Entity.Series);
         if (seriesAttrs.mergeSelected(data, seriesFilter.getSelection())) {
             series.setAttributes(seriesAttrs, seriesFilter, storeParam.getFuzzyStr());
+            SeriesCache.invalidateSeries(tsr, series.getPk());
         }
     }
 
@@ -570,6 +701,11 @@ public class StoreService {
                     }
                     series.resetNumberOfInstances();
                     study.resetNumberOfInstances();
+                    NumberOfInstancesQueue.INSTANCE.markDirty(tsr, series);
+                    SeriesAttributesCache.INSTANCE.invalidate(tsr,
+                            series.getPk(), study.getPk());
+                    QueryResultCache.INSTANCE.invalidate(tsr,
+                            study.getPatient().getPatientID());
                 }
                 if (!iuid2cuid.isEmpty())
                     rejectionFailed("Rejection failed: No such referenced SOP Instances");
@@ -614,6 +750,8 @@ public class StoreService {
                     storeParam.getAttributeFilter(Entity.Study),
                     storeParam.getFuzzyStr());
             em.persist(study);
+            if (storeParam.isStudyQueryView())
+                createQueryView(study);
         }
         return study;
     }
@@ -630,9 +768,24 @@ public class StoreService {
         Attributes studyAttrs = study.getAttributes();
         if (studyAttrs.mergeSelected(data, studyFilter.getSelection())) {
             study.setAttributes(studyAttrs, studyFilter, storeParam.getFuzzyStr());
+            SeriesCache.invalidateStudy(tsr, study.getPk());
+            StudyQueryView queryView = study.getQueryView();
+            if (queryView != null)
+                queryView.update(study);
+            else if (storeParam.isStudyQueryView())
+                createQueryView(study);
+        } else if (storeParam.isStudyQueryView()
+                && study.getQueryView() == null) {
+            createQueryView(study);
         }
     }
 
+    private void createQueryView(Study study) {
+        StudyQueryView queryView = new StudyQueryView(study);
+        em.persist(queryView);
+        study.setQueryView(queryView);
+    }
+
     private Code singleCode(Attributes attrs, int seqTag) {
         Attributes item = attrs.getNestedDataset(seqTag);
         if (item != null)
@@ -45,7 +45,6 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
-import java.security.DigestOutputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
@@ -108,7 +107,9 @@ import org.dcm4chee.archive.resteasy.LogInterceptor;
 import org.dcm4chee.archive.store.Supplements;
 import org.dcm4chee.archive.store.dao.StoreContext;
 import org.dcm4chee.archive.store.dao.StoreService;
+import org.dcm4chee.archive.util.ChecksumMessageDigest;
 import org.dcm4chee.archive.util.FileUtils;
+import org.dcm4chee.archive.util.PipelinedDigestOutputStream;
 import org.dcm4chee.archive.wado.MediaTypes;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -231,7 +232,9 @@ public class StowRS implements MultipartParser.Handler, StreamingOutput {
         String digestAlgorithm = aeExt.getDigestAlgorithm();
         if (digestAlgorithm != null) {
             try {
-                digest = MessageDigest.getInstance(digestAlgorithm);
+                digest = ChecksumMessageDigest.getInstance(digestAlgorithm);
+                if (digest == null)
+                    digest = MessageDigest.getInstance(digestAlgorithm);
             } catch (NoSuchAlgorithmException e) {
                 throw new DicomServiceException(
                         org.dcm4che.net.Status.ProcessingFailure, e);
@@ -321,12 +324,15 @@ public class StowRS implements MultipartParser.Handler, StreamingOutput {
                 spoolDir);
         LOG.info("storeInstances: M-WRITE {}", file);
         OutputStream out = new FileOutputStream(file);
+        PipelinedDigestOutputStream dout = null;
         try {
             MessageDigest digest = creatorType.digest(this.digest); 
             if (digest != null)
                 out = new BufferedOutputStream(
-                        new DigestOutputStream(out, digest));
+                        dout = new PipelinedDigestOutputStream(out, digest,
+                                Archive.getInstance().getDevice().getExecutor()));
             StreamUtils.copy(in, out);
+            out.close();
         } finally {
             SafeClose.close(out);
         }
@@ -334,29 +340,34 @@ public class StowRS implements MultipartParser.Handler, StreamingOutput {
         if (creatorType.isBulkdata(mediaType))
             bulkdata.put(bulkdataURI, fileInfo);
         else {
-            if (digest != null)
-                fileInfo.digest = digest.digest();
+            if (dout != null)
+                fileInfo.digest = dout.digest();
             files.add(fileInfo);
         }
     }
 
-    private void writeDicomInstance(File file, Attributes fmi,
+    private byte[] writeDicomInstance(File file, Attributes fmi,
             Attributes dataset) throws IOException {
         LOG.info("storeInstances: M-WRITE {}", file);
         file.getParentFile().mkdirs();
         OutputStream out = new FileOutputStream(file);
+        PipelinedDigestOutputStream dout = null;
         try {
             MessageDigest digest = creatorType.digest(this.digest); 
             if (digest != null)
-                out = new DigestOutputStream(out, digest);
+                out = new BufferedOutputStream(
+                        dout = new PipelinedDigestOutputStream(out, digest,
+                                Archive.getInstance().getDevice().getExecutor()));
             @SuppressWarnings("resource")
             DicomOutputStream dos =
                     new DicomOutputStream(out, UID.ExplicitVRLittleEndian);
             dos.writeDataset(fmi, dataset);
             dos.flush();
+            out.close();
         } finally {
             SafeClose.close(out);
         }
+        return dout != null ? dout.digest() : null;
     }
 
 
@@ -588,9 +599,9 @@ public class StowRS implements MultipartParser.Handler, StreamingOutput {
             try {
                 checkStudyInstanceUID(fileInfo.attrs);
                 checkTransferCapability(fmi);
-                writeDicomInstance(destFile, fmi, fileInfo.attrs);
-                storeDicomInstance(destFile, fmi, fileInfo.attrs,
-                        digest != null ? digest.digest() : null);
+                byte[] digest = writeDicomInstance(destFile, fmi,
+                        fileInfo.attrs);
+                storeDicomInstance(destFile, fmi, fileInfo.attrs, digest);
             } catch (Exception e) {
                 LOG.info("storeInstances: Storage Failed:", e);
 
@@ -70,6 +70,7 @@ import org.dcm4che.net.service.InstanceLocator;
 import org.dcm4che.util.SafeClose;
 import org.dcm4chee.archive.Archive;
 import org.dcm4chee.archive.entity.InstanceFileRef;
+import org.dcm4chee.archive.retrieve.dao.InstanceAttributes;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -357,13 +358,13 @@ public class AuditUtils {
 
         Calendar timeStamp = logger.timeStamp();
         AuditMessage msg = createRetrieveLogMessage(logger, as, 
-                getPatientID((Attributes) insts.get(0).getObject()),
+                getPatientID(seriesAttributesOf(insts.get(0))),
                 timeStamp, eventOutcomeIndicator);
         for (InstanceLocator instLoc : insts) {
             if (failed.contains(instLoc.iuid) == logSuccess)
                 continue;
 
-            String studyUID = ((Attributes) instLoc.getObject())
+            String studyUID = seriesAttributesOf(instLoc)
                     .getString(Tag.StudyInstanceUID);
             ParticipantObjectIdentification poid = getOrCreatePOID(msg, instLoc, studyUID);
             SOPClass sc = getOrCreateSOPClass(
@@ -417,6 +418,10 @@ public class AuditUtils {
         return msg;
     }
 
+    private static Attributes seriesAttributesOf(InstanceLocator instLoc) {
+        return ((InstanceAttributes) instLoc.getObject()).getSeriesAttributes();
+    }
+
     private static String getPatientID(Attributes attrs) {
         String patID = attrs.getString(Tag.PatientID);
         if (patID == null)
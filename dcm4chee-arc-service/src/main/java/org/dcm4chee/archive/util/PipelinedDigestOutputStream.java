@@ -0,0 +1,190 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+package org.dcm4chee.archive.util;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Output stream, which updates a message digest with the written bytes
+ * by a separate thread, so the calculation of the digest overlaps with
+ * receiving and writing the data. The digest is returned by {@link #digest}
+ * after the stream was closed; if the calculation of the digest fails,
+ * subsequent writes and {@link #digest} throw an {@code IOException}.
+ * 
+ * @author agent <agent@local>
+ *
+ */
+public class PipelinedDigestOutputStream extends FilterOutputStream
+        implements Runnable {
+
+    private static final int MAX_PENDING_CHUNKS = 64;
+    private static final int TIMEOUT_SECONDS = 60;
+    private static final byte[] EOF = {};
+
+    private final MessageDigest digest;
+    private final BlockingQueue<byte[]> chunks =
+            new ArrayBlockingQueue<byte[]>(MAX_PENDING_CHUNKS);
+    private final CountDownLatch finished = new CountDownLatch(1);
+    private final boolean pipelined;
+    private volatile Throwable failure;
+    private boolean closed;
+
+    public PipelinedDigestOutputStream(OutputStream out, MessageDigest digest,
+            Executor executor) {
+        super(out);
+        this.digest = digest;
+        this.pipelined = execute(executor);
+    }
+
+    private boolean execute(Executor executor) {
+        if (executor == null)
+            return false;
+
+        try {
+            executor.execute(this);
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    public MessageDigest getMessageDigest() {
+        return digest;
+    }
+
+    @Override
+    public void run() {
+        try {
+            byte[] chunk;
+            while ((chunk = chunks.take()) != EOF)
+                digest.update(chunk);
+        } catch (InterruptedException e) {
+            failure = e;
+            Thread.currentThread().interrupt();
+        } catch (Throwable e) {
+            failure = e;
+        } finally {
+            finished.countDown();
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (pipelined)
+            checkFailure();
+        out.write(b, off, len);
+        if (pipelined)
+            put(Arrays.copyOfRange(b, off, off + len));
+        else
+            digest.update(b, off, len);
+    }
+
+    private void put(byte[] chunk) throws IOException {
+        try {
+            for (int i = 0; !chunks.offer(chunk, 1, TimeUnit.SECONDS); i++) {
+                checkFailure();
+                if (i >= TIMEOUT_SECONDS)
+                    throw new IOException(
+                            "Timeout of message digest calculation");
+            }
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        }
+    }
+
+    private void checkFailure() throws IOException {
+        Throwable e = failure;
+        if (e != null)
+            throw new IOException("Message digest calculation failed", e);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed)
+            return;
+
+        closed = true;
+        try {
+            super.close();
+        } finally {
+            if (pipelined)
+                put(EOF);
+        }
+    }
+
+    /**
+     * Returns the message digest of the written bytes. Must be invoked after
+     * this stream - and any stream wrapping it - was closed.
+     * 
+     * @throws IOException if the message digest was not calculated
+     *         completely, so it must not be recorded
+     */
+    public byte[] digest() throws IOException {
+        if (!closed)
+            throw new IllegalStateException("stream not closed");
+
+        // fails if the message digest was not calculated completely
+        if (pipelined) {
+            try {
+                if (!finished.await(TIMEOUT_SECONDS, TimeUnit.SECONDS))
+                    throw new IOException(
+                            "Timeout of message digest calculation");
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+            checkFailure();
+        }
+        return digest.digest();
+    }
+}
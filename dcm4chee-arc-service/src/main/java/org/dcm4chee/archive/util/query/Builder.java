@@ -68,11 +68,13 @@ import org.dcm4chee.archive.entity.QVerifyingObserver;
 import com.mysema.query.BooleanBuilder;
 import com.mysema.query.jpa.hibernate.HibernateSubQuery;
 import com.mysema.query.types.ExpressionUtils;
+import com.mysema.query.types.OrderSpecifier;
 import com.mysema.query.types.Predicate;
 import com.mysema.query.types.expr.SimpleExpression;
 import com.mysema.query.types.expr.StringExpression;
 import com.mysema.query.types.path.BeanPath;
 import com.mysema.query.types.path.CollectionPath;
+import com.mysema.query.types.path.NumberPath;
 import com.mysema.query.types.path.StringPath;
 
 /**
@@ -160,6 +162,43 @@ public abstract class Builder {
         throw new IllegalArgumentException("tag: " + TagUtils.toString(tag));
     }
 
+    /**
+     * Returns predicate matching rows positioned after the specified values
+     * of the sort keys and the primary key in the order specified by
+     * {@code orderSpecifiers}, followed by ascending primary key.
+     * 
+     * @throws IllegalArgumentException
+     *             if the number of values does not match the number of sort
+     *             keys
+     */
+    public static Predicate seek(OrderSpecifier<?>[] orderSpecifiers,
+            String[] values, NumberPath<Long> pk, long lastPk) {
+        if (values.length != orderSpecifiers.length)
+            throw new IllegalArgumentException(
+                    "cursor does not match orderby");
+
+        Predicate result = null;
+        Predicate equal = null;
+        for (int i = 0; i < orderSpecifiers.length; i++) {
+            StringPath path = (StringPath) orderSpecifiers[i].getTarget();
+            String value = values[i];
+            Predicate after = orderSpecifiers[i].isAscending()
+                    ? path.gt(value)
+                    : path.lt(value);
+            result = or(result, and(equal, after));
+            equal = and(equal, path.eq(value));
+        }
+        return or(result, and(equal, pk.gt(lastPk)));
+    }
+
+    private static Predicate and(Predicate p1, Predicate p2) {
+        return p1 == null ? p2 : ExpressionUtils.and(p1, p2);
+    }
+
+    private static Predicate or(Predicate p1, Predicate p2) {
+        return p1 == null ? p2 : ExpressionUtils.or(p1, p2);
+    }
+
     public static void addPatientLevelPredicates(BooleanBuilder builder,
             IDWithIssuer[] pids, Attributes keys, QueryParam queryParam) {
 
@@ -177,6 +216,8 @@ public abstract class Builder {
                 QPatient.patient.patientGivenNameSoundex,
                 keys.getString(Tag.PatientName, "*"),
                 queryParam));
+        builder.and(MatchPersonName.patientNameIndexMatch(
+                keys.getString(Tag.PatientName, "*"), queryParam));
         builder.and(wildCard(QPatient.patient.patientSex,
                 keys.getString(Tag.PatientSex, "*").toUpperCase(), matchUnknown, false));
         builder.and(MatchDateTimeRange.rangeMatch(QPatient.patient.patientBirthDate, 
@@ -42,6 +42,8 @@ import org.dcm4che.data.PersonName;
 import org.dcm4che.data.PersonName.Group;
 import org.dcm4che.soundex.FuzzyStr;
 import org.dcm4chee.archive.common.QueryParam;
+import org.dcm4chee.archive.dao.PatientNameIndex;
+import org.dcm4chee.archive.entity.QPatient;
 
 import com.mysema.query.BooleanBuilder;
 import com.mysema.query.types.ExpressionUtils;
@@ -71,6 +73,41 @@ class MatchPersonName {
             : literalMatch(alphabethicName, ideographicName, phoneticName, pn, queryParam);
     }
 
+    /**
+     * Returns predicate restricting matches to candidates of fuzzy semantic
+     * matching of the Patient Name provided by the {@link PatientNameIndex},
+     * or {@code null}, if fuzzy semantic matching is not requested or the
+     * index is not available or returns too many candidates.
+     */
+    static Predicate patientNameIndexMatch(String value, QueryParam queryParam) {
+        if (value.equals("*") || !queryParam.isFuzzySemanticMatching()
+                || !PatientNameIndex.INSTANCE.isReady())
+            return null;
+
+        PersonName pn = new PersonName(value);
+        FuzzyStr fuzzyStr = queryParam.getFuzzyStr();
+        String familyName = pn.get(PersonName.Component.FamilyName);
+        String fuzzyFamilyName = fuzzyStr.toFuzzy(familyName);
+        String givenName = pn.get(PersonName.Component.GivenName);
+        String fuzzyGivenName = fuzzyStr.toFuzzy(givenName);
+        if (fuzzyFamilyName.length() == 0 && fuzzyGivenName.length() == 0)
+            return null;
+
+        long[] pks = PatientNameIndex.INSTANCE.candidates(
+                familyName, fuzzyFamilyName, givenName, fuzzyGivenName,
+                queryParam.isMatchUnknown());
+        if (pks == null)
+            return null;
+
+        if (pks.length == 0)
+            return QPatient.patient.pk.isNull(); // never matches
+
+        Long[] values = new Long[pks.length];
+        for (int i = 0; i < pks.length; i++)
+            values[i] = pks[i];
+        return QPatient.patient.pk.in(values);
+    }
+
     private static Predicate literalMatch(StringPath alphabethicName,
             StringPath ideographicName, StringPath phoneticName,
             PersonName pn, QueryParam param) {
@@ -37,14 +37,26 @@
  * ***** END LICENSE BLOCK ***** */
 package org.dcm4chee.archive.wado;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
-import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.dcm4che.data.Attributes;
+import org.dcm4chee.archive.conf.ArchiveDeviceExtension;
 import org.dcm4chee.archive.dao.SeriesService;
 
 /**
+ * Caches Patient, Study and Series attributes for WADO requests. Concurrent
+ * requests for different Series do not block each other; concurrent requests
+ * for the same uncached Series wait for one load from the database.
+ * 
  * @author Gunter Zeilinger <gunterze@gmail.com>
  *
  */
@@ -52,33 +64,28 @@ public enum WadoAttributesCache {
 
     INSTANCE;
 
-    private static final class CacheEntry {
-        final Attributes value;
+    private static final class CacheEntry extends FutureTask<Attributes> {
         final long fetchTime;
-        CacheEntry(Attributes value, long fetchTime) {
-            this.value = value;
+        volatile long accessTime;
+
+        CacheEntry(Callable<Attributes> loader, long fetchTime) {
+            super(loader);
             this.fetchTime = fetchTime;
+            this.accessTime = fetchTime;
+        }
+
+        boolean isStale(long now, long staleTimeout) {
+            return isDone() && now > fetchTime + staleTimeout;
         }
     }
 
-    @SuppressWarnings("serial")
-    private final Map<Long, CacheEntry> cache =
-            new LinkedHashMap<Long, CacheEntry>(){
+    private final ConcurrentMap<Long, CacheEntry> cache =
+            new ConcurrentHashMap<Long, CacheEntry>();
+    private final AtomicBoolean evicting = new AtomicBoolean();
 
-                @Override
-                protected boolean removeEldestEntry(
-                        Map.Entry<Long, CacheEntry> eldest) {
-                    long now = System.currentTimeMillis();
-                    if (now > eldest.getValue().fetchTime + staleTimeout) {
-                        Iterator<CacheEntry> it = values().iterator();
-                        while (it.hasNext() && now > it.next().fetchTime + staleTimeout)
-                            it.remove();
-                    }
-                    return false;
-                }
-            };
-
-    private long staleTimeout;
+    private volatile long staleTimeout;
+    private volatile int maxSize =
+            ArchiveDeviceExtension.DEF_WADO_ATTRIBUTES_CACHE_SIZE;
 
     public int getStaleTimeout() {
         return (int) (staleTimeout / 1000);
@@ -88,26 +95,112 @@ public enum WadoAttributesCache {
         this.staleTimeout = staleTimeout * 1000L;
     }
 
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public void setMaxSize(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
     public void clear() {
         cache.clear();
     }
 
-    public Attributes getAttributes(SeriesService service,
-            Long seriesPk) {
+    public Attributes getAttributes(final SeriesService service,
+            final Long seriesPk) {
         long staleTimeout = this.staleTimeout;
         if (staleTimeout <= 0)
             return service.getAttributes(seriesPk);
-        synchronized (this) {
-            CacheEntry entry = cache.get(seriesPk);
-            long now = System.currentTimeMillis();
-            if (entry != null) {
-                if (now <= entry.fetchTime + staleTimeout)
-                    return entry.value;
-                cache.remove(seriesPk);
+
+        long now = System.currentTimeMillis();
+        CacheEntry entry = cache.get(seriesPk);
+        if (entry == null || entry.isStale(now, staleTimeout)) {
+            CacheEntry newEntry = new CacheEntry(new Callable<Attributes>() {
+
+                @Override
+                public Attributes call() throws Exception {
+                    return service.getAttributes(seriesPk);
+                }
+            }, now);
+            if (entry == null) {
+                entry = cache.putIfAbsent(seriesPk, newEntry);
+            } else if (!cache.replace(seriesPk, entry, newEntry)) {
+                return getAttributes(service, seriesPk);
+            } else {
+                entry = null;
+            }
+            if (entry == null) {
+                entry = newEntry;
+                entry.run();
+                evictIfFull(now, staleTimeout);
+            }
+        } else {
+            entry.accessTime = now;
+        }
+        try {
+            return entry.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        } catch (ExecutionException e) {
+            cache.remove(seriesPk, entry);
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            if (cause instanceof Error)
+                throw (Error) cause;
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    /**
+     * Removes stale entries and, if the cache is still full, the least
+     * recently accessed loaded entries down to 3/4 of its maximal size.
+     */
+    private void evictIfFull(long now, long staleTimeout) {
+        int maxSize = this.maxSize;
+        if (cache.size() <= maxSize || !evicting.compareAndSet(false, true))
+            return;
+
+        try {
+            for (Iterator<CacheEntry> it = cache.values().iterator();
+                    it.hasNext();)
+                if (it.next().isStale(now, staleTimeout))
+                    it.remove();
+            int minSize = maxSize - maxSize / 4;
+            int size = cache.size();
+            if (size <= minSize)
+                return;
+
+            ArrayList<Map.Entry<Long, CacheEntry>> done =
+                    new ArrayList<Map.Entry<Long, CacheEntry>>(size);
+            long[] accessTimes = new long[size];
+            for (Map.Entry<Long, CacheEntry> e : cache.entrySet()) {
+                CacheEntry entry = e.getValue();
+                if (entry.isDone()) {
+                    if (done.size() == accessTimes.length)
+                        accessTimes = Arrays.copyOf(accessTimes,
+                                accessTimes.length * 2);
+                    accessTimes[done.size()] = entry.accessTime;
+                    done.add(e);
+                }
             }
-            entry = new CacheEntry(service.getAttributes(seriesPk), now);
-            cache.put(seriesPk, entry);
-            return entry.value;
+            int n = Math.min(size - minSize, done.size());
+            if (n == 0)
+                return;
+
+            long[] sorted = Arrays.copyOf(accessTimes, done.size());
+            Arrays.sort(sorted);
+            long threshold = sorted[n - 1];
+            for (int i = 0, removed = 0; i < done.size() && removed < n; i++)
+                if (accessTimes[i] <= threshold) {
+                    Map.Entry<Long, CacheEntry> e = done.get(i);
+                    if (cache.remove(e.getKey(), e.getValue()))
+                        removed++;
+                }
+        } finally {
+            evicting.set(false);
         }
     }
 }
@@ -40,6 +40,9 @@ package org.dcm4chee.archive.query.dao;
 
 import static org.junit.Assert.*;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.TreeSet;
 
 import org.dcm4che.data.Attributes;
@@ -49,6 +52,7 @@ import org.dcm4che.data.VR;
 import org.dcm4chee.archive.common.IDWithIssuer;
 import org.dcm4chee.archive.common.QueryParam;
 import org.dcm4chee.archive.dao.SeriesService;
+import org.dcm4chee.archive.entity.QStudy;
 import org.dcm4chee.archive.test.util.Deployments;
 import org.dcm4chee.archive.test.util.ParamFactory;
 import org.dcm4chee.archive.util.BeanLocator;
@@ -61,6 +65,8 @@ import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
+import com.mysema.query.types.OrderSpecifier;
+
 /**
  * @author Gunter Zeilinger <gunterze@gmail.com>
  *
@@ -375,6 +381,94 @@ public class QueryServiceTest {
         assertArrayEquals(expected_ids, matches(queryService, Tag.StudyID));
     }
 
+    @Test
+    public void testFindStudyByKeysetAscending() {
+        testFindStudyByKeyset(2,
+                new OrderSpecifier<?>[] {
+                        QStudy.study.studyDate.asc(),
+                        QStudy.study.studyTime.asc() },
+                "DT_NONE",
+                "DT_20100620",
+                "DT_20100620_1030",
+                "DT_20100620_1430",
+                "DT_20110620",
+                "DT_20110620_1030",
+                "DT_20110620_1430");
+    }
+
+    @Test
+    public void testFindStudyByKeysetMixed() {
+        testFindStudyByKeyset(3,
+                new OrderSpecifier<?>[] {
+                        QStudy.study.studyDate.desc(),
+                        QStudy.study.studyTime.asc() },
+                "DT_20110620",
+                "DT_20110620_1030",
+                "DT_20110620_1430",
+                "DT_20100620",
+                "DT_20100620_1030",
+                "DT_20100620_1430",
+                "DT_NONE");
+    }
+
+    @Test
+    public void testFindStudyByKeysetWithoutSortKeys() {
+        List<String> ids = findStudyByKeyset(1, new OrderSpecifier<?>[0]);
+        assertEquals(7, ids.size());
+        assertEquals(7, new TreeSet<String>(ids).size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidQueryCursor() {
+        String token = new QueryCursor(new String[] { "20100620" }, 1L)
+                .toString();
+        QueryCursor.valueOf(token.substring(0, token.length() - 2));
+    }
+
+    private void testFindStudyByKeyset(int limit,
+            OrderSpecifier<?>[] orderSpecifiers, String... expected_ids) {
+        assertEquals(Arrays.asList(expected_ids),
+                findStudyByKeyset(limit, orderSpecifiers));
+    }
+
+    /**
+     * Fetches all pages of the Studies of the range matching test data,
+     * continuing each page after the cursor of the last match of the
+     * previous page, passed as token as by QIDO-RS.
+     */
+    private List<String> findStudyByKeyset(int limit,
+            OrderSpecifier<?>[] orderSpecifiers) {
+        QueryParam queryParam = ParamFactory.createQueryParam();
+        IDWithIssuer[] pids = { new IDWithIssuer("RANGE-MATCHING") };
+        List<String> ids = new ArrayList<String>();
+        String token = null;
+        int numMatches;
+        do {
+            QueryService pageQueryService = BeanLocator.lookup(
+                    QueryService.class, "java:global/test/QueryService");
+            try {
+                pageQueryService.createStudyQuery(pids, new Attributes(),
+                        queryParam);
+                pageQueryService.keyset(orderSpecifiers, token != null
+                        ? QueryCursor.valueOf(token)
+                        : null);
+                pageQueryService.limit(limit);
+                pageQueryService.executeQuery();
+                numMatches = 0;
+                while (pageQueryService.hasMoreMatches()) {
+                    ids.add(pageQueryService.nextMatch()
+                            .getString(Tag.StudyID));
+                    numMatches++;
+                }
+                if (numMatches > 0)
+                    token = pageQueryService.getCursor().toString();
+            } finally {
+                pageQueryService.close();
+            }
+        } while (numMatches == limit);
+        return ids;
+    }
+
     @Test
     public void testFindStudyByIssuerOfAccessionNumber() {
         testFindStudyByIssuerOfAccessionNumber(
@@ -0,0 +1,219 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.archive.util.query;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.dcm4che.soundex.FuzzyStr;
+import org.dcm4chee.archive.common.QueryParam;
+import org.dcm4chee.archive.dao.PatientNameIndex;
+import org.dcm4chee.archive.entity.QPatient;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.mysema.query.BooleanBuilder;
+import com.mysema.query.types.Constant;
+import com.mysema.query.types.Expression;
+import com.mysema.query.types.Operation;
+import com.mysema.query.types.Path;
+import com.mysema.query.types.Predicate;
+
+/**
+ * Verifies that the candidates of {@link PatientNameIndex} are the Patients
+ * matched by the soundex predicate of fuzzy semantic matching.
+ * 
+ * @author agent <agent@local>
+ *
+ */
+public class MatchPersonNameTest {
+
+    private static final QPatient patient = QPatient.patient;
+
+    private static final String[] FUZZY_NAMES = { "A", "AB", "B", "*" };
+
+    private static final String[] QUERY_NAMES =
+        { "", "a", "a*", "ab", "b", "b*", "c" };
+
+    private static final FuzzyStr FUZZY_STR = new FuzzyStr() {
+
+        @Override
+        public String toFuzzy(String s) {
+            return s == null ? "" : s.replace("*", "").toUpperCase();
+        }
+    };
+
+    private List<Map<String, Object>> rows;
+
+    @Before
+    public void setUp() {
+        rows = new ArrayList<Map<String, Object>>();
+        List<Object[]> patients = new ArrayList<Object[]>();
+        long pk = 0;
+        for (String familyName : FUZZY_NAMES)
+            for (String givenName : FUZZY_NAMES) {
+                Map<String, Object> row = new HashMap<String, Object>();
+                row.put(patient.pk.toString(), ++pk);
+                row.put(patient.patientFamilyNameSoundex.toString(), familyName);
+                row.put(patient.patientGivenNameSoundex.toString(), givenName);
+                rows.add(row);
+                patients.add(new Object[] { pk, familyName, givenName });
+            }
+        PatientNameIndex index = PatientNameIndex.INSTANCE;
+        index.setEnabled(true);
+        int epoch = index.epoch();
+        assertTrue(index.load(epoch, patients));
+        index.loaded(epoch);
+    }
+
+    @After
+    public void tearDown() {
+        PatientNameIndex.INSTANCE.setEnabled(false);
+    }
+
+    @Test
+    public void testCandidates() {
+        testCandidates(false);
+    }
+
+    @Test
+    public void testCandidatesMatchUnknown() {
+        testCandidates(true);
+    }
+
+    @Test
+    public void testNotReady() {
+        PatientNameIndex.INSTANCE.setEnabled(true);
+        assertNull(MatchPersonName.patientNameIndexMatch("a^b",
+                queryParam(false)));
+    }
+
+    @Test
+    public void testOutdatedLoad() {
+        PatientNameIndex index = PatientNameIndex.INSTANCE;
+        int epoch = index.epoch();
+        index.setEnabled(true);
+        assertFalse(index.load(epoch, new ArrayList<Object[]>()));
+        index.loaded(epoch);
+        assertFalse(index.isReady());
+    }
+
+    private void testCandidates(boolean matchUnknown) {
+        QueryParam queryParam = queryParam(matchUnknown);
+        for (String familyName : QUERY_NAMES)
+            for (String givenName : QUERY_NAMES) {
+                if (familyName.isEmpty() && givenName.isEmpty())
+                    continue;
+
+                String value = familyName + '^' + givenName;
+                Predicate soundex = MatchPersonName.match(
+                        patient.patientName,
+                        patient.patientIdeographicName,
+                        patient.patientPhoneticName,
+                        patient.patientFamilyNameSoundex,
+                        patient.patientGivenNameSoundex,
+                        value, queryParam);
+                Predicate index =
+                        MatchPersonName.patientNameIndexMatch(value, queryParam);
+                assertNotNull(value, index);
+                assertEquals(value, select(soundex), select(index));
+            }
+    }
+
+    private static QueryParam queryParam(boolean matchUnknown) {
+        QueryParam queryParam = new QueryParam();
+        queryParam.setFuzzyStr(FUZZY_STR);
+        queryParam.setFuzzySemanticMatching(true);
+        queryParam.setMatchUnknown(matchUnknown);
+        return queryParam;
+    }
+
+    private Set<Long> select(Predicate predicate) {
+        Set<Long> pks = new TreeSet<Long>();
+        for (Map<String, Object> row : rows)
+            if (eval(predicate, row))
+                pks.add((Long) row.get(patient.pk.toString()));
+        return pks;
+    }
+
+    private static boolean eval(Expression<?> expr, Map<String, Object> row) {
+        if (expr instanceof BooleanBuilder)
+            return eval(((BooleanBuilder) expr).getValue(), row);
+
+        Operation<?> op = (Operation<?>) expr;
+        String operator = String.valueOf(op.getOperator());
+        if (operator.equals("AND"))
+            return eval(op.getArg(0), row) && eval(op.getArg(1), row);
+        if (operator.equals("OR"))
+            return eval(op.getArg(0), row) || eval(op.getArg(1), row);
+
+        Object value = valueOf(op.getArg(0), row);
+        if (operator.equals("IS_NULL"))
+            return value == null;
+
+        Object arg = valueOf(op.getArg(1), row);
+        if (operator.startsWith("EQ"))
+            return value.equals(arg);
+        if (operator.equals("IN"))
+            return ((Collection<?>) arg).contains(value);
+        if (operator.equals("LIKE")) {
+            String pattern = (String) arg;
+            assertTrue(pattern, pattern.endsWith("%"));
+            return ((String) value).startsWith(
+                    pattern.substring(0, pattern.length() - 1));
+        }
+        throw new IllegalArgumentException(operator);
+    }
+
+    private static Object valueOf(Expression<?> expr, Map<String, Object> row) {
+        if (expr instanceof Constant)
+            return ((Constant<?>) expr).getConstant();
+        if (expr instanceof Path)
+            return row.get(expr.toString());
+        throw new IllegalArgumentException(expr.toString());
+    }
+}